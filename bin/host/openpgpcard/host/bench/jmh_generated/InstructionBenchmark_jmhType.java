@@ -0,0 +1,4 @@
+package openpgpcard.host.bench.jmh_generated;
+public class InstructionBenchmark_jmhType extends InstructionBenchmark_jmhType_B3 {
+}
+
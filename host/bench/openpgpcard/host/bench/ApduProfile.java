@@ -0,0 +1,58 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host.bench;
+
+import openpgpcard.host.CountingTransport;
+import openpgpcard.host.sim.SimulatedCard;
+
+/**
+ * Reports the number of APDUs and bytes on the wire, and the time in the
+ * simulator, for each operation of BenchmarkCard. Since segmentation of
+ * responses depends on the transport protocol, all protocols are reported,
+ * with and without secure messaging.
+ */
+public class ApduProfile {
+	private static final String[] PROTOCOLS = { SimulatedCard.PROTOCOL_T0,
+			SimulatedCard.PROTOCOL_T1, SimulatedCard.PROTOCOL_CONTACTLESS };
+
+	public static void main(String[] args) throws Exception {
+		String[] operations = args.length > 0 ? args : BenchmarkCard.OPERATIONS;
+
+		System.out.printf("%-16s %-3s %-22s %6s %8s %8s %10s%n", "protocol",
+				"sm", "operation", "apdus", "sent", "received", "time (ms)");
+		for (String protocol : PROTOCOLS) {
+			for (boolean sm : new boolean[] { false, true }) {
+				BenchmarkCard card = new BenchmarkCard(protocol, sm);
+				CountingTransport counter = card.getCounter();
+
+				for (String operation : operations) {
+					counter.reset();
+					long start = System.nanoTime();
+					card.run(operation);
+					long time = System.nanoTime() - start;
+
+					System.out.printf("%-16s %-3s %-22s %6d %8d %8d %10.3f%n",
+							protocol, sm ? "yes" : "no", operation,
+							counter.getCommands(), counter.getBytesSent(),
+							counter.getBytesReceived(), time / 1e6);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,203 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host.bench;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPrivateCrtKey;
+
+import javax.crypto.Cipher;
+import javax.smartcardio.CardException;
+
+import openpgpcard.host.CountingTransport;
+import openpgpcard.host.OpenPGPCard;
+import openpgpcard.host.sim.CardFixture;
+import openpgpcard.host.sim.SimulatedCard;
+
+/**
+ * Personalized simulated card and precomputed inputs for the operations that
+ * are measured by the benchmarks.
+ */
+public class BenchmarkCard {
+	/**
+	 * Operations that are measured, in the order they are reported.
+	 */
+	public static final String[] OPERATIONS = { "select", "verify", "sign",
+			"decipher", "internalAuthenticate", "generateKey", "readPublicKey",
+			"getData6E", "getData65", "getData7F21", "putData", "importKey" };
+
+	private final SimulatedCard simulator;
+	private final CountingTransport counter;
+	private final OpenPGPCard card;
+	private final CardFixture fixture = new CardFixture();
+
+	private final byte[] digestInfo;
+	private final byte[] cryptogram;
+	private final RSAPrivateCrtKey importedKey;
+
+	/**
+	 * Install and personalize the applet, and verify PW1 and PW3. The card
+	 * is personalized from a snapshot if possible, see CardFixture.
+	 *
+	 * @param protocol
+	 *            Transport protocol, see SimulatedCard
+	 * @param secureMessaging
+	 *            Whether commands after personalization use secure messaging
+	 * @throws CardException
+	 * @throws GeneralSecurityException
+	 */
+	public BenchmarkCard(String protocol, boolean secureMessaging)
+			throws CardException, GeneralSecurityException {
+		simulator = new SimulatedCard();
+		simulator.setProtocol(protocol);
+		counter = new CountingTransport(simulator);
+		card = new OpenPGPCard(counter);
+
+		fixture.personalize(simulator, true);
+		card.select();
+		card.verify(OpenPGPCard.PW3, OpenPGPCard.PW3_DEFAULT);
+		if (secureMessaging)
+			card.startSecureMessaging(CardFixture.SM_ENC_KEY,
+					CardFixture.SM_MAC_KEY);
+		CardFixture.login(card);
+		card.verify(OpenPGPCard.PW3, OpenPGPCard.PW3_DEFAULT);
+
+		digestInfo = CardFixture.digestInfo("benchmark".getBytes());
+
+		Cipher rsa = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+		rsa.init(Cipher.ENCRYPT_MODE,
+				fixture.getPublicKey(OpenPGPCard.KEY_DECRYPTION));
+		cryptogram = rsa.doFinal(new byte[32]);
+
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		importedKey = (RSAPrivateCrtKey) generator.generateKeyPair()
+				.getPrivate();
+
+		counter.reset();
+	}
+
+	/**
+	 * @return Transport counting the APDUs and bytes of the operations
+	 */
+	public CountingTransport getCounter() {
+		return counter;
+	}
+
+	/**
+	 * @return Card client
+	 */
+	public OpenPGPCard getCard() {
+		return card;
+	}
+
+	/**
+	 * Run one of the OPERATIONS. Operations leave the card in a state in which
+	 * all operations can be run again.
+	 *
+	 * @param operation
+	 *            Name of the operation
+	 * @return Response data, to be consumed by the caller
+	 * @throws CardException
+	 */
+	public byte[] run(String operation) throws CardException {
+		if (operation.equals("select"))
+			return select();
+		if (operation.equals("verify"))
+			return verify();
+		if (operation.equals("sign"))
+			return sign();
+		if (operation.equals("decipher"))
+			return decipher();
+		if (operation.equals("internalAuthenticate"))
+			return internalAuthenticate();
+		if (operation.equals("generateKey"))
+			return generateKey();
+		if (operation.equals("readPublicKey"))
+			return readPublicKey();
+		if (operation.equals("getData6E"))
+			return card.getData(0x6E);
+		if (operation.equals("getData65"))
+			return card.getData(0x65);
+		if (operation.equals("getData7F21"))
+			return card.getData(0x7F21);
+		if (operation.equals("putData"))
+			return putData();
+		if (operation.equals("importKey"))
+			return importKey();
+		throw new IllegalArgumentException("Unknown operation " + operation);
+	}
+
+	/**
+	 * SELECT ends secure messaging and resets the PIN status, so the PINs are
+	 * verified and secure messaging is restarted afterwards. These commands
+	 * are included in the measurement.
+	 */
+	public byte[] select() throws CardException {
+		boolean secureMessaging = card.isSecureMessaging();
+		byte[] fci = card.select();
+		if (secureMessaging) {
+			card.verify(OpenPGPCard.PW3, OpenPGPCard.PW3_DEFAULT);
+			card.startSecureMessaging(CardFixture.SM_ENC_KEY,
+					CardFixture.SM_MAC_KEY);
+		}
+		CardFixture.login(card);
+		card.verify(OpenPGPCard.PW3, OpenPGPCard.PW3_DEFAULT);
+		return fci;
+	}
+
+	public byte[] verify() throws CardException {
+		card.verify(OpenPGPCard.PW1, OpenPGPCard.PW1_DEFAULT);
+		return null;
+	}
+
+	public byte[] sign() throws CardException {
+		return card.sign(digestInfo);
+	}
+
+	public byte[] decipher() throws CardException {
+		return card.decipher(cryptogram);
+	}
+
+	public byte[] internalAuthenticate() throws CardException {
+		return card.internalAuthenticate(digestInfo);
+	}
+
+	/**
+	 * Generates the authentication key, so the signature and decryption keys
+	 * used by the other operations stay valid.
+	 */
+	public byte[] generateKey() throws CardException {
+		return card.generateKey(OpenPGPCard.KEY_AUTHENTICATION);
+	}
+
+	public byte[] readPublicKey() throws CardException {
+		return card.readPublicKey(OpenPGPCard.KEY_SIGNATURE);
+	}
+
+	public byte[] putData() throws CardException {
+		card.putData(0x5B, CardFixture.NAME);
+		return null;
+	}
+
+	public byte[] importKey() throws CardException {
+		card.importKey(OpenPGPCard.KEY_AUTHENTICATION, importedKey);
+		return null;
+	}
+}
@@ -0,0 +1,140 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host.bench;
+
+import java.io.File;
+import java.util.Arrays;
+
+import openpgpcard.host.CardStatusException;
+import openpgpcard.host.CountingTransport;
+import openpgpcard.host.OpenPGPCard;
+import openpgpcard.host.cache.CachingCard;
+import openpgpcard.host.cache.DataObjectCache;
+import openpgpcard.host.sim.CardFixture;
+import openpgpcard.host.sim.SimulatedCard;
+
+/**
+ * APDUs and time for reading the slow data objects and public keys of a
+ * simulated card repeatedly, without and with a DataObjectCache, checking the
+ * state of the card before every cached read or only on SELECT. The cached
+ * responses are compared with those of the card, also after changes through
+ * the caching client and through another client.
+ * 
+ * Usage: CacheBenchmark [--rounds n] [--capacity n] [--store file]
+ */
+public class CacheBenchmark {
+	private static final int[] TAGS = { 0x6E, 0x65, 0x7F21, 0x5F50, 0x5E };
+	private static final int[] KEYS = { OpenPGPCard.KEY_SIGNATURE,
+			OpenPGPCard.KEY_DECRYPTION, OpenPGPCard.KEY_AUTHENTICATION };
+
+	public static void main(String[] args) throws Exception {
+		int rounds = 20;
+		int capacity = 256;
+		File store = null;
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--rounds"))
+				rounds = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--capacity"))
+				capacity = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--store"))
+				store = new File(args[++i]);
+		}
+
+		SimulatedCard simulator = new SimulatedCard();
+		new CardFixture().personalize(simulator, true);
+		CountingTransport counter = new CountingTransport(simulator);
+		OpenPGPCard plain = new OpenPGPCard(counter);
+		DataObjectCache cache = store != null && store.exists() ? DataObjectCache
+				.load(store, capacity) : new DataObjectCache(capacity);
+		CachingCard cached = new CachingCard(counter, cache);
+
+		System.out.printf("%-8s %8s %10s%n", "client", "apdus", "time (ms)");
+		byte[][] expected = run("plain", plain, counter, rounds, null);
+		cached.setCheckReads(false);
+		run("select", cached, counter, rounds, expected);
+		cached.setCheckReads(true);
+		run("cached", cached, counter, rounds, expected);
+
+		// Change through the caching client
+		cached.verify(OpenPGPCard.PW3, OpenPGPCard.PW3_DEFAULT);
+		byte[] url = "https://example.org/other.asc".getBytes();
+		cached.putData(0x5F50, url);
+		check("5F50 after PUT DATA", url, cached.getData(0x5F50));
+		check("6E after PUT DATA", plain.getData(0x6E), cached.getData(0x6E));
+
+		// Change through another client, noticed before the next read
+		plain.select();
+		plain.verify(OpenPGPCard.PW3, OpenPGPCard.PW3_DEFAULT);
+		byte[] login = "jroe".getBytes();
+		plain.putData(0x5E, login);
+		check("5E after change by another client", login, cached.getData(0x5E));
+
+		// Retry counter changed by another client
+		try {
+			plain.verify(OpenPGPCard.PW1, "000000".getBytes());
+		} catch (CardStatusException e) {
+			// Expected
+		}
+		check("6E after failed VERIFY by another client", plain.getData(0x6E),
+				cached.getData(0x6E));
+		plain.verify(OpenPGPCard.PW1, OpenPGPCard.PW1_DEFAULT);
+
+		System.out.printf("consistent, %d hits, %d misses, %d entries%n",
+				cache.getHits(), cache.getMisses(), cache.size());
+		if (store != null)
+			cache.store(store);
+	}
+
+	/**
+	 * Select the card and read all data objects and public keys in every
+	 * round.
+	 * 
+	 * @return Responses of the last round
+	 */
+	private static byte[][] run(String name, OpenPGPCard card,
+			CountingTransport counter, int rounds, byte[][] expected)
+			throws Exception {
+		byte[][] responses = new byte[TAGS.length + KEYS.length][];
+		counter.reset();
+		long start = System.nanoTime();
+		for (int round = 0; round < rounds; round++) {
+			card.select();
+			for (int i = 0; i < TAGS.length; i++)
+				responses[i] = card.getData(TAGS[i]);
+			for (int i = 0; i < KEYS.length; i++)
+				responses[TAGS.length + i] = card.readPublicKey(KEYS[i]);
+
+			if (expected != null) {
+				for (int i = 0; i < responses.length; i++)
+					check(name + " response " + i, expected[i], responses[i]);
+			}
+		}
+		long time = System.nanoTime() - start;
+
+		System.out.printf("%-8s %8d %10.3f%n", name, counter.getCommands(),
+				time / 1e6);
+		return responses;
+	}
+
+	private static void check(String what, byte[] expected, byte[] actual) {
+		if (!Arrays.equals(expected, actual))
+			throw new IllegalStateException("Stale cache data: " + what);
+	}
+}
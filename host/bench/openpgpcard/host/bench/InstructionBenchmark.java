@@ -0,0 +1,130 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import openpgpcard.host.sim.SimulatedCard;
+
+/**
+ * Latency of the applet instructions in the simulator, with and without
+ * secure messaging. Other protocols can be selected with -p protocol=...
+ * APDUs and bytes per operation are reported by ApduProfile.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class InstructionBenchmark {
+	@Param({ "false", "true" })
+	public boolean sm;
+
+	@Param({ SimulatedCard.PROTOCOL_T1 })
+	public String protocol;
+
+	private BenchmarkCard card;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		card = new BenchmarkCard(protocol, sm);
+	}
+
+	@Benchmark
+	public byte[] select() throws Exception {
+		return card.select();
+	}
+
+	@Benchmark
+	public byte[] verify() throws Exception {
+		return card.verify();
+	}
+
+	@Benchmark
+	public byte[] sign() throws Exception {
+		return card.sign();
+	}
+
+	@Benchmark
+	public byte[] decipher() throws Exception {
+		return card.decipher();
+	}
+
+	@Benchmark
+	public byte[] internalAuthenticate() throws Exception {
+		return card.internalAuthenticate();
+	}
+
+	/**
+	 * Key generation takes too long for a steady state, so every invocation
+	 * is measured separately.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 1)
+	@Measurement(iterations = 10)
+	public byte[] generateKey() throws Exception {
+		return card.generateKey();
+	}
+
+	@Benchmark
+	public byte[] readPublicKey() throws Exception {
+		return card.readPublicKey();
+	}
+
+	@Benchmark
+	public byte[] getData6E() throws Exception {
+		return card.getCard().getData(0x6E);
+	}
+
+	@Benchmark
+	public byte[] getData65() throws Exception {
+		return card.getCard().getData(0x65);
+	}
+
+	@Benchmark
+	public byte[] getData7F21() throws Exception {
+		return card.getCard().getData(0x7F21);
+	}
+
+	@Benchmark
+	public byte[] putData() throws Exception {
+		return card.putData();
+	}
+
+	@Benchmark
+	public byte[] importKey() throws Exception {
+		return card.importKey();
+	}
+}
@@ -0,0 +1,113 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host.bench;
+
+import java.util.List;
+
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.TerminalFactory;
+
+import openpgpcard.host.CardTransport;
+import openpgpcard.host.OpenPGPCard;
+import openpgpcard.host.PcscTransport;
+import openpgpcard.host.sim.CardFixture;
+import openpgpcard.host.sim.SimulatedCard;
+
+/**
+ * Measures the cost of primitives on the card with the SELF BENCHMARK
+ * command. Every primitive is run once and n times in a single command; the
+ * difference divided by n - 1 is the cost of one operation without the
+ * communication overhead.
+ * 
+ * Usage: SelfBenchmark [--reader index] [--iterations n]
+ * 
+ * Without a reader the applet is run in the simulator. A card in a reader
+ * must be built with the benchmark feature and have the default PW3. The
+ * RSA signatures use a temporary key pair that the card generates during the
+ * warm up, the keys of the card are not used. The SM session keys are set
+ * for measuring SM wrapping; they are cleared when the applet is deselected.
+ */
+public class SelfBenchmark {
+	private static final int DEFAULT_ITERATIONS = 20;
+
+	private static final Object[][] PRIMITIVES = {
+			{ "RSA signature", OpenPGPCard.BENCHMARK_RSA, 0 },
+			{ "SM wrap 64 bytes", OpenPGPCard.BENCHMARK_SM_WRAP, 64 },
+			{ "random 32 bytes", OpenPGPCard.BENCHMARK_RANDOM, 32 },
+			{ "write 16 bytes", OpenPGPCard.BENCHMARK_WRITE, 16 },
+			{ "atomic write 16 bytes", OpenPGPCard.BENCHMARK_WRITE_ATOMIC, 16 } };
+
+	public static void main(String[] args) throws Exception {
+		int reader = -1;
+		int iterations = DEFAULT_ITERATIONS;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--reader"))
+				reader = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--iterations"))
+				iterations = Integer.parseInt(args[++i]);
+		}
+		if (iterations < 2)
+			throw new IllegalArgumentException("At least 2 iterations needed");
+
+		CardTransport transport;
+		OpenPGPCard card;
+		if (reader >= 0) {
+			List<CardTerminal> terminals = TerminalFactory.getDefault()
+					.terminals().list();
+			transport = new PcscTransport(terminals.get(reader));
+			card = new OpenPGPCard(transport);
+			card.select();
+			card.verify(OpenPGPCard.PW3, OpenPGPCard.PW3_DEFAULT);
+		} else {
+			SimulatedCard simulator = new SimulatedCard();
+			new CardFixture().personalize(simulator, false);
+			transport = simulator;
+			card = new OpenPGPCard(transport);
+			card.select();
+			card.verify(OpenPGPCard.PW3, OpenPGPCard.PW3_DEFAULT);
+		}
+		card.putData(0xD1, CardFixture.SM_ENC_KEY);
+		card.putData(0xD2, CardFixture.SM_MAC_KEY);
+
+		System.out.printf("%-24s %12s %12s %14s%n", "primitive", "1 (ms)",
+				iterations + " (ms)", "per op (ms)");
+		for (Object[] primitive : PRIMITIVES) {
+			int p1 = (Integer) primitive[1];
+			int p2 = (Integer) primitive[2];
+
+			// Warm up, e.g. for initialization of the cipher
+			card.selfBenchmark(p1, p2, 1);
+
+			long single = time(card, p1, p2, 1);
+			long multiple = time(card, p1, p2, iterations);
+			System.out.printf("%-24s %12.3f %12.3f %14.3f%n", primitive[0],
+					single / 1e6, multiple / 1e6, (multiple - single)
+							/ (iterations - 1) / 1e6);
+		}
+
+		transport.close();
+	}
+
+	private static long time(OpenPGPCard card, int p1, int p2, int iterations)
+			throws Exception {
+		long start = System.nanoTime();
+		card.selfBenchmark(p1, p2, iterations);
+		return System.nanoTime() - start;
+	}
+}
@@ -0,0 +1,103 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host.bench;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import openpgpcard.host.OpenPGPCard;
+import openpgpcard.host.daemon.LatencyModel;
+import openpgpcard.host.daemon.VirtualCard;
+import openpgpcard.host.signing.SigningCard;
+import openpgpcard.host.signing.SigningPool;
+import openpgpcard.host.sim.CardFixture;
+
+/**
+ * Signatures per second of a SigningPool as virtual cards are added one at a
+ * time. The cards are personalized with the same test keys and slowed down
+ * with a latency model. Without it the figures are limited by the processors
+ * of the host rather than by the cards.
+ * 
+ * Usage: SigningPoolBenchmark [--cards n] [--seconds s] [--latency file]
+ */
+public class SigningPoolBenchmark {
+	public static void main(String[] args) throws Exception {
+		int cards = 8;
+		int seconds = 5;
+		LatencyModel latency = LatencyModel.NONE;
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--cards"))
+				cards = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--seconds"))
+				seconds = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--latency"))
+				latency = LatencyModel.load(new File(args[++i]));
+		}
+
+		File stateDir = Files.createTempDirectory("signing").toFile();
+		final byte[] digestInfo = CardFixture.digestInfo("benchmark"
+				.getBytes());
+		final SigningPool pool = new SigningPool(new SigningPool.Listener() {
+			public void removed(SigningCard card, Exception e) {
+				System.out.println(card.getName() + " removed: " + e);
+			}
+		});
+
+		System.out.printf("%5s %12s%n", "cards", "signatures/s");
+		byte[] fingerprint = null;
+		for (int n = 1; n <= cards; n++) {
+			final VirtualCard card = new VirtualCard("card " + n, new File(
+					stateDir, "card" + n + ".properties"), new byte[0], true,
+					latency);
+			SigningCard signingCard = pool.add(card.getName(),
+					card::transmit, OpenPGPCard.PW1_DEFAULT);
+			if (fingerprint == null)
+				fingerprint = signingCard.getFingerprint();
+
+			// Two outstanding requests per card keep every card busy
+			final byte[] key = fingerprint;
+			final long end = System.nanoTime() + seconds * 1000000000L;
+			long before = pool.getSignatures();
+			List<Thread> clients = new ArrayList<Thread>();
+			for (int i = 0; i < 2 * n; i++) {
+				Thread client = new Thread() {
+					public void run() {
+						try {
+							while (System.nanoTime() < end)
+								pool.sign(key, digestInfo).get();
+						} catch (Exception e) {
+							System.out.println(e);
+						}
+					}
+				};
+				client.start();
+				clients.add(client);
+			}
+			for (Thread client : clients)
+				client.join();
+
+			System.out.printf("%5d %12.1f%n", n,
+					(pool.getSignatures() - before) / (double) seconds);
+		}
+		pool.close();
+	}
+}
@@ -0,0 +1,42 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host;
+
+import javax.smartcardio.CardException;
+
+/**
+ * Thrown when the card returns a status word indicating an error.
+ */
+public class CardStatusException extends CardException {
+	private static final long serialVersionUID = 1L;
+
+	private final int status;
+
+	public CardStatusException(int ins, int status) {
+		super(String.format("INS %02X failed with SW %04X", ins, status));
+		this.status = status;
+	}
+
+	/**
+	 * @return Status word returned by the card
+	 */
+	public int getStatus() {
+		return status;
+	}
+}
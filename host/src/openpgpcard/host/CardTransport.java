@@ -0,0 +1,47 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host;
+
+import javax.smartcardio.CardException;
+
+/**
+ * Transport for command APDUs to a card, either a card in a PC/SC reader or
+ * a simulated card.
+ */
+public interface CardTransport {
+	/**
+	 * Send a command APDU to the card.
+	 *
+	 * @param command
+	 *            Command APDU
+	 * @return Response APDU including the status word
+	 * @throws CardException
+	 *             If the command could not be sent
+	 */
+	byte[] transmit(byte[] command) throws CardException;
+
+	/**
+	 * Release the card. The default implementation does nothing.
+	 *
+	 * @throws CardException
+	 *             If the card could not be released
+	 */
+	default void close() throws CardException {
+	}
+}
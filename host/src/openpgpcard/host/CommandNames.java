@@ -0,0 +1,133 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host;
+
+/**
+ * Names of the commands of the OpenPGP applet, decoded from the command APDU
+ * in the same way as OpenPGPApplet.process() dispatches them.
+ */
+public class CommandNames {
+	private CommandNames() {
+	}
+
+	/**
+	 * Key of commands that are not valid APDUs.
+	 */
+	public static final int INVALID = -1;
+
+	/**
+	 * Decode the operation of a command without allocating.
+	 *
+	 * @param command
+	 *            Command APDU, at least the header
+	 * @return Key of the operation: the INS in bits 16 to 23 and the part of
+	 *         P1P2 that selects the operation in bits 0 to 15, or INVALID
+	 */
+	public static int key(byte[] command) {
+		if (command.length < 4)
+			return INVALID;
+
+		int ins = command[1] & 0xFF;
+		int p1p2 = ((command[2] & 0xFF) << 8) | (command[3] & 0xFF);
+
+		switch (ins) {
+		case 0x20:
+		case 0x24:
+			return (ins << 16) | (p1p2 & 0x00FF);
+		case 0x2C:
+		case 0x47:
+			return (ins << 16) | (p1p2 & 0xFF00);
+		case 0x84:
+			return (ins << 16) | ((p1p2 & 0xFF00) == 0x8000 ? 0x8000 : 0);
+		case 0x2A:
+		case 0xCA:
+		case 0xDA:
+		case 0xDB:
+			return (ins << 16) | p1p2;
+		default:
+			return ins << 16;
+		}
+	}
+
+	/**
+	 * @param command
+	 *            Command APDU, at least the header
+	 * @return Name of the operation, e.g. "PSO:CDS" or "GET DATA 6E"
+	 */
+	public static String name(byte[] command) {
+		return name(key(command));
+	}
+
+	/**
+	 * @param key
+	 *            Key of the operation, from key()
+	 * @return Name of the operation
+	 */
+	public static String name(int key) {
+		if (key == INVALID)
+			return "INVALID";
+
+		int ins = key >>> 16;
+		int p1p2 = key & 0xFFFF;
+		int p1 = p1p2 >> 8;
+		int p2 = p1p2 & 0xFF;
+
+		switch (ins) {
+		case 0xA4:
+			return "SELECT";
+		case 0xC0:
+			return "GET RESPONSE";
+		case 0x20:
+			return String.format("VERIFY %02X", p2);
+		case 0x24:
+			return String.format("CHANGE REFERENCE DATA %02X", p2);
+		case 0x2C:
+			return String.format("RESET RETRY COUNTER %02X", p1);
+		case 0x2A:
+			if (p1p2 == 0x9E9A)
+				return "PSO:CDS";
+			if (p1p2 == 0x9E80)
+				return "PSO:CDS HASH";
+			if (p1p2 == 0x8086)
+				return "PSO:DEC";
+			if (p1p2 == 0x8680)
+				return "PSO:ENC";
+			return String.format("PSO %04X", p1p2);
+		case 0x88:
+			return "INTERNAL AUTHENTICATE";
+		case 0x47:
+			return String.format("GENERATE %02X", p1);
+		case 0x84:
+			return "GET CHALLENGE";
+		case 0xCA:
+			return String.format("GET DATA %X", p1p2);
+		case 0xDA:
+			return String.format("PUT DATA %X", p1p2);
+		case 0xDB:
+			return p1p2 == 0x3FFF ? "IMPORT KEY" : String.format(
+					"PUT DATA %X", p1p2);
+		case 0xEC:
+			return "GENERATE RESERVE";
+		case 0xEE:
+			return "SELF BENCHMARK";
+		default:
+			return String.format("INS %02X", ins);
+		}
+	}
+}
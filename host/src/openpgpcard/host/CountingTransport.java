@@ -0,0 +1,80 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host;
+
+import javax.smartcardio.CardException;
+
+/**
+ * Transport that counts the APDUs and bytes exchanged with the card.
+ */
+public class CountingTransport implements CardTransport {
+	private final CardTransport transport;
+
+	private long commands = 0;
+	private long bytesSent = 0;
+	private long bytesReceived = 0;
+
+	public CountingTransport(CardTransport transport) {
+		this.transport = transport;
+	}
+
+	public byte[] transmit(byte[] command) throws CardException {
+		byte[] response = transport.transmit(command);
+
+		commands++;
+		bytesSent += command.length;
+		bytesReceived += response.length;
+
+		return response;
+	}
+
+	public void close() throws CardException {
+		transport.close();
+	}
+
+	/**
+	 * @return Number of command APDUs sent
+	 */
+	public long getCommands() {
+		return commands;
+	}
+
+	/**
+	 * @return Number of bytes sent in command APDUs
+	 */
+	public long getBytesSent() {
+		return bytesSent;
+	}
+
+	/**
+	 * @return Number of bytes received in response APDUs
+	 */
+	public long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	/**
+	 * Reset all counters to zero.
+	 */
+	public void reset() {
+		commands = 0;
+		bytesSent = 0;
+		bytesReceived = 0;
+	}
+}
@@ -0,0 +1,91 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host;
+
+/**
+ * Conversion between byte arrays and hexadecimal strings.
+ */
+public final class Hex {
+	private static final char[] DIGITS = "0123456789ABCDEF".toCharArray();
+
+	private Hex() {
+	}
+
+	/**
+	 * Convert a hexadecimal string to bytes. Whitespace and colons between
+	 * the digits are ignored.
+	 *
+	 * @param hex
+	 *            Hexadecimal string
+	 * @return Bytes represented by the string
+	 */
+	public static byte[] toBytes(String hex) {
+		StringBuilder digits = new StringBuilder(hex.length());
+		for (int i = 0; i < hex.length(); i++) {
+			char c = hex.charAt(i);
+			if (!Character.isWhitespace(c) && c != ':')
+				digits.append(c);
+		}
+
+		if (digits.length() % 2 != 0)
+			throw new IllegalArgumentException("Odd number of digits: " + hex);
+
+		byte[] data = new byte[digits.length() / 2];
+		for (int i = 0; i < data.length; i++) {
+			int high = Character.digit(digits.charAt(2 * i), 16);
+			int low = Character.digit(digits.charAt(2 * i + 1), 16);
+			if (high < 0 || low < 0)
+				throw new IllegalArgumentException("Invalid digit: " + hex);
+			data[i] = (byte) ((high << 4) | low);
+		}
+		return data;
+	}
+
+	/**
+	 * Convert bytes to a hexadecimal string.
+	 *
+	 * @param data
+	 *            Bytes to convert
+	 * @return Hexadecimal string, using upper case digits
+	 */
+	public static String toString(byte[] data) {
+		return toString(data, 0, data.length);
+	}
+
+	/**
+	 * Convert part of a byte array to a hexadecimal string.
+	 *
+	 * @param data
+	 *            Byte array
+	 * @param offset
+	 *            Offset of the first byte
+	 * @param length
+	 *            Number of bytes to convert
+	 * @return Hexadecimal string, using upper case digits
+	 */
+	public static String toString(byte[] data, int offset, int length) {
+		char[] chars = new char[length * 2];
+		for (int i = 0; i < length; i++) {
+			int b = data[offset + i] & 0xFF;
+			chars[2 * i] = DIGITS[b >>> 4];
+			chars[2 * i + 1] = DIGITS[b & 0x0F];
+		}
+		return new String(chars);
+	}
+}
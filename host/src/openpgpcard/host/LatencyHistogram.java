@@ -0,0 +1,124 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host;
+
+/**
+ * Histogram of latencies with buckets that are powers of two nanoseconds.
+ * Recording does not allocate, the precision of percentiles is a factor two.
+ */
+public class LatencyHistogram {
+	private static final int BUCKETS = 64;
+
+	private final long[] counts = new long[BUCKETS];
+	private long count = 0;
+	private long total = 0;
+	private long max = 0;
+
+	/**
+	 * @param nanos
+	 *            Latency in nanoseconds
+	 */
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+
+		int bucket = nanos == 0 ? 0 : BUCKETS - 1
+				- Long.numberOfLeadingZeros(nanos);
+		counts[bucket]++;
+		count++;
+		total += nanos;
+		if (nanos > max)
+			max = nanos;
+	}
+
+	/**
+	 * Add all values recorded in another histogram.
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < BUCKETS; i++)
+			counts[i] += other.counts[i];
+		count += other.count;
+		total += other.total;
+		if (other.max > max)
+			max = other.max;
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++)
+			counts[i] = 0;
+		count = 0;
+		total = 0;
+		max = 0;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return Sum of all latencies in nanoseconds
+	 */
+	public long getTotal() {
+		return total;
+	}
+
+	/**
+	 * @return Mean latency in nanoseconds
+	 */
+	public long getMean() {
+		return count == 0 ? 0 : total / count;
+	}
+
+	/**
+	 * @return Maximum latency in nanoseconds
+	 */
+	public long getMax() {
+		return max;
+	}
+
+	/**
+	 * @param percentile
+	 *            Percentile between 0 and 100
+	 * @return Upper bound of the bucket containing the percentile, in
+	 *         nanoseconds, but never more than the maximum
+	 */
+	public long getPercentile(double percentile) {
+		if (count == 0)
+			return 0;
+
+		long rank = (long) Math.ceil(count * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank && seen > 0)
+				return Math.min(max, i == BUCKETS - 1 ? Long.MAX_VALUE
+						: (1L << (i + 1)) - 1);
+		}
+		return max;
+	}
+
+	/**
+	 * @return Summary in microseconds
+	 */
+	public String toString() {
+		return String.format("n=%d mean=%.1f p50=%.1f p90=%.1f p99=%.1f max=%.1f",
+				count, getMean() / 1e3, getPercentile(50) / 1e3,
+				getPercentile(90) / 1e3, getPercentile(99) / 1e3, max / 1e3);
+	}
+}
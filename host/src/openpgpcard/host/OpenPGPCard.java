@@ -0,0 +1,595 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Arrays;
+
+import javax.smartcardio.CardException;
+
+/**
+ * Client for the commands of the OpenPGP applet. Takes care of command
+ * chaining, GET RESPONSE and, once enabled, secure messaging.
+ */
+public class OpenPGPCard {
+	public static final byte[] AID = Hex.toBytes("D27600012401");
+
+	public static final int KEY_SIGNATURE = 0xB6;
+	public static final int KEY_DECRYPTION = 0xB8;
+	public static final int KEY_AUTHENTICATION = 0xA4;
+
+	public static final int HASH_SHA256 = 0x08;
+	public static final int HASH_SHA512 = 0x0A;
+
+	public static final int PW1_SIGN = 0x81;
+	public static final int PW1 = 0x82;
+	public static final int PW3 = 0x83;
+
+	public static final int BENCHMARK_RSA = 0x01;
+	public static final int BENCHMARK_SM_WRAP = 0x02;
+	public static final int BENCHMARK_RANDOM = 0x03;
+	public static final int BENCHMARK_WRITE = 0x04;
+	public static final int BENCHMARK_WRITE_ATOMIC = 0x05;
+
+	public static final byte[] PW1_DEFAULT = "123456".getBytes();
+	public static final byte[] PW3_DEFAULT = "12345678".getBytes();
+
+	private static final int SW_OK = 0x9000;
+	private static final int CHUNK_SIZE = 255;
+	private static final int CHUNK_SIZE_SM = 200;
+
+	private final CardTransport transport;
+	private final byte[] aid;
+	private SecureMessaging sm = null;
+
+	public OpenPGPCard(CardTransport transport) {
+		this(transport, AID);
+	}
+
+	/**
+	 * @param transport
+	 *            Transport used to communicate with the card
+	 * @param aid
+	 *            AID used to select the applet, may be a partial AID
+	 */
+	public OpenPGPCard(CardTransport transport, byte[] aid) {
+		this.transport = transport;
+		this.aid = aid.clone();
+	}
+
+	/**
+	 * @return Transport used to communicate with the card
+	 */
+	public CardTransport getTransport() {
+		return transport;
+	}
+
+	/**
+	 * Select the OpenPGP application.
+	 *
+	 * @return FCI returned by the applet
+	 * @throws CardException
+	 */
+	public byte[] select() throws CardException {
+		sm = null;
+		return plainCommand(0x00, 0xA4, 0x04, 0x00, aid, true);
+	}
+
+	/**
+	 * Start secure messaging. The session keys are set using PUT DATA D1 and
+	 * D2, which requires PW3 to be verified. The send sequence counter is
+	 * obtained with GET CHALLENGE.
+	 *
+	 * @param encKey
+	 *            16 byte encryption key
+	 * @param macKey
+	 *            16 byte MAC key
+	 * @throws CardException
+	 */
+	public void startSecureMessaging(byte[] encKey, byte[] macKey)
+			throws CardException {
+		putData(0xD1, encKey);
+		putData(0xD2, macKey);
+
+		sm = null;
+		byte[] ssc = getChallenge(8);
+		sm = new SecureMessaging(encKey, macKey, ssc);
+	}
+
+	/**
+	 * @return True if secure messaging is used for commands
+	 */
+	public boolean isSecureMessaging() {
+		return sm != null;
+	}
+
+	public void verify(int mode, byte[] pin) throws CardException {
+		command(0x00, 0x20, 0x00, mode, pin, false);
+	}
+
+	public void changeReferenceData(int mode, byte[] oldPin, byte[] newPin)
+			throws CardException {
+		command(0x00, 0x24, 0x00, mode, concat(oldPin, newPin), false);
+	}
+
+	public void resetRetryCounter(byte[] resettingCode, byte[] newPin)
+			throws CardException {
+		if (resettingCode == null)
+			command(0x00, 0x2C, 0x02, 0x81, newPin, false);
+		else
+			command(0x00, 0x2C, 0x00, 0x81, concat(resettingCode, newPin),
+					false);
+	}
+
+	public byte[] getData(int tag) throws CardException {
+		return command(0x00, 0xCA, tag >> 8, tag & 0xFF, new byte[0], true);
+	}
+
+	public void putData(int tag, byte[] data) throws CardException {
+		command(0x00, 0xDA, tag >> 8, tag & 0xFF, data, false);
+	}
+
+	/**
+	 * PSO: COMPUTE DIGITAL SIGNATURE
+	 *
+	 * @param digestInfo
+	 *            DigestInfo to be signed
+	 * @return Signature
+	 * @throws CardException
+	 */
+	public byte[] sign(byte[] digestInfo) throws CardException {
+		return command(0x00, 0x2A, 0x9E, 0x9A, digestInfo, true);
+	}
+
+	/**
+	 * PSO: COMPUTE DIGITAL SIGNATURE over data hashed on the card (vendor
+	 * specific)
+	 *
+	 * @param hashAlgorithm
+	 *            OpenPGP hash algorithm ID: HASH_SHA256 or HASH_SHA512
+	 * @param data
+	 *            Data to be hashed and signed, sent with command chaining
+	 * @return Signature
+	 * @throws CardException
+	 */
+	public byte[] hashAndSign(int hashAlgorithm, byte[] data)
+			throws CardException {
+		return command(0x00, 0x2A, 0x9E, 0x80, concat(
+				new byte[] { (byte) hashAlgorithm }, data), true);
+	}
+
+	/**
+	 * PSO: DECIPHER
+	 *
+	 * @param cryptogram
+	 *            RSA cryptogram, the padding indicator is added
+	 * @return Decrypted data
+	 * @throws CardException
+	 */
+	public byte[] decipher(byte[] cryptogram) throws CardException {
+		return command(0x00, 0x2A, 0x80, 0x86, concat(new byte[] { 0x00 },
+				cryptogram), true);
+	}
+
+	/**
+	 * PSO: DECIPHER with the AES key (D5)
+	 *
+	 * @param cryptogram
+	 *            AES cryptogram, a multiple of 16 bytes, the padding indicator
+	 *            is added
+	 * @return Decrypted data
+	 * @throws CardException
+	 */
+	public byte[] decipherAES(byte[] cryptogram) throws CardException {
+		return command(0x00, 0x2A, 0x80, 0x86, concat(new byte[] { 0x02 },
+				cryptogram), true);
+	}
+
+	/**
+	 * PSO: ENCIPHER with the AES key (D5)
+	 *
+	 * @param data
+	 *            Data to be encrypted, a multiple of 16 bytes
+	 * @return Padding indicator 02 followed by the cryptogram
+	 * @throws CardException
+	 */
+	public byte[] encipher(byte[] data) throws CardException {
+		return command(0x00, 0x2A, 0x86, 0x80, data, true);
+	}
+
+	public byte[] internalAuthenticate(byte[] data) throws CardException {
+		return command(0x00, 0x88, 0x00, 0x00, data, true);
+	}
+
+	public byte[] getChallenge(int length) throws CardException {
+		return command(0x00, 0x84, 0x00, 0x00, new byte[0], true, length);
+	}
+
+	/**
+	 * Generate a new key pair.
+	 *
+	 * @param key
+	 *            Key reference (B6, B8 or A4)
+	 * @return Public key template (7F49)
+	 * @throws CardException
+	 */
+	public byte[] generateKey(int key) throws CardException {
+		return command(0x00, 0x47, 0x80, 0x00, new byte[] { (byte) key, 0x00 },
+				true);
+	}
+
+	/**
+	 * Read a public key.
+	 *
+	 * @param key
+	 *            Key reference (B6, B8 or A4)
+	 * @return Public key template (7F49)
+	 * @throws CardException
+	 */
+	public byte[] readPublicKey(int key) throws CardException {
+		return command(0x00, 0x47, 0x81, 0x00, new byte[] { (byte) key, 0x00 },
+				true);
+	}
+
+	/**
+	 * Import a private key using the extended header list (4D).
+	 *
+	 * @param key
+	 *            Key reference (B6, B8 or A4)
+	 * @param privateKey
+	 *            RSA key to import
+	 * @throws CardException
+	 */
+	public void importKey(int key, RSAPrivateCrtKey privateKey)
+			throws CardException {
+		command(0x00, 0xDB, 0x3F, 0xFF, keyImportTemplate(key, privateKey),
+				false);
+	}
+
+	/**
+	 * Vendor specific SELF BENCHMARK: run a primitive a number of times on
+	 * the card. Requires PW3 to be verified.
+	 *
+	 * @param primitive
+	 *            One of the BENCHMARK constants
+	 * @param parameter
+	 *            0 for BENCHMARK_RSA, number of bytes otherwise
+	 * @param iterations
+	 *            Number of iterations, at most 32767
+	 * @return Number of iterations run and the checksum of the results
+	 * @throws CardException
+	 */
+	public int[] selfBenchmark(int primitive, int parameter, int iterations)
+			throws CardException {
+		byte[] response = command(0x00, 0xEE, primitive, parameter,
+				new byte[] { (byte) (iterations >> 8), (byte) iterations },
+				true);
+		if (response.length != 4)
+			throw new CardException("Invalid self benchmark response");
+		return new int[] {
+				((response[0] & 0xFF) << 8) | (response[1] & 0xFF),
+				((response[2] & 0xFF) << 8) | (response[3] & 0xFF) };
+	}
+
+	/**
+	 * Vendor specific GENERATE RESERVE KEYS: generate key pairs for the empty
+	 * slots of the reserve, so GENERATE returns without waiting for the key
+	 * generation. Requires PW3 to be verified.
+	 *
+	 * @param count
+	 *            Maximum number of key pairs to generate, 0 for all empty
+	 *            slots
+	 * @return Number of pre-generated key pairs and the number of slots
+	 * @throws CardException
+	 */
+	public int[] generateReserveKeys(int count) throws CardException {
+		byte[] response = command(0x00, 0xEC, count >> 8, count, new byte[0],
+				true);
+		if (response.length != 2)
+			throw new CardException("Invalid reserve status");
+		return new int[] { response[0] & 0xFF, response[1] & 0xFF };
+	}
+
+	/**
+	 * Build the extended header list (4D) for importing an RSA key.
+	 *
+	 * @param key
+	 *            Key reference (B6, B8 or A4)
+	 * @param privateKey
+	 *            RSA key to import
+	 * @return Extended header list
+	 */
+	public static byte[] keyImportTemplate(int key, RSAPrivateCrtKey privateKey) {
+		byte[][] values = { unsigned(privateKey.getPublicExponent()),
+				unsigned(privateKey.getPrimeP()),
+				unsigned(privateKey.getPrimeQ()),
+				unsigned(privateKey.getCrtCoefficient()),
+				unsigned(privateKey.getPrimeExponentP()),
+				unsigned(privateKey.getPrimeExponentQ()) };
+
+		ByteArrayOutputStream template = new ByteArrayOutputStream();
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		for (int i = 0; i < values.length; i++) {
+			template.write(0x91 + i);
+			writeLength(template, values[i].length);
+			data.write(values[i], 0, values[i].length);
+		}
+
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		content.write(key);
+		content.write(0x00);
+		writeTLV(content, 0x7F48, template.toByteArray());
+		writeTLV(content, 0x5F48, data.toByteArray());
+
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		writeTLV(header, 0x4D, content.toByteArray());
+		return header.toByteArray();
+	}
+
+	/**
+	 * Find a data object in BER-TLV data, looking into constructed data
+	 * objects.
+	 * 
+	 * @param data
+	 *            BER-TLV encoded data objects
+	 * @param tag
+	 *            Tag of the data object
+	 * @return Value of the first data object with the tag, or null
+	 */
+	public static byte[] find(byte[] data, int tag) {
+		int offset = 0;
+		while (offset < data.length) {
+			int t = data[offset++] & 0xFF;
+			boolean constructed = (t & 0x20) != 0;
+			if ((t & 0x1F) == 0x1F)
+				t = (t << 8) | (data[offset++] & 0xFF);
+
+			int length = data[offset++] & 0xFF;
+			if (length == 0x81) {
+				length = data[offset++] & 0xFF;
+			} else if (length == 0x82) {
+				length = ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+				offset += 2;
+			}
+
+			if (t == tag)
+				return Arrays.copyOfRange(data, offset, offset + length);
+			// Look into constructed data objects, skip primitive ones
+			if (!constructed)
+				offset += length;
+		}
+		return null;
+	}
+
+	/**
+	 * Convert a public key template (7F49) to an RSA public key.
+	 *
+	 * @param template
+	 *            Public key template as returned by GENERATE ASYMMETRIC KEY
+	 *            PAIR
+	 * @return RSA public key
+	 * @throws CardException
+	 *             If the template could not be parsed
+	 */
+	public static RSAPublicKey toPublicKey(byte[] template) throws CardException {
+		int offset = 2;
+		offset = readLength(template, offset)[1];
+
+		BigInteger modulus = null;
+		BigInteger exponent = null;
+		while (offset < template.length) {
+			int tag = template[offset++] & 0xFF;
+			int[] length = readLength(template, offset);
+			BigInteger value = new BigInteger(1, Arrays.copyOfRange(template,
+					length[1], length[1] + length[0]));
+			if (tag == 0x81)
+				modulus = value;
+			else if (tag == 0x82)
+				exponent = value;
+			offset = length[1] + length[0];
+		}
+
+		if (modulus == null || exponent == null)
+			throw new CardException("Incomplete public key template");
+
+		try {
+			return (RSAPublicKey) KeyFactory.getInstance("RSA").generatePublic(
+					new RSAPublicKeySpec(modulus, exponent));
+		} catch (GeneralSecurityException e) {
+			throw new CardException(e);
+		}
+	}
+
+	/**
+	 * @return Public part of an RSA private key
+	 */
+	public static RSAPublicKey toPublicKey(RSAPrivateCrtKey privateKey) {
+		try {
+			return (RSAPublicKey) KeyFactory.getInstance("RSA").generatePublic(
+					new RSAPublicKeySpec(privateKey.getModulus(), privateKey
+							.getPublicExponent()));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Send a command, using secure messaging if it has been started.
+	 *
+	 * @param cla
+	 *            Class byte
+	 * @param ins
+	 *            Instruction byte
+	 * @param p1
+	 *            Parameter 1
+	 * @param p2
+	 *            Parameter 2
+	 * @param data
+	 *            Command data, split using command chaining if needed
+	 * @param expectResponse
+	 *            Whether response data is expected
+	 * @return Response data, including all data retrieved with GET RESPONSE
+	 * @throws CardException
+	 *             If the card returned an error status
+	 */
+	public byte[] command(int cla, int ins, int p1, int p2, byte[] data,
+			boolean expectResponse) throws CardException {
+		return command(cla, ins, p1, p2, data, expectResponse, 0);
+	}
+
+	private byte[] command(int cla, int ins, int p1, int p2, byte[] data,
+			boolean expectResponse, int le) throws CardException {
+		if (sm == null)
+			return plainCommand(cla, ins, p1, p2, data, expectResponse, le);
+
+		byte[] response = null;
+		int chunk = CHUNK_SIZE_SM;
+		for (int offset = 0; offset < data.length || response == null; offset += chunk) {
+			boolean last = offset + chunk >= data.length;
+			byte[] part = Arrays.copyOfRange(data, offset,
+					Math.min(data.length, offset + chunk));
+			response = sm.unwrap(transport.transmit(sm.wrap(
+					last ? cla : cla | 0x10, ins, p1, p2, part,
+					last && expectResponse)));
+			if (!last)
+				check(ins, status(response));
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(response, 0, response.length - 2);
+		while ((status(response) & 0xFF00) == 0x6100) {
+			response = sm.unwrap(transport.transmit(sm.wrap(0x00, 0xC0, 0x00,
+					0x00, new byte[0], true)));
+			out.write(response, 0, response.length - 2);
+		}
+		check(ins, status(response));
+		return out.toByteArray();
+	}
+
+	private byte[] plainCommand(int cla, int ins, int p1, int p2, byte[] data,
+			boolean expectResponse) throws CardException {
+		return plainCommand(cla, ins, p1, p2, data, expectResponse, 0);
+	}
+
+	private byte[] plainCommand(int cla, int ins, int p1, int p2, byte[] data,
+			boolean expectResponse, int le) throws CardException {
+		byte[] response = null;
+		for (int offset = 0; offset < data.length || response == null; offset += CHUNK_SIZE) {
+			boolean last = offset + CHUNK_SIZE >= data.length;
+			int length = Math.min(data.length - offset, CHUNK_SIZE);
+			response = transport.transmit(apdu(last ? cla : cla | 0x10, ins,
+					p1, p2, data, offset, length, last && expectResponse, le));
+			if (!last)
+				check(ins, status(response));
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(response, 0, response.length - 2);
+		while ((status(response) & 0xFF00) == 0x6100) {
+			response = transport.transmit(apdu(0x00, 0xC0, 0x00, 0x00,
+					new byte[0], 0, 0, true, status(response) & 0xFF));
+			out.write(response, 0, response.length - 2);
+		}
+		check(ins, status(response));
+		return out.toByteArray();
+	}
+
+	/**
+	 * Encode a short command APDU.
+	 */
+	private static byte[] apdu(int cla, int ins, int p1, int p2, byte[] data,
+			int offset, int length, boolean expectResponse, int le) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(cla);
+		out.write(ins);
+		out.write(p1);
+		out.write(p2);
+		if (length > 0) {
+			out.write(length);
+			out.write(data, offset, length);
+		}
+		if (expectResponse)
+			out.write(le);
+		return out.toByteArray();
+	}
+
+	private static int status(byte[] response) {
+		return ((response[response.length - 2] & 0xFF) << 8)
+				| (response[response.length - 1] & 0xFF);
+	}
+
+	private static void check(int ins, int status) throws CardStatusException {
+		if (status != SW_OK)
+			throw new CardStatusException(ins, status);
+	}
+
+	private static byte[] concat(byte[] a, byte[] b) {
+		byte[] result = Arrays.copyOf(a, a.length + b.length);
+		System.arraycopy(b, 0, result, a.length, b.length);
+		return result;
+	}
+
+	private static byte[] unsigned(BigInteger value) {
+		byte[] bytes = value.toByteArray();
+		if (bytes.length > 1 && bytes[0] == 0)
+			return Arrays.copyOfRange(bytes, 1, bytes.length);
+		return bytes;
+	}
+
+	private static void writeTLV(ByteArrayOutputStream out, int tag, byte[] value) {
+		if (tag > 0xFF)
+			out.write(tag >> 8);
+		out.write(tag);
+		writeLength(out, value.length);
+		out.write(value, 0, value.length);
+	}
+
+	private static void writeLength(ByteArrayOutputStream out, int length) {
+		if (length < 0x80) {
+			out.write(length);
+		} else if (length <= 0xFF) {
+			out.write(0x81);
+			out.write(length);
+		} else {
+			out.write(0x82);
+			out.write(length >> 8);
+			out.write(length);
+		}
+	}
+
+	/**
+	 * @return Length and offset of the value
+	 */
+	private static int[] readLength(byte[] data, int offset) {
+		int first = data[offset] & 0xFF;
+		if (first < 0x80)
+			return new int[] { first, offset + 1 };
+		if (first == 0x81)
+			return new int[] { data[offset + 1] & 0xFF, offset + 2 };
+		return new int[] {
+				((data[offset + 1] & 0xFF) << 8) | (data[offset + 2] & 0xFF),
+				offset + 3 };
+	}
+}
@@ -0,0 +1,54 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CommandAPDU;
+
+/**
+ * Transport to a card in a PC/SC reader using javax.smartcardio.
+ */
+public class PcscTransport implements CardTransport {
+	private final Card card;
+	private final CardChannel channel;
+
+	/**
+	 * Connect to the card in the given reader.
+	 *
+	 * @param terminal
+	 *            Reader containing the card
+	 * @throws CardException
+	 *             If no connection could be established
+	 */
+	public PcscTransport(CardTerminal terminal) throws CardException {
+		card = terminal.connect("*");
+		channel = card.getBasicChannel();
+	}
+
+	public byte[] transmit(byte[] command) throws CardException {
+		return channel.transmit(new CommandAPDU(command)).getBytes();
+	}
+
+	public void close() throws CardException {
+		card.disconnect(false);
+	}
+}
@@ -0,0 +1,262 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host;
+
+import java.io.ByteArrayOutputStream;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.smartcardio.CardException;
+
+/**
+ * Host side of the secure messaging implemented by OpenPGPSecureMessaging:
+ * 3DES encryption in CBC mode and a retail MAC (ISO 9797-1 algorithm 3),
+ * both with ISO 9797-1 padding method 2.
+ */
+public class SecureMessaging {
+	private static final int BLOCK_SIZE = 8;
+	private static final byte[] ZERO_IV = new byte[BLOCK_SIZE];
+
+	private final SecretKeySpec encKey;
+	private final SecretKeySpec macKey1;
+	private final SecretKeySpec macKey2;
+	private final byte[] ssc;
+
+	/**
+	 * Create a secure messaging session.
+	 *
+	 * @param encKey
+	 *            16 byte 3DES key for encryption
+	 * @param macKey
+	 *            16 byte 3DES key for the MAC
+	 * @param ssc
+	 *            8 byte send sequence counter, as returned by GET CHALLENGE
+	 */
+	public SecureMessaging(byte[] encKey, byte[] macKey, byte[] ssc) {
+		if (encKey.length != 16 || macKey.length != 16 || ssc.length != 8)
+			throw new IllegalArgumentException("Invalid key or SSC length");
+
+		byte[] key = new byte[24];
+		System.arraycopy(encKey, 0, key, 0, 16);
+		System.arraycopy(encKey, 0, key, 16, 8);
+		this.encKey = new SecretKeySpec(key, "DESede");
+		this.macKey1 = new SecretKeySpec(macKey, 0, 8, "DES");
+		this.macKey2 = new SecretKeySpec(macKey, 8, 8, "DES");
+		this.ssc = ssc.clone();
+	}
+
+	/**
+	 * Wrap a command APDU.
+	 *
+	 * @param cla
+	 *            Class byte, the secure messaging bits are added
+	 * @param ins
+	 *            Instruction byte
+	 * @param p1
+	 *            Parameter 1
+	 * @param p2
+	 *            Parameter 2
+	 * @param data
+	 *            Command data, may be empty
+	 * @param expectResponse
+	 *            Whether response data is expected (adds DO97)
+	 * @return Wrapped command APDU
+	 * @throws CardException
+	 *             If the command could not be wrapped
+	 */
+	public byte[] wrap(int cla, int ins, int p1, int p2, byte[] data,
+			boolean expectResponse) throws CardException {
+		byte[] header = { (byte) (cla | 0x0C), (byte) ins, (byte) p1, (byte) p2 };
+
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		if (data.length > 0) {
+			byte[] cryptogram = crypt(Cipher.ENCRYPT_MODE, pad(data));
+			body.write(0x87);
+			writeLength(body, cryptogram.length + 1);
+			body.write(0x01);
+			body.write(cryptogram, 0, cryptogram.length);
+		}
+		if (expectResponse) {
+			body.write(0x97);
+			body.write(0x01);
+			body.write(0x00);
+		}
+
+		incrementSSC();
+		ByteArrayOutputStream input = new ByteArrayOutputStream();
+		input.write(ssc, 0, ssc.length);
+		input.write(header, 0, header.length);
+		input.write(0x80);
+		input.write(new byte[BLOCK_SIZE - header.length - 1], 0,
+				BLOCK_SIZE - header.length - 1);
+		byte[] dos = body.toByteArray();
+		input.write(dos, 0, dos.length);
+		byte[] mac = mac(input.toByteArray());
+
+		body.write(0x8E);
+		body.write(0x08);
+		body.write(mac, 0, mac.length);
+
+		byte[] wrapped = body.toByteArray();
+		if (wrapped.length > 255)
+			throw new CardException("Wrapped command too long");
+
+		ByteArrayOutputStream command = new ByteArrayOutputStream();
+		command.write(header, 0, header.length);
+		command.write(wrapped.length);
+		command.write(wrapped, 0, wrapped.length);
+		command.write(0x00);
+		return command.toByteArray();
+	}
+
+	/**
+	 * Unwrap a response APDU.
+	 *
+	 * @param response
+	 *            Wrapped response APDU including the status word
+	 * @return Plain response data followed by the status word from DO99
+	 * @throws CardException
+	 *             If the MAC is invalid or the response is malformed
+	 */
+	public byte[] unwrap(byte[] response) throws CardException {
+		int end = response.length - 2;
+		int offset = 0;
+		byte[] data = new byte[0];
+
+		incrementSSC();
+
+		if (end <= 0)
+			throw new CardException("Response not protected by secure messaging");
+
+		if (response[offset] == (byte) 0x87) {
+			offset++;
+			int[] length = readLength(response, offset);
+			offset = length[1];
+			if (response[offset] != 0x01)
+				throw new CardException("Unsupported padding indicator");
+			byte[] cryptogram = Arrays.copyOfRange(response, offset + 1,
+					offset + length[0]);
+			data = unpad(crypt(Cipher.DECRYPT_MODE, cryptogram));
+			offset += length[0];
+		}
+
+		if (response[offset] != (byte) 0x99 || response[offset + 1] != 0x02)
+			throw new CardException("Missing status word in response");
+		int status = offset + 2;
+		offset += 4;
+
+		if (response[offset] != (byte) 0x8E || response[offset + 1] != 0x08)
+			throw new CardException("Missing MAC in response");
+
+		ByteArrayOutputStream input = new ByteArrayOutputStream();
+		input.write(ssc, 0, ssc.length);
+		input.write(response, 0, offset);
+		byte[] mac = mac(input.toByteArray());
+		if (!Arrays.equals(mac, Arrays.copyOfRange(response, offset + 2,
+				offset + 10)))
+			throw new CardException("Invalid MAC in response");
+
+		byte[] plain = Arrays.copyOf(data, data.length + 2);
+		plain[data.length] = response[status];
+		plain[data.length + 1] = response[status + 1];
+		return plain;
+	}
+
+	private void incrementSSC() {
+		for (int i = ssc.length - 1; i >= 0; i--) {
+			if (++ssc[i] != 0)
+				break;
+		}
+	}
+
+	private byte[] crypt(int mode, byte[] data) throws CardException {
+		try {
+			Cipher cipher = Cipher.getInstance("DESede/CBC/NoPadding");
+			cipher.init(mode, encKey, new IvParameterSpec(ZERO_IV));
+			return cipher.doFinal(data);
+		} catch (GeneralSecurityException e) {
+			throw new CardException(e);
+		}
+	}
+
+	private byte[] mac(byte[] data) throws CardException {
+		try {
+			byte[] padded = pad(data);
+			Cipher des = Cipher.getInstance("DES/CBC/NoPadding");
+			des.init(Cipher.ENCRYPT_MODE, macKey1, new IvParameterSpec(ZERO_IV));
+			byte[] cbc = des.doFinal(padded);
+			byte[] mac = Arrays.copyOfRange(cbc, cbc.length - BLOCK_SIZE,
+					cbc.length);
+
+			Cipher final1 = Cipher.getInstance("DES/ECB/NoPadding");
+			final1.init(Cipher.DECRYPT_MODE, macKey2);
+			mac = final1.doFinal(mac);
+			final1.init(Cipher.ENCRYPT_MODE, macKey1);
+			return final1.doFinal(mac);
+		} catch (GeneralSecurityException e) {
+			throw new CardException(e);
+		}
+	}
+
+	private static byte[] pad(byte[] data) {
+		byte[] padded = Arrays.copyOf(data, (data.length / BLOCK_SIZE + 1)
+				* BLOCK_SIZE);
+		padded[data.length] = (byte) 0x80;
+		return padded;
+	}
+
+	private static byte[] unpad(byte[] data) throws CardException {
+		int i = data.length - 1;
+		while (i >= 0 && data[i] == 0)
+			i--;
+		if (i < 0 || data[i] != (byte) 0x80)
+			throw new CardException("Invalid padding");
+		return Arrays.copyOf(data, i);
+	}
+
+	private static void writeLength(ByteArrayOutputStream out, int length) {
+		if (length < 0x80) {
+			out.write(length);
+		} else if (length <= 0xFF) {
+			out.write(0x81);
+			out.write(length);
+		} else {
+			out.write(0x82);
+			out.write(length >> 8);
+			out.write(length);
+		}
+	}
+
+	/**
+	 * @return Length and offset of the value
+	 */
+	private static int[] readLength(byte[] data, int offset) {
+		int first = data[offset] & 0xFF;
+		if (first < 0x80)
+			return new int[] { first, offset + 1 };
+		if (first == 0x81)
+			return new int[] { data[offset + 1] & 0xFF, offset + 2 };
+		return new int[] {
+				((data[offset + 1] & 0xFF) << 8) | (data[offset + 2] & 0xFF),
+				offset + 3 };
+	}
+}
@@ -0,0 +1,304 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host.cache;
+
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.util.Arrays;
+
+import javax.smartcardio.CardException;
+
+import openpgpcard.host.CardTransport;
+import openpgpcard.host.Hex;
+import openpgpcard.host.OpenPGPCard;
+
+/**
+ * OpenPGPCard that answers GET DATA and reading public keys from a
+ * DataObjectCache. The cache key of a card is the manufacturer and serial
+ * number from its AID.
+ * 
+ * Entries are valid for the change counter (E1) and PW status bytes (C4) they
+ * were read with. The card increments the change counter on every change of
+ * a data object or key, and the PW status bytes contain the retry counters.
+ * Both are part of the FCI, so the state is known after SELECT without extra
+ * commands. Before every other cached read the change counter is read again,
+ * and for objects containing the PW status bytes also C4, so changes by
+ * other clients or on other logical channels are noticed. A client that is
+ * the only one using the card can turn this off with setCheckReads(), the
+ * state is then only read on SELECT and after changes by this client.
+ * 
+ * After a write through this client the objects it affected are removed and
+ * the other entries are kept if the change counter shows that no other
+ * change happened. After VERIFY and other PIN commands the state is read
+ * again before the next cached read.
+ * 
+ * Objects that change without a change of the state, such as the signature
+ * counter, are never cached.
+ */
+public class CachingCard extends OpenPGPCard {
+	// Data objects changing without a change of the change counter
+	private static final int[] UNCACHED = { 0x7A, 0x93, 0xC4, 0xE1, 0xE4,
+			0xE5 };
+	// Data objects containing or summarizing other data objects and keys
+	private static final int[] AGGREGATES = { 0x65, 0x6E, 0xE2, 0xE3 };
+	// Data objects containing the PW status bytes
+	private static final int[] PW_STATUS_OBJECTS = { 0x6E };
+	private static final int PW_STATUS_LENGTH = 7;
+
+	private final DataObjectCache cache;
+
+	private String id = null;
+	// Change counter followed by the PW status bytes, null if unknown
+	private byte[] stamp = null;
+	// Whether the state is read again before cached reads
+	private boolean checkReads = true;
+	// Whether the state was read since the last cached read
+	private boolean checked = false;
+
+	public CachingCard(CardTransport transport, DataObjectCache cache) {
+		super(transport);
+		this.cache = cache;
+	}
+
+	/**
+	 * @param transport
+	 *            Transport used to communicate with the card
+	 * @param aid
+	 *            AID used to select the applet, may be a partial AID
+	 * @param cache
+	 *            Cache shared with the clients of other cards
+	 */
+	public CachingCard(CardTransport transport, byte[] aid,
+			DataObjectCache cache) {
+		super(transport, aid);
+		this.cache = cache;
+	}
+
+	/**
+	 * @param checkReads
+	 *            Whether the change counter is read before every cached read
+	 *            (default). Without, changes by other clients are only
+	 *            noticed on the next SELECT.
+	 */
+	public void setCheckReads(boolean checkReads) {
+		this.checkReads = checkReads;
+	}
+
+	/**
+	 * @return Card identifier used in the cache: manufacturer and serial
+	 *         number, or null if not selected
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * Select the applet and take the card identifier and state from the FCI.
+	 */
+	public byte[] select() throws CardException {
+		id = null;
+		stamp = null;
+		byte[] fci = super.select();
+
+		byte[] aid = find(fci, 0x84);
+		if (aid == null || aid.length < 14)
+			throw new CardException("No AID in the FCI");
+		id = Hex.toString(aid, 8, 6);
+
+		byte[] counter = find(fci, 0xE1);
+		byte[] status = find(fci, 0xC4);
+		if (counter != null && status != null)
+			stamp = concat(counter, status);
+		checked = stamp != null;
+
+		return fci;
+	}
+
+	public byte[] getData(int tag) throws CardException {
+		if (id == null || !isCached(tag))
+			return super.getData(tag);
+
+		String object = String.format("DO %04X", tag);
+		byte[] value = cache.get(id, object, checkStamp(contains(
+				PW_STATUS_OBJECTS, tag)));
+		if (value == null) {
+			value = super.getData(tag);
+			cache.put(id, object, stamp, value);
+		}
+		return value;
+	}
+
+	public byte[] readPublicKey(int key) throws CardException {
+		if (id == null)
+			return super.readPublicKey(key);
+
+		String object = String.format("PK %02X", key);
+		byte[] value = cache.get(id, object, checkStamp(false));
+		if (value == null) {
+			value = super.readPublicKey(key);
+			cache.put(id, object, stamp, value);
+		}
+		return value;
+	}
+
+	public void putData(int tag, byte[] data) throws CardException {
+		try {
+			super.putData(tag, data);
+		} catch (CardException e) {
+			stamp = null;
+			throw e;
+		}
+		changed(String.format("DO %04X", tag));
+	}
+
+	public byte[] generateKey(int key) throws CardException {
+		byte[] value;
+		try {
+			value = super.generateKey(key);
+		} catch (CardException e) {
+			stamp = null;
+			throw e;
+		}
+		changed(String.format("PK %02X", key));
+
+		// The response is the new public key
+		if (id != null)
+			cache.put(id, String.format("PK %02X", key), stamp, value);
+		return value;
+	}
+
+	public void importKey(int key, RSAPrivateCrtKey privateKey)
+			throws CardException {
+		try {
+			super.importKey(key, privateKey);
+		} catch (CardException e) {
+			stamp = null;
+			throw e;
+		}
+		changed(String.format("PK %02X", key));
+	}
+
+	public void verify(int mode, byte[] pin) throws CardException {
+		stamp = null;
+		super.verify(mode, pin);
+	}
+
+	public void changeReferenceData(int mode, byte[] oldPin, byte[] newPin)
+			throws CardException {
+		stamp = null;
+		super.changeReferenceData(mode, oldPin, newPin);
+	}
+
+	public void resetRetryCounter(byte[] resettingCode, byte[] newPin)
+			throws CardException {
+		stamp = null;
+		super.resetRetryCounter(resettingCode, newPin);
+	}
+
+	private static boolean isCached(int tag) {
+		return !contains(UNCACHED, tag);
+	}
+
+	private static boolean contains(int[] tags, int tag) {
+		for (int t : tags) {
+			if (tag == t)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return Current state of the card, read from the card if unknown
+	 */
+	private byte[] getStamp() throws CardException {
+		if (stamp == null) {
+			stamp = concat(super.getData(0xE1), super.getData(0xC4));
+			checked = true;
+		}
+		return stamp;
+	}
+
+	/**
+	 * Get the state of the card for a cached read. Unless reads are not
+	 * checked or the state was just read, the change counter is read again.
+	 * 
+	 * @param pwStatus
+	 *            Whether the PW status bytes are read again as well
+	 * @return Current state of the card
+	 */
+	private byte[] checkStamp(boolean pwStatus) throws CardException {
+		if (checkReads && stamp != null && !checked) {
+			byte[] counter = super.getData(0xE1);
+			byte[] status = pwStatus ? super.getData(0xC4) : Arrays
+					.copyOfRange(stamp, stamp.length - PW_STATUS_LENGTH,
+							stamp.length);
+			stamp = concat(counter, status);
+		}
+
+		byte[] current = getStamp();
+		checked = false;
+		return current;
+	}
+
+	/**
+	 * Remove a changed object and the constructed objects containing it, and
+	 * keep the other entries if the change counter was incremented only by
+	 * this change.
+	 */
+	private void changed(String object) throws CardException {
+		if (id == null)
+			return;
+
+		cache.remove(id, object);
+		for (int tag : AGGREGATES)
+			cache.remove(id, String.format("DO %04X", tag));
+
+		byte[] before = stamp;
+		stamp = null;
+		byte[] after = getStamp();
+		if (before != null && before.length == after.length
+				&& isNext(before, after))
+			cache.restamp(id, before, after);
+	}
+
+	/**
+	 * @return True if the change counter of after is one more than that of
+	 *         before and the PW status bytes are equal
+	 */
+	private static boolean isNext(byte[] before, byte[] after) {
+		int length = before.length - PW_STATUS_LENGTH;
+		if (length <= 0)
+			return false;
+
+		byte[] next = Arrays.copyOf(before, length);
+		for (int i = length - 1; i >= 0; i--) {
+			if (++next[i] != 0)
+				break;
+		}
+		return Arrays.equals(next, Arrays.copyOf(after, length))
+				&& Arrays.equals(Arrays.copyOfRange(before, length,
+						before.length), Arrays.copyOfRange(after, length,
+						after.length));
+	}
+
+	private static byte[] concat(byte[] a, byte[] b) {
+		byte[] result = Arrays.copyOf(a, a.length + b.length);
+		System.arraycopy(b, 0, result, a.length, b.length);
+		return result;
+	}
+}
@@ -0,0 +1,199 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host.cache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import openpgpcard.host.Hex;
+
+/**
+ * Responses of data objects, for several cards. Every entry is stored with
+ * the state of the card it was read in, the stamp, and is only returned for
+ * the same stamp. The least recently used entries are removed when the cache
+ * is full. Thread safe, so it can be shared by the clients of several cards.
+ */
+public class DataObjectCache {
+	private final int capacity;
+	private final LinkedHashMap<String, Entry> entries;
+
+	private long hits = 0;
+	private long misses = 0;
+
+	private static class Entry {
+		final byte[] stamp;
+		final byte[] value;
+
+		Entry(byte[] stamp, byte[] value) {
+			this.stamp = stamp;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * @param capacity
+	 *            Maximum number of entries
+	 */
+	public DataObjectCache(final int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+
+		this.capacity = capacity;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(
+					Map.Entry<String, DataObjectCache.Entry> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Load a cache stored with store(). Entries beyond the capacity are
+	 * dropped.
+	 */
+	public static DataObjectCache load(File file, int capacity)
+			throws IOException {
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+
+		DataObjectCache cache = new DataObjectCache(capacity);
+		for (String key : properties.stringPropertyNames()) {
+			// The value of an empty data object is left out
+			String[] value = properties.getProperty(key).trim().split(" ", -1);
+			if (value.length > 2 || value[0].isEmpty())
+				throw new IOException("Invalid cache entry: " + key);
+			cache.entries.put(key, new Entry(Hex.toBytes(value[0]),
+					value.length == 2 ? Hex.toBytes(value[1]) : new byte[0]));
+		}
+		return cache;
+	}
+
+	/**
+	 * Store the entries as properties with keys "card.object" and the stamp
+	 * and value in hexadecimal as value.
+	 */
+	public synchronized void store(File file) throws IOException {
+		Properties properties = new Properties();
+		for (Map.Entry<String, Entry> entry : entries.entrySet())
+			properties.setProperty(entry.getKey(), Hex.toString(entry
+					.getValue().stamp)
+					+ " " + Hex.toString(entry.getValue().value));
+
+		OutputStream out = new FileOutputStream(file);
+		try {
+			properties.store(out, "Data object cache");
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @param card
+	 *            Card identifier
+	 * @param object
+	 *            Name of the data object
+	 * @param stamp
+	 *            Current state of the card
+	 * @return Cached value, or null if not cached for this state
+	 */
+	public synchronized byte[] get(String card, String object, byte[] stamp) {
+		Entry entry = entries.get(key(card, object));
+		if (entry == null || !Arrays.equals(entry.stamp, stamp)) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return entry.value.clone();
+	}
+
+	public synchronized void put(String card, String object, byte[] stamp,
+			byte[] value) {
+		entries.put(key(card, object), new Entry(stamp.clone(), value.clone()));
+	}
+
+	public synchronized void remove(String card, String object) {
+		entries.remove(key(card, object));
+	}
+
+	/**
+	 * Move the entries of a card read in one state to another state, after a
+	 * change that did not affect them.
+	 */
+	public synchronized void restamp(String card, byte[] from, byte[] to) {
+		String prefix = card + ".";
+		for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+			if (entry.getKey().startsWith(prefix)
+					&& Arrays.equals(entry.getValue().stamp, from))
+				entry.setValue(new Entry(to.clone(), entry.getValue().value));
+		}
+	}
+
+	/**
+	 * Remove all entries of a card.
+	 */
+	public synchronized void clear(String card) {
+		String prefix = card + ".";
+		for (Iterator<String> i = entries.keySet().iterator(); i.hasNext();) {
+			if (i.next().startsWith(prefix))
+				i.remove();
+		}
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return Number of lookups answered from the cache
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return Number of lookups not answered from the cache
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	private static String key(String card, String object) {
+		return card + "." + object;
+	}
+}
@@ -0,0 +1,88 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host.daemon;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+import openpgpcard.host.CommandNames;
+
+/**
+ * Response times of a card, used to slow down simulated cards to the speed
+ * of a real chip. The model is read from a properties file with the time in
+ * milliseconds per command name (as given by CommandNames), where a name
+ * also matches longer names starting with it, e.g. "GENERATE" matches
+ * "GENERATE 80". "default" is used for other commands and "byte.us" adds a
+ * transfer time in microseconds per byte of the command and response.
+ */
+public class LatencyModel {
+	/**
+	 * Model without any delay.
+	 */
+	public static final LatencyModel NONE = new LatencyModel(new Properties());
+
+	private final Properties times;
+	private final long defaultMicros;
+	private final long byteMicros;
+
+	private LatencyModel(Properties times) {
+		this.times = times;
+		this.defaultMicros = millisToMicros(times.getProperty("default", "0"));
+		this.byteMicros = Long.parseLong(times.getProperty("byte.us", "0")
+				.trim());
+	}
+
+	public static LatencyModel load(File file) throws IOException {
+		Properties times = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			times.load(in);
+		} finally {
+			in.close();
+		}
+		return new LatencyModel(times);
+	}
+
+	/**
+	 * @param command
+	 *            Command APDU
+	 * @param responseLength
+	 *            Length of the response APDU
+	 * @return Response time of the command in microseconds
+	 */
+	public long getMicros(byte[] command, int responseLength) {
+		String name = CommandNames.name(command);
+		long micros = defaultMicros;
+		int matched = -1;
+		for (String key : times.stringPropertyNames()) {
+			if (name.startsWith(key) && key.length() > matched) {
+				micros = millisToMicros(times.getProperty(key));
+				matched = key.length();
+			}
+		}
+		return micros + byteMicros * (command.length + responseLength);
+	}
+
+	private static long millisToMicros(String millis) {
+		return Math.round(Double.parseDouble(millis.trim()) * 1000);
+	}
+}
@@ -0,0 +1,141 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host.daemon;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.smartcardio.CardException;
+
+import openpgpcard.host.Hex;
+import openpgpcard.host.sim.CardState;
+import openpgpcard.host.sim.SimulatedCard;
+import openpgpcard.host.trace.TraceReplay;
+
+/**
+ * Simulated card of the daemon with its state file. The state is loaded when
+ * the card is created and saved when the card is powered off or reset, or
+ * by save().
+ * 
+ * Every virtual card has its own simulator runtime, so cards process
+ * commands in parallel, as far as the processors of the host allow. The
+ * latency of the model is added on top of the processing time.
+ */
+public class VirtualCard {
+	/**
+	 * Minimal ATR for T=1.
+	 */
+	public static final byte[] ATR = Hex.toBytes("3B80800101");
+
+	private final String name;
+	private final File stateFile;
+	private final LatencyModel latency;
+	private final SimulatedCard card;
+	private boolean dirty = false;
+	private long commands = 0;
+
+	/**
+	 * Install the applet and restore its state from the state file. If the
+	 * file does not exist, the card starts empty or personalized with the
+	 * test keys of CardFixture.
+	 * 
+	 * @param name
+	 *            Name used in messages
+	 * @param stateFile
+	 *            State file of the card
+	 * @param parameters
+	 *            Applet specific install parameters
+	 * @param personalize
+	 *            Personalize a new card
+	 * @param latency
+	 *            Response times added to the commands
+	 */
+	public VirtualCard(String name, File stateFile, byte[] parameters,
+			boolean personalize, LatencyModel latency) throws IOException,
+			CardException {
+		this.name = name;
+		this.stateFile = stateFile;
+		this.latency = latency;
+
+		card = new SimulatedCard(parameters);
+		card.setProtocol(SimulatedCard.PROTOCOL_T1);
+		if (stateFile.exists()) {
+			CardState.read(stateFile).restore(card);
+		} else {
+			if (personalize)
+				TraceReplay.personalize(card);
+			dirty = true;
+		}
+		save();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return Number of commands processed
+	 */
+	public synchronized long getCommands() {
+		return commands;
+	}
+
+	/**
+	 * Remove and insert the card: the state is saved and the card reset.
+	 */
+	public synchronized void reset() throws IOException {
+		card.reset();
+		save();
+	}
+
+	/**
+	 * Process a command APDU and wait for the response time of the latency
+	 * model.
+	 * 
+	 * @return Response APDU
+	 */
+	public synchronized byte[] transmit(byte[] command) throws CardException {
+		long start = System.nanoTime();
+		byte[] response = card.transmit(command);
+		dirty = true;
+		commands++;
+
+		long wait = latency.getMicros(command, response.length)
+				- (System.nanoTime() - start) / 1000;
+		if (wait > 0) {
+			try {
+				Thread.sleep(wait / 1000, (int) (wait % 1000) * 1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return response;
+	}
+
+	/**
+	 * Save the state if commands were processed since the last save. This
+	 * resets the card.
+	 */
+	public synchronized void save() throws IOException {
+		if (!dirty)
+			return;
+		CardState.save(card).write(stateFile);
+		dirty = false;
+	}
+}
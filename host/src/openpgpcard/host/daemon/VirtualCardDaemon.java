@@ -0,0 +1,254 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host.daemon;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import openpgpcard.host.Hex;
+
+/**
+ * Daemon hosting simulated OpenPGP cards for load tests of host software.
+ * Every card has a state file in the state directory and is connected in
+ * one of two ways:
+ * 
+ * - --vpcd host:port connects card i to the virtual reader i of vsmartcard's
+ * vpcd at port + i, so PC/SC applications like scdaemon see the cards as
+ * cards in a reader. vpcd has to be configured with enough readers.
+ * 
+ * - --listen port accepts connections for card i at port + i, using the
+ * same protocol, for clients that do not need PC/SC.
+ * 
+ * The protocol of vpcd frames every message by its length as two bytes, big
+ * endian. A message of one byte is a control message: 00 power off, 01 power
+ * on, 02 reset and 04 get ATR. Other messages are command APDUs, answered
+ * with the response APDU.
+ * 
+ * Usage: VirtualCardDaemon [--cards n] [--state dir] [--vpcd host:port |
+ * --listen port] [--latency file] [--personalize] [--parameters hex]
+ * [--stats seconds]
+ */
+public class VirtualCardDaemon {
+	public static final int VPCD_PORT = 35963;
+
+	private static final int POWER_OFF = 0x00;
+	private static final int POWER_ON = 0x01;
+	private static final int RESET = 0x02;
+	private static final int GET_ATR = 0x04;
+
+	private final VirtualCard card;
+
+	private VirtualCardDaemon(VirtualCard card) {
+		this.card = card;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int cards = 1;
+		File stateDir = new File("cards");
+		String vpcd = null;
+		int listen = -1;
+		LatencyModel latency = LatencyModel.NONE;
+		boolean personalize = false;
+		byte[] parameters = new byte[0];
+		int stats = 0;
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--cards"))
+				cards = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--state"))
+				stateDir = new File(args[++i]);
+			else if (args[i].equals("--vpcd"))
+				vpcd = args[++i];
+			else if (args[i].equals("--listen"))
+				listen = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--latency"))
+				latency = LatencyModel.load(new File(args[++i]));
+			else if (args[i].equals("--personalize"))
+				personalize = true;
+			else if (args[i].equals("--parameters"))
+				parameters = Hex.toBytes(args[++i]);
+			else if (args[i].equals("--stats"))
+				stats = Integer.parseInt(args[++i]);
+			else
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+		}
+		if (vpcd == null && listen < 0)
+			vpcd = "localhost:" + VPCD_PORT;
+
+		if (!stateDir.isDirectory() && !stateDir.mkdirs())
+			throw new IOException("Cannot create " + stateDir);
+
+		final List<VirtualCard> all = new ArrayList<VirtualCard>();
+		for (int i = 0; i < cards; i++)
+			all.add(new VirtualCard("card " + i, new File(stateDir, "card" + i
+					+ ".properties"), parameters, personalize, latency));
+
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				for (VirtualCard card : all) {
+					try {
+						card.save();
+					} catch (IOException e) {
+						System.err.println(card.getName() + ": " + e);
+					}
+				}
+			}
+		});
+
+		for (int i = 0; i < cards; i++) {
+			final VirtualCardDaemon daemon = new VirtualCardDaemon(all.get(i));
+			final String host;
+			final int port;
+			if (vpcd != null) {
+				int colon = vpcd.lastIndexOf(':');
+				host = vpcd.substring(0, colon);
+				port = Integer.parseInt(vpcd.substring(colon + 1)) + i;
+			} else {
+				host = null;
+				port = listen + i;
+			}
+
+			Thread thread = new Thread(daemon.card.getName()) {
+				public void run() {
+					if (host != null)
+						daemon.connect(host, port);
+					else
+						daemon.listen(port);
+				}
+			};
+			thread.setDaemon(true);
+			thread.start();
+		}
+		System.out.printf("%d cards %s%n", cards, vpcd != null ? "connecting to "
+				+ vpcd : "listening from port " + listen);
+
+		if (stats <= 0)
+			Thread.sleep(Long.MAX_VALUE);
+
+		long last = 0;
+		while (true) {
+			Thread.sleep(stats * 1000L);
+			long commands = 0;
+			for (VirtualCard card : all)
+				commands += card.getCommands();
+			System.out.printf("%d commands, %.1f/s%n", commands,
+					(commands - last) / (double) stats);
+			last = commands;
+		}
+	}
+
+	/**
+	 * Connect to vpcd, and reconnect when the connection is closed.
+	 */
+	private void connect(String host, int port) {
+		while (true) {
+			try {
+				Socket socket = new Socket();
+				socket.connect(new InetSocketAddress(host, port));
+				serve(socket);
+			} catch (IOException e) {
+				// vpcd not running (yet), or the connection was closed
+			}
+			try {
+				Thread.sleep(1000);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Accept one connection at a time.
+	 */
+	private void listen(int port) {
+		try {
+			ServerSocket server = new ServerSocket(port);
+			try {
+				while (true)
+					serve(server.accept());
+			} finally {
+				server.close();
+			}
+		} catch (IOException e) {
+			System.err.println(card.getName() + ": " + e);
+		}
+	}
+
+	private void serve(Socket socket) throws IOException {
+		try {
+			socket.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			DataOutputStream out = new DataOutputStream(
+					socket.getOutputStream());
+
+			while (true) {
+				byte[] message;
+				try {
+					message = new byte[in.readUnsignedShort()];
+				} catch (EOFException e) {
+					return;
+				}
+				in.readFully(message);
+
+				if (message.length == 1) {
+					switch (message[0]) {
+					case POWER_OFF:
+					case RESET:
+						card.reset();
+						break;
+					case GET_ATR:
+						write(out, VirtualCard.ATR);
+						break;
+					case POWER_ON:
+					default:
+						break;
+					}
+					continue;
+				}
+
+				byte[] response;
+				try {
+					response = card.transmit(message);
+				} catch (Exception e) {
+					System.err.println(card.getName() + ": " + e);
+					response = new byte[] { 0x6F, 0x00 };
+				}
+				write(out, response);
+			}
+		} finally {
+			card.reset();
+			socket.close();
+		}
+	}
+
+	private static void write(DataOutputStream out, byte[] message)
+			throws IOException {
+		out.writeShort(message.length);
+		out.write(message);
+		out.flush();
+	}
+}
@@ -0,0 +1,58 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event for a command APDU sent through an InstrumentedTransport. The
+ * duration of the event is the time until the response was received.
+ */
+@Name("openpgpcard.Apdu")
+@Label("OpenPGP Card APDU")
+@Category("OpenPGP Card")
+@Description("Command APDU sent to an OpenPGP card")
+@StackTrace(false)
+public class ApduEvent extends Event {
+	@Label("Operation")
+	@Description("Operation as dispatched by the applet, e.g. PSO:CDS")
+	String operation;
+
+	@Label("Status Word")
+	int status;
+
+	@Label("Chained")
+	@Description("Command is a segment of a chain, not the last one")
+	boolean chained;
+
+	@Label("Continuation")
+	@Description("More response data is available (SW 61xx)")
+	boolean continuation;
+
+	@Label("Command Length")
+	int commandLength;
+
+	@Label("Response Length")
+	int responseLength;
+}
@@ -0,0 +1,227 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host.metrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.smartcardio.CardException;
+
+import jdk.jfr.EventType;
+import openpgpcard.host.CardTransport;
+import openpgpcard.host.CommandNames;
+import openpgpcard.host.LatencyHistogram;
+
+/**
+ * Transport that records metrics per operation of the applet, decoded with
+ * CommandNames: a latency histogram and the number of commands, chained
+ * segments, continuations (SW 61xx) and errors. GET RESPONSE is an operation
+ * of its own. The metrics are read with snapshot(). Every command is also
+ * emitted as an ApduEvent when JFR records that event.
+ * 
+ * Recording does not allocate once every operation has been seen, unless
+ * JFR records the events. Thread safe, snapshots can be taken while commands
+ * are sent.
+ */
+public class InstrumentedTransport implements CardTransport {
+	private static final EventType APDU_EVENT = EventType
+			.getEventType(ApduEvent.class);
+
+	private static final int SW_NO_ERROR = 0x9000;
+	private static final int SW1_BYTES_REMAINING = 0x61;
+
+	private final CardTransport transport;
+
+	// Operations in order of first use, with their keys at the same index
+	private int[] keys = new int[16];
+	private Operation[] operations = new Operation[16];
+	private int size = 0;
+
+	/**
+	 * Metrics of an operation.
+	 */
+	public static class Operation {
+		private final String name;
+		private final LatencyHistogram latency = new LatencyHistogram();
+		private long commands = 0;
+		private long chained = 0;
+		private long continuations = 0;
+		private long errors = 0;
+
+		Operation(String name) {
+			this.name = name;
+		}
+
+		Operation(Operation operation) {
+			name = operation.name;
+			latency.add(operation.latency);
+			commands = operation.commands;
+			chained = operation.chained;
+			continuations = operation.continuations;
+			errors = operation.errors;
+		}
+
+		/**
+		 * @return Name of the operation, e.g. "PSO:CDS" or "GET DATA 6E"
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return Latencies of the commands, including chained segments
+		 */
+		public LatencyHistogram getLatency() {
+			return latency;
+		}
+
+		public long getCommands() {
+			return commands;
+		}
+
+		/**
+		 * @return Number of commands that were not the last of a chain
+		 */
+		public long getChained() {
+			return chained;
+		}
+
+		/**
+		 * @return Number of responses with SW 61xx
+		 */
+		public long getContinuations() {
+			return continuations;
+		}
+
+		/**
+		 * @return Number of responses with an error status word, or failures
+		 *         of the transport
+		 */
+		public long getErrors() {
+			return errors;
+		}
+
+		public String toString() {
+			return String.format("%-24s commands=%d chained=%d continuations=%d errors=%d %s",
+					name, commands, chained, continuations, errors, latency);
+		}
+	}
+
+	public InstrumentedTransport(CardTransport transport) {
+		this.transport = transport;
+	}
+
+	public byte[] transmit(byte[] command) throws CardException {
+		int key = CommandNames.key(command);
+		ApduEvent event = null;
+		if (APDU_EVENT.isEnabled()) {
+			event = new ApduEvent();
+			event.begin();
+		}
+
+		long start = System.nanoTime();
+		byte[] response;
+		try {
+			response = transport.transmit(command);
+		} catch (CardException e) {
+			record(key, command, -1, System.nanoTime() - start);
+			throw e;
+		}
+		long nanos = System.nanoTime() - start;
+
+		int status = -1;
+		if (response.length >= 2)
+			status = ((response[response.length - 2] & 0xFF) << 8)
+					| (response[response.length - 1] & 0xFF);
+		Operation operation = record(key, command, status, nanos);
+
+		if (event != null) {
+			event.end();
+			event.operation = operation.name;
+			event.status = status;
+			event.chained = isChained(command);
+			event.continuation = (status >> 8) == SW1_BYTES_REMAINING;
+			event.commandLength = command.length;
+			event.responseLength = response.length;
+			event.commit();
+		}
+		return response;
+	}
+
+	public void close() throws CardException {
+		transport.close();
+	}
+
+	/**
+	 * @return Copy of the metrics of every operation used, in order of first
+	 *         use
+	 */
+	public synchronized List<Operation> snapshot() {
+		List<Operation> snapshot = new ArrayList<Operation>(size);
+		for (int i = 0; i < size; i++)
+			snapshot.add(new Operation(operations[i]));
+		return snapshot;
+	}
+
+	/**
+	 * Forget all metrics.
+	 */
+	public synchronized void reset() {
+		Arrays.fill(operations, 0, size, null);
+		size = 0;
+	}
+
+	/**
+	 * @param status
+	 *            Status word, -1 if the transport failed
+	 */
+	private synchronized Operation record(int key, byte[] command, int status,
+			long nanos) {
+		Operation operation = get(key);
+		operation.latency.record(nanos);
+		operation.commands++;
+		if (isChained(command))
+			operation.chained++;
+		if ((status >> 8) == SW1_BYTES_REMAINING)
+			operation.continuations++;
+		else if (status != SW_NO_ERROR)
+			operation.errors++;
+		return operation;
+	}
+
+	private Operation get(int key) {
+		for (int i = 0; i < size; i++) {
+			if (keys[i] == key)
+				return operations[i];
+		}
+
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, 2 * size);
+			operations = Arrays.copyOf(operations, 2 * size);
+		}
+		keys[size] = key;
+		operations[size] = new Operation(CommandNames.name(key));
+		return operations[size++];
+	}
+
+	private static boolean isChained(byte[] command) {
+		return command.length > 0 && (command[0] & 0x10) != 0;
+	}
+}
@@ -0,0 +1,197 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host.profile;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/**
+ * Instrumentation that reports every bytecode and every call of the Java
+ * Card API to BytecodeProfiler. Short and byte casts and array accesses are
+ * reported separately, as they are relatively expensive for a Java Card
+ * interpreter.
+ */
+public class BytecodeInstrumentation implements
+		InstrumentingClassLoader.Instrumentation {
+	private static final String PROFILER = "openpgpcard/host/profile/BytecodeProfiler";
+
+	public ClassVisitor visitor(ClassVisitor next) {
+		return new ClassVisitor(Opcodes.ASM7, next) {
+			private String className;
+
+			public void visit(int version, int access, String name,
+					String signature, String superName, String[] interfaces) {
+				className = name.substring(name.lastIndexOf('/') + 1);
+				super.visit(version, access, name, signature, superName,
+						interfaces);
+			}
+
+			public MethodVisitor visitMethod(int access, String name,
+					String descriptor, String signature, String[] exceptions) {
+				MethodVisitor visitor = super.visitMethod(access, name,
+						descriptor, signature, exceptions);
+				return new BytecodeMethodVisitor(visitor,
+						BytecodeProfiler.method(methodName(className, name,
+								descriptor)));
+			}
+		};
+	}
+
+	/**
+	 * @return Class and method name with the simple names of the parameter
+	 *         types, for example "OpenPGPApplet.sendData(APDU)"
+	 */
+	private static String methodName(String className, String name,
+			String descriptor) {
+		StringBuilder s = new StringBuilder(className).append('.').append(name)
+				.append('(');
+		Type[] arguments = Type.getArgumentTypes(descriptor);
+		for (int i = 0; i < arguments.length; i++) {
+			String type = arguments[i].getClassName();
+			if (i > 0)
+				s.append(',');
+			s.append(type.substring(type.lastIndexOf('.') + 1));
+		}
+		return s.append(')').toString();
+	}
+
+	private static class BytecodeMethodVisitor extends MethodVisitor {
+		private final int method;
+
+		BytecodeMethodVisitor(MethodVisitor next, int method) {
+			super(Opcodes.ASM7, next);
+			this.method = method;
+		}
+
+		public void visitInsn(int opcode) {
+			switch (opcode) {
+			case Opcodes.I2S:
+			case Opcodes.I2B:
+				count(BytecodeProfiler.KIND_CAST);
+				break;
+			case Opcodes.IALOAD:
+			case Opcodes.BALOAD:
+			case Opcodes.SALOAD:
+			case Opcodes.AALOAD:
+			case Opcodes.IASTORE:
+			case Opcodes.BASTORE:
+			case Opcodes.SASTORE:
+			case Opcodes.AASTORE:
+				count(BytecodeProfiler.KIND_ARRAY);
+				break;
+			default:
+				count(BytecodeProfiler.KIND_OTHER);
+			}
+			super.visitInsn(opcode);
+		}
+
+		public void visitIntInsn(int opcode, int operand) {
+			count(BytecodeProfiler.KIND_OTHER);
+			super.visitIntInsn(opcode, operand);
+		}
+
+		public void visitVarInsn(int opcode, int var) {
+			count(BytecodeProfiler.KIND_OTHER);
+			super.visitVarInsn(opcode, var);
+		}
+
+		public void visitTypeInsn(int opcode, String type) {
+			count(BytecodeProfiler.KIND_OTHER);
+			super.visitTypeInsn(opcode, type);
+		}
+
+		public void visitFieldInsn(int opcode, String owner, String name,
+				String descriptor) {
+			count(BytecodeProfiler.KIND_OTHER);
+			super.visitFieldInsn(opcode, owner, name, descriptor);
+		}
+
+		public void visitMethodInsn(int opcode, String owner, String name,
+				String descriptor, boolean isInterface) {
+			count(BytecodeProfiler.KIND_OTHER);
+			if (owner.startsWith("javacard/") || owner.startsWith("javacardx/")) {
+				push(method);
+				push(BytecodeProfiler.api(owner.substring(owner
+						.lastIndexOf('/') + 1) + "." + name));
+				super.visitMethodInsn(Opcodes.INVOKESTATIC, PROFILER, "call",
+						"(II)V", false);
+			}
+			super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+		}
+
+		public void visitInvokeDynamicInsn(String name, String descriptor,
+				Handle bootstrapMethodHandle,
+				Object... bootstrapMethodArguments) {
+			count(BytecodeProfiler.KIND_OTHER);
+			super.visitInvokeDynamicInsn(name, descriptor,
+					bootstrapMethodHandle, bootstrapMethodArguments);
+		}
+
+		public void visitJumpInsn(int opcode, Label label) {
+			count(BytecodeProfiler.KIND_OTHER);
+			super.visitJumpInsn(opcode, label);
+		}
+
+		public void visitLdcInsn(Object value) {
+			count(BytecodeProfiler.KIND_OTHER);
+			super.visitLdcInsn(value);
+		}
+
+		public void visitIincInsn(int var, int increment) {
+			count(BytecodeProfiler.KIND_OTHER);
+			super.visitIincInsn(var, increment);
+		}
+
+		public void visitTableSwitchInsn(int min, int max, Label dflt,
+				Label... labels) {
+			count(BytecodeProfiler.KIND_OTHER);
+			super.visitTableSwitchInsn(min, max, dflt, labels);
+		}
+
+		public void visitLookupSwitchInsn(Label dflt, int[] keys,
+				Label[] labels) {
+			count(BytecodeProfiler.KIND_OTHER);
+			super.visitLookupSwitchInsn(dflt, keys, labels);
+		}
+
+		public void visitMultiANewArrayInsn(String descriptor,
+				int numDimensions) {
+			count(BytecodeProfiler.KIND_OTHER);
+			super.visitMultiANewArrayInsn(descriptor, numDimensions);
+		}
+
+		private void count(int kind) {
+			push(method);
+			push(kind);
+			super.visitMethodInsn(Opcodes.INVOKESTATIC, PROFILER, "bytecode",
+					"(II)V", false);
+		}
+
+		private void push(int value) {
+			if (value <= Short.MAX_VALUE)
+				super.visitIntInsn(Opcodes.SIPUSH, value);
+			else
+				super.visitLdcInsn(Integer.valueOf(value));
+		}
+	}
+}
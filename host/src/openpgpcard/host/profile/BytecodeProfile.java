@@ -0,0 +1,143 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host.profile;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import javacard.framework.Applet;
+
+import openpgpcard.host.sim.SimulatedCard;
+import openpgpcard.host.trace.Trace;
+import openpgpcard.host.trace.TraceReplay;
+
+/**
+ * Bytecodes and Java Card API calls executed per command, and the methods
+ * executing most bytecodes, for scenarios given as traces. The applet is
+ * instrumented with BytecodeInstrumentation and every trace is replayed once
+ * on a freshly personalized card.
+ * 
+ * Usage: BytecodeProfile [--top n] trace...
+ * 
+ * Shows the top n (default 10) methods and API methods of each scenario.
+ * The counts are those of the Java bytecode, which is close to but not the
+ * same as the bytecode produced by the Java Card converter.
+ */
+public class BytecodeProfile {
+	private static final String APPLET = "openpgpcard.OpenPGPApplet";
+
+	public static void main(String[] args) throws Exception {
+		int top = 10;
+		List<File> files = new ArrayList<File>();
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--top"))
+				top = Integer.parseInt(args[++i]);
+			else
+				files.add(new File(args[i]));
+		}
+
+		InstrumentingClassLoader loader = new InstrumentingClassLoader(
+				BytecodeProfile.class.getClassLoader(), "openpgpcard",
+				new BytecodeInstrumentation());
+		Class<? extends Applet> applet = loader.load(APPLET, Applet.class);
+
+		for (File file : files) {
+			Trace trace = Trace.read(file);
+
+			SimulatedCard card = TraceReplay.personalize(new SimulatedCard(
+					applet, new byte[0]));
+			BytecodeProfiler.reset();
+			TraceReplay.Result result = new TraceReplay(new ProfilingTransport(
+					card, BytecodeProfiler.COMMANDS)).replay(trace, 1);
+
+			System.out.println(trace.getName());
+			System.out.printf("  %-26s %5s %10s %8s %8s %9s%n", "command",
+					"n", "bytecodes", "casts", "arrays", "api calls");
+			final BytecodeStats total = new BytecodeStats();
+			for (Map.Entry<String, BytecodeStats> entry : BytecodeProfiler
+					.getStats().entrySet()) {
+				BytecodeStats s = entry.getValue();
+				System.out.printf("  %-26s %5d %10d %8d %8d %9d%n",
+						entry.getKey(), s.getCommands(), s.getBytecodes(),
+						s.getCasts(), s.getArrayAccesses(), s.getApiCalls());
+				total.add(s);
+			}
+			System.out.printf("  %-26s %5d %10d %8d %8d %9d%n", "total",
+					total.getCommands(), total.getBytecodes(),
+					total.getCasts(), total.getArrayAccesses(),
+					total.getApiCalls());
+
+			System.out.printf("%n  %-46s %10s %6s %8s %8s %9s%n", "method",
+					"bytecodes", "%", "casts", "arrays", "api calls");
+			for (int method : top(total.getMethods(), top, new Count() {
+				public long get(int method) {
+					return total.getBytecodes(method);
+				}
+			}))
+				System.out.printf("  %-46s %10d %6.1f %8d %8d %9d%n",
+						BytecodeProfiler.getMethod(method),
+						total.getBytecodes(method),
+						total.getBytecodes(method) * 100.0
+								/ Math.max(1, total.getBytecodes()),
+						total.getCasts(method),
+						total.getArrayAccesses(method),
+						total.getApiCalls(method));
+
+			System.out.printf("%n  %-46s %10s%n", "api method", "calls");
+			for (int api : top(total.getApiMethods(), top, new Count() {
+				public long get(int api) {
+					return total.getCallsOf(api);
+				}
+			}))
+				System.out.printf("  %-46s %10d%n",
+						BytecodeProfiler.getApi(api), total.getCallsOf(api));
+
+			for (String error : result.getErrors())
+				System.out.println("  ERROR " + error);
+			System.out.println();
+		}
+	}
+
+	private interface Count {
+		long get(int number);
+	}
+
+	/**
+	 * @return At most n of the numbers 0 to size - 1 with the highest
+	 *         non-zero counts
+	 */
+	private static List<Integer> top(int size, int n, final Count count) {
+		List<Integer> numbers = new ArrayList<Integer>();
+		for (int i = 0; i < size; i++) {
+			if (count.get(i) > 0)
+				numbers.add(i);
+		}
+		Collections.sort(numbers, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Long.compare(count.get(b), count.get(a));
+			}
+		});
+		return numbers.subList(0, Math.min(n, numbers.size()));
+	}
+}
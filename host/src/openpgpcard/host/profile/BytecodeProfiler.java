@@ -0,0 +1,164 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host.profile;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts the bytecodes and Java Card API calls executed by the instrumented
+ * applet. Methods and API methods are numbered when their class is
+ * instrumented (see BytecodeInstrumentation), so the instrumented code only
+ * passes numbers. Counts are attributed to the command set with begin();
+ * bytecodes executed outside a command are not counted.
+ * 
+ * The profiler is global and not thread safe: only one profiled card can be
+ * used at a time.
+ */
+public class BytecodeProfiler {
+	public static final int KIND_OTHER = 0;
+	public static final int KIND_CAST = 1;
+	public static final int KIND_ARRAY = 2;
+
+	/**
+	 * Attributes the counts to the commands of a ProfilingTransport.
+	 */
+	public static final ProfilingTransport.Profiler COMMANDS = new ProfilingTransport.Profiler() {
+		public void begin(String command) {
+			BytecodeProfiler.begin(command);
+		}
+
+		public void end() {
+			BytecodeProfiler.end();
+		}
+	};
+
+	private static final List<String> methods = new ArrayList<String>();
+	private static final List<String> apis = new ArrayList<String>();
+	private static final Map<String, Integer> apiNumbers = new HashMap<String, Integer>();
+
+	private static final Map<String, BytecodeStats> stats = new LinkedHashMap<String, BytecodeStats>();
+	private static BytecodeStats current = null;
+
+	private BytecodeProfiler() {
+	}
+
+	/**
+	 * Number a method of the applet.
+	 * 
+	 * @return Method number
+	 */
+	public static synchronized int method(String name) {
+		methods.add(name);
+		return methods.size() - 1;
+	}
+
+	/**
+	 * Number an API method. Every API method gets one number.
+	 * 
+	 * @return API method number
+	 */
+	public static synchronized int api(String name) {
+		Integer number = apiNumbers.get(name);
+		if (number == null) {
+			number = apis.size();
+			apis.add(name);
+			apiNumbers.put(name, number);
+		}
+		return number;
+	}
+
+	/**
+	 * @return Name of a method number
+	 */
+	public static String getMethod(int method) {
+		return methods.get(method);
+	}
+
+	/**
+	 * @return Name of an API method number
+	 */
+	public static String getApi(int api) {
+		return apis.get(api);
+	}
+
+	/**
+	 * Clear all counts. Method numbers are kept.
+	 */
+	public static void reset() {
+		stats.clear();
+		current = null;
+	}
+
+	/**
+	 * Attribute the following counts to the given command.
+	 */
+	public static void begin(String name) {
+		current = stats.get(name);
+		if (current == null) {
+			current = new BytecodeStats();
+			stats.put(name, current);
+		}
+		current.commands++;
+	}
+
+	/**
+	 * End of a command.
+	 */
+	public static void end() {
+		current = null;
+	}
+
+	/**
+	 * @return Counts per command name, in order of first use
+	 */
+	public static Map<String, BytecodeStats> getStats() {
+		return stats;
+	}
+
+	/**
+	 * Called by the instrumented code before every bytecode.
+	 * 
+	 * @param method
+	 *            Number of the executing method
+	 * @param kind
+	 *            KIND_CAST, KIND_ARRAY or KIND_OTHER
+	 */
+	public static void bytecode(int method, int kind) {
+		if (current != null)
+			current.count(method, kind);
+	}
+
+	/**
+	 * Called by the instrumented code before every call of the Java Card
+	 * API.
+	 * 
+	 * @param method
+	 *            Number of the calling method
+	 * @param api
+	 *            Number of the API method
+	 */
+	public static void call(int method, int api) {
+		if (current != null)
+			current.call(method, api);
+	}
+}
@@ -0,0 +1,178 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host.profile;
+
+/**
+ * Bytecodes and Java Card API calls of one command, per applet method.
+ * Methods and API methods are identified by the numbers assigned by
+ * BytecodeProfiler.
+ */
+public class BytecodeStats {
+	long commands = 0;
+	private long[] bytecodes = new long[0];
+	private long[] casts = new long[0];
+	private long[] arrayAccesses = new long[0];
+	private long[] calls = new long[0];
+	private long[] apiCalls = new long[0];
+
+	void count(int method, int kind) {
+		if (method >= bytecodes.length)
+			growMethods(method + 1);
+		bytecodes[method]++;
+		if (kind == BytecodeProfiler.KIND_CAST)
+			casts[method]++;
+		else if (kind == BytecodeProfiler.KIND_ARRAY)
+			arrayAccesses[method]++;
+	}
+
+	void call(int method, int api) {
+		if (method >= calls.length)
+			growMethods(method + 1);
+		calls[method]++;
+		if (api >= apiCalls.length)
+			apiCalls = grow(apiCalls, api + 1);
+		apiCalls[api]++;
+	}
+
+	/**
+	 * Add the counts of another command.
+	 */
+	public void add(BytecodeStats s) {
+		commands += s.commands;
+		growMethods(s.bytecodes.length);
+		for (int i = 0; i < s.bytecodes.length; i++) {
+			bytecodes[i] += s.bytecodes[i];
+			casts[i] += s.casts[i];
+			arrayAccesses[i] += s.arrayAccesses[i];
+			calls[i] += s.calls[i];
+		}
+		if (s.apiCalls.length > apiCalls.length)
+			apiCalls = grow(apiCalls, s.apiCalls.length);
+		for (int i = 0; i < s.apiCalls.length; i++)
+			apiCalls[i] += s.apiCalls[i];
+	}
+
+	/**
+	 * @return Number of times the command was sent
+	 */
+	public long getCommands() {
+		return commands;
+	}
+
+	/**
+	 * @return Number of methods with counts, the highest method number plus
+	 *         one
+	 */
+	public int getMethods() {
+		return bytecodes.length;
+	}
+
+	/**
+	 * @return Number of API methods with counts
+	 */
+	public int getApiMethods() {
+		return apiCalls.length;
+	}
+
+	/**
+	 * @return Bytecodes executed in all methods
+	 */
+	public long getBytecodes() {
+		return sum(bytecodes);
+	}
+
+	/**
+	 * @return Bytecodes executed in the method
+	 */
+	public long getBytecodes(int method) {
+		return method < bytecodes.length ? bytecodes[method] : 0;
+	}
+
+	/**
+	 * @return Short and byte casts (i2s and i2b) in all methods
+	 */
+	public long getCasts() {
+		return sum(casts);
+	}
+
+	/**
+	 * @return Short and byte casts in the method
+	 */
+	public long getCasts(int method) {
+		return method < casts.length ? casts[method] : 0;
+	}
+
+	/**
+	 * @return Array loads and stores, which are bounds checked, in all
+	 *         methods
+	 */
+	public long getArrayAccesses() {
+		return sum(arrayAccesses);
+	}
+
+	/**
+	 * @return Array loads and stores in the method
+	 */
+	public long getArrayAccesses(int method) {
+		return method < arrayAccesses.length ? arrayAccesses[method] : 0;
+	}
+
+	/**
+	 * @return Java Card API calls from all methods
+	 */
+	public long getApiCalls() {
+		return sum(calls);
+	}
+
+	/**
+	 * @return Java Card API calls from the method
+	 */
+	public long getApiCalls(int method) {
+		return method < calls.length ? calls[method] : 0;
+	}
+
+	/**
+	 * @return Calls of the API method
+	 */
+	public long getCallsOf(int api) {
+		return api < apiCalls.length ? apiCalls[api] : 0;
+	}
+
+	private void growMethods(int length) {
+		if (length <= bytecodes.length)
+			return;
+		bytecodes = grow(bytecodes, length);
+		casts = grow(casts, length);
+		arrayAccesses = grow(arrayAccesses, length);
+		calls = grow(calls, length);
+	}
+
+	private static long[] grow(long[] counts, int length) {
+		long[] grown = new long[Math.max(length, counts.length * 2)];
+		System.arraycopy(counts, 0, grown, 0, counts.length);
+		return grown;
+	}
+
+	private static long sum(long[] counts) {
+		long sum = 0;
+		for (long count : counts)
+			sum += count;
+		return sum;
+	}
+}
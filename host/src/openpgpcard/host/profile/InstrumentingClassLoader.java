@@ -0,0 +1,128 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host.profile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+
+/**
+ * Class loader that instruments the classes of one package with ASM, so the
+ * applet can be profiled while it runs in the simulator. All other classes,
+ * including the Java Card API of the simulator and the profilers, are loaded
+ * by the parent class loader.
+ */
+public class InstrumentingClassLoader extends ClassLoader {
+	/**
+	 * Instrumentation applied to every class of the package.
+	 */
+	public interface Instrumentation {
+		/**
+		 * @param next
+		 *            Visitor the instrumented class is passed to
+		 * @return Visitor instrumenting the class
+		 */
+		ClassVisitor visitor(ClassVisitor next);
+	}
+
+	private final String packageName;
+	private final Instrumentation[] instrumentations;
+
+	/**
+	 * @param parent
+	 *            Class loader for all classes that are not instrumented
+	 * @param packageName
+	 *            Package of which the classes are instrumented, subpackages
+	 *            are not included
+	 * @param instrumentations
+	 *            Instrumentations, applied in the given order
+	 */
+	public InstrumentingClassLoader(ClassLoader parent, String packageName,
+			Instrumentation... instrumentations) {
+		super(parent);
+		this.packageName = packageName;
+		this.instrumentations = instrumentations.clone();
+	}
+
+	/**
+	 * Load a class of the instrumented package as a subclass of the given
+	 * type.
+	 */
+	public <T> Class<? extends T> load(String name, Class<T> type)
+			throws ClassNotFoundException {
+		return loadClass(name).asSubclass(type);
+	}
+
+	protected Class<?> loadClass(String name, boolean resolve)
+			throws ClassNotFoundException {
+		if (!isInstrumented(name))
+			return super.loadClass(name, resolve);
+
+		synchronized (getClassLoadingLock(name)) {
+			Class<?> c = findLoadedClass(name);
+			if (c == null) {
+				byte[] code = instrument(read(name));
+				c = defineClass(name, code, 0, code.length);
+			}
+			if (resolve)
+				resolveClass(c);
+			return c;
+		}
+	}
+
+	private boolean isInstrumented(String name) {
+		return name.startsWith(packageName + ".")
+				&& name.indexOf('.', packageName.length() + 1) < 0;
+	}
+
+	private byte[] instrument(byte[] code) {
+		ClassReader reader = new ClassReader(code);
+		ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
+		ClassVisitor visitor = writer;
+		for (int i = instrumentations.length - 1; i >= 0; i--)
+			visitor = instrumentations[i].visitor(visitor);
+		reader.accept(visitor, 0);
+		return writer.toByteArray();
+	}
+
+	private byte[] read(String name) throws ClassNotFoundException {
+		InputStream in = getParent().getResourceAsStream(
+				name.replace('.', '/') + ".class");
+		if (in == null)
+			throw new ClassNotFoundException(name);
+
+		try {
+			try {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				byte[] chunk = new byte[4096];
+				for (int n = in.read(chunk); n > 0; n = in.read(chunk))
+					out.write(chunk, 0, n);
+				return out.toByteArray();
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw new ClassNotFoundException(name, e);
+		}
+	}
+}
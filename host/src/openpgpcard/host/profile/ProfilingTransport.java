@@ -0,0 +1,86 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host.profile;
+
+import javax.smartcardio.CardException;
+
+import openpgpcard.host.CardTransport;
+import openpgpcard.host.CommandNames;
+
+/**
+ * Transport that attributes the counts of a profiler to the command being
+ * sent.
+ */
+public class ProfilingTransport implements CardTransport {
+	/**
+	 * Profiler of which the counts are attributed to commands.
+	 */
+	public interface Profiler {
+		/**
+		 * Attribute the following counts to the given command.
+		 */
+		void begin(String command);
+
+		/**
+		 * End of the command.
+		 */
+		void end();
+	}
+
+	/**
+	 * Attributes the writes counted by WriteProfiler.
+	 */
+	public static final Profiler WRITES = new Profiler() {
+		public void begin(String command) {
+			WriteProfiler.begin(command);
+		}
+
+		public void end() {
+			WriteProfiler.end();
+		}
+	};
+
+	private final CardTransport transport;
+	private final Profiler profiler;
+
+	/**
+	 * Attribute the writes counted by WriteProfiler.
+	 */
+	public ProfilingTransport(CardTransport transport) {
+		this(transport, WRITES);
+	}
+
+	public ProfilingTransport(CardTransport transport, Profiler profiler) {
+		this.transport = transport;
+		this.profiler = profiler;
+	}
+
+	public byte[] transmit(byte[] command) throws CardException {
+		profiler.begin(CommandNames.name(command));
+		try {
+			return transport.transmit(command);
+		} finally {
+			profiler.end();
+		}
+	}
+
+	public void close() throws CardException {
+		transport.close();
+	}
+}
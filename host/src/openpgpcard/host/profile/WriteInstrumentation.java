@@ -0,0 +1,133 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host.profile;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Instrumentation that redirects all operations of the applet that may write
+ * persistent memory to WriteProfiler. Static initializers are not
+ * instrumented, as static arrays are part of the CAP file.
+ */
+public class WriteInstrumentation implements
+		InstrumentingClassLoader.Instrumentation {
+	private static final String PROFILER = "openpgpcard/host/profile/WriteProfiler";
+
+	public ClassVisitor visitor(ClassVisitor next) {
+		return new ClassVisitor(Opcodes.ASM7, next) {
+			public MethodVisitor visitMethod(int access, String name,
+					String descriptor, String signature, String[] exceptions) {
+				MethodVisitor visitor = super.visitMethod(access, name,
+						descriptor, signature, exceptions);
+				if (name.equals("<clinit>"))
+					return visitor;
+				return new WriteMethodVisitor(visitor);
+			}
+		};
+	}
+
+	private static class WriteMethodVisitor extends MethodVisitor {
+		WriteMethodVisitor(MethodVisitor next) {
+			super(Opcodes.ASM7, next);
+		}
+
+		public void visitInsn(int opcode) {
+			switch (opcode) {
+			case Opcodes.BASTORE:
+				profiler("bastore", "(Ljava/lang/Object;II)V");
+				break;
+			case Opcodes.SASTORE:
+				profiler("sastore", "([SIS)V");
+				break;
+			case Opcodes.AASTORE:
+				profiler("aastore",
+						"([Ljava/lang/Object;ILjava/lang/Object;)V");
+				break;
+			default:
+				super.visitInsn(opcode);
+			}
+		}
+
+		public void visitFieldInsn(int opcode, String owner, String name,
+				String descriptor) {
+			if (opcode == Opcodes.PUTFIELD || opcode == Opcodes.PUTSTATIC) {
+				super.visitIntInsn(Opcodes.BIPUSH, size(descriptor));
+				profiler("field", "(I)V");
+			}
+			super.visitFieldInsn(opcode, owner, name, descriptor);
+		}
+
+		public void visitMethodInsn(int opcode, String owner, String name,
+				String descriptor, boolean isInterface) {
+			if (owner.equals("javacard/framework/Util")
+					&& (name.startsWith("arrayCopy")
+							|| name.equals("arrayFillNonAtomic") || name
+								.equals("setShort"))) {
+				profiler(name, descriptor);
+				return;
+			}
+
+			if (owner.equals("javacard/framework/JCSystem")
+					&& (name.endsWith("Transaction") || name
+							.startsWith("makeTransient"))) {
+				profiler(name, descriptor);
+				return;
+			}
+
+			if (owner.equals("javacard/framework/OwnerPIN")
+					&& (name.equals("check") || name.equals("update") || name
+							.equals("resetAndUnblock"))) {
+				profiler("pin", "()V");
+			} else if (owner.startsWith("javacard/security/")
+					&& name.startsWith("set") && descriptor.equals("([BSS)V")) {
+				// Length is on top of the stack
+				super.visitInsn(Opcodes.DUP);
+				profiler("key", "(S)V");
+			} else if (owner.equals("javacard/security/KeyPair")
+					&& name.equals("genKeyPair")) {
+				profiler("keyGeneration", "()V");
+			}
+
+			super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+		}
+
+		private void profiler(String name, String descriptor) {
+			super.visitMethodInsn(Opcodes.INVOKESTATIC, PROFILER, name,
+					descriptor, false);
+		}
+
+		/**
+		 * @return Size of a field on a Java Card
+		 */
+		private static int size(String descriptor) {
+			switch (descriptor.charAt(0)) {
+			case 'Z':
+			case 'B':
+				return 1;
+			case 'I':
+				return 4;
+			default:
+				// short and references
+				return 2;
+			}
+		}
+	}
+}
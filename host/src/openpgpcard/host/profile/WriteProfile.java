@@ -0,0 +1,193 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host.profile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import javacard.framework.Applet;
+
+import openpgpcard.host.sim.SimulatedCard;
+import openpgpcard.host.trace.Trace;
+import openpgpcard.host.trace.TraceReplay;
+
+/**
+ * Wear and latency report of persistent memory writes per command, for
+ * scenarios given as traces. The applet is instrumented with
+ * WriteInstrumentation and every trace is replayed once on a freshly
+ * personalized card.
+ * 
+ * Usage: WriteProfile [--baseline file] [--update-baseline] [--write-us n]
+ * [--commit-us n] trace...
+ * 
+ * The estimated time uses a simple model: every write operation costs
+ * write-us (default 1000) and every transaction or atomic copy an additional
+ * commit-us (default 2000) microseconds. Exits with status 1 if a command
+ * writes more bytes or does more write operations than in the baseline. A
+ * baseline file that does not exist is an error, unless it is created with
+ * --update-baseline.
+ */
+public class WriteProfile {
+	private static final String APPLET = "openpgpcard.OpenPGPApplet";
+
+	public static void main(String[] args) throws Exception {
+		File baselineFile = null;
+		boolean update = false;
+		long writeMicros = 1000;
+		long commitMicros = 2000;
+		List<File> files = new ArrayList<File>();
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--baseline"))
+				baselineFile = new File(args[++i]);
+			else if (args[i].equals("--update-baseline"))
+				update = true;
+			else if (args[i].equals("--write-us"))
+				writeMicros = Long.parseLong(args[++i]);
+			else if (args[i].equals("--commit-us"))
+				commitMicros = Long.parseLong(args[++i]);
+			else
+				files.add(new File(args[i]));
+		}
+
+		Properties baseline = new Properties();
+		if (baselineFile != null && !baselineFile.exists() && !update)
+			throw new FileNotFoundException("Baseline " + baselineFile
+					+ " does not exist, create it with --update-baseline");
+		if (baselineFile != null && baselineFile.exists()) {
+			InputStream in = new FileInputStream(baselineFile);
+			try {
+				baseline.load(in);
+			} finally {
+				in.close();
+			}
+		}
+
+		InstrumentingClassLoader loader = new InstrumentingClassLoader(
+				WriteProfile.class.getClassLoader(), "openpgpcard",
+				new WriteInstrumentation());
+		Class<? extends Applet> applet = loader.load(APPLET, Applet.class);
+		boolean failed = false;
+
+		for (File file : files) {
+			Trace trace = Trace.read(file);
+
+			WriteProfiler.reset();
+			SimulatedCard card = new SimulatedCard(applet, new byte[0]);
+			WriteStats install = WriteProfiler.getStats().get(
+					WriteProfiler.INSTALL);
+			long transientInstall = WriteProfiler.getTransientAllocated();
+			TraceReplay.personalize(card);
+
+			WriteProfiler.reset();
+			TraceReplay.Result result = new TraceReplay(
+					new ProfilingTransport(card)).replay(trace, 1);
+
+			System.out.println(trace.getName());
+			System.out.printf("  %-26s %5s %8s %7s %6s %6s %7s %6s %6s %9s%n",
+					"command", "n", "bytes", "writes", "atomic", "trans",
+					"commit", "max", "pin", "est (ms)");
+			WriteStats total = new WriteStats();
+			for (Map.Entry<String, WriteStats> entry : WriteProfiler
+					.getStats().entrySet()) {
+				WriteStats s = entry.getValue();
+				print(entry.getKey(), s, writeMicros, commitMicros);
+				total.add(s);
+				failed |= check(baseline, trace.getName(), entry.getKey(), s,
+						update);
+			}
+			print("total", total, writeMicros, commitMicros);
+			if (install != null)
+				System.out.printf("  install: %d persistent bytes, %d bytes "
+						+ "transient memory%n", install.getPersistentBytes(),
+						transientInstall);
+			System.out.printf("  transient memory allocated after install: "
+					+ "%d bytes%n",
+					WriteProfiler.getTransientAllocated());
+			for (String error : result.getErrors())
+				System.out.println("  ERROR " + error);
+			System.out.println();
+		}
+
+		if (update && baselineFile != null) {
+			OutputStream out = new FileOutputStream(baselineFile);
+			try {
+				baseline.store(out, "Persistent write baseline");
+			} finally {
+				out.close();
+			}
+		}
+
+		if (failed)
+			System.exit(1);
+	}
+
+	private static void print(String name, WriteStats s, long writeMicros,
+			long commitMicros) {
+		System.out.printf("  %-26s %5d %8d %7d %6d %6d %7d %6d %6d %9.1f%n",
+				name, s.getCommands(), s.getPersistentBytes(),
+				s.getPersistentWrites(), s.getAtomicCopies(),
+				s.getTransactions(), s.getCommitBytes(),
+				s.getMaxCommitBytes(), s.getPinWrites(),
+				s.estimateMicros(writeMicros, commitMicros) / 1e3);
+	}
+
+	/**
+	 * Compare the bytes and write operations of a command with the baseline,
+	 * or update the baseline.
+	 * 
+	 * @return True if the command writes more than in the baseline
+	 */
+	private static boolean check(Properties baseline, String scenario,
+			String command, WriteStats s, boolean update) {
+		String key = scenario + "." + command.replaceAll("[^A-Za-z0-9]+", "_");
+		if (update) {
+			baseline.setProperty(key + ".bytes",
+					Long.toString(s.getPersistentBytes()));
+			baseline.setProperty(key + ".writes",
+					Long.toString(s.getPersistentWrites()));
+			return false;
+		}
+
+		boolean failed = false;
+		String bytes = baseline.getProperty(key + ".bytes");
+		if (bytes == null && !baseline.isEmpty())
+			System.out.printf("  NEW %s is not in the baseline%n", command);
+		if (bytes != null && s.getPersistentBytes() > Long.parseLong(bytes)) {
+			System.out.printf("  FAILED %s writes %d bytes, baseline %s%n",
+					command, s.getPersistentBytes(), bytes);
+			failed = true;
+		}
+		String writes = baseline.getProperty(key + ".writes");
+		if (writes != null && s.getPersistentWrites() > Long.parseLong(writes)) {
+			System.out.printf("  FAILED %s does %d write operations, "
+					+ "baseline %s%n", command, s.getPersistentWrites(), writes);
+			failed = true;
+		}
+		return failed;
+	}
+}
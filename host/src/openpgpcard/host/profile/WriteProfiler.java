@@ -0,0 +1,251 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host.profile;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javacard.framework.APDU;
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+
+/**
+ * Counts persistent memory writes of the instrumented applet. The applet
+ * calls the static methods of this class in place of array stores, Util
+ * and JCSystem methods (see WriteInstrumentation). Counts are attributed to
+ * the command set with begin(), or to "install" before the first command.
+ * 
+ * The profiler is global and not thread safe: only one profiled card can be
+ * used at a time.
+ */
+public class WriteProfiler {
+	public static final String INSTALL = "install";
+
+	private static final Map<String, WriteStats> stats = new LinkedHashMap<String, WriteStats>();
+	private static WriteStats current = null;
+	private static int depth = 0;
+	private static long commit = 0;
+
+	private static long transientAllocated = 0;
+
+	private WriteProfiler() {
+	}
+
+	/**
+	 * Clear all counts.
+	 */
+	public static void reset() {
+		stats.clear();
+		current = null;
+		transientAllocated = 0;
+	}
+
+	/**
+	 * Attribute the following writes to the given command.
+	 */
+	public static void begin(String name) {
+		current = stats(name);
+		current.commands++;
+	}
+
+	/**
+	 * End of a command.
+	 */
+	public static void end() {
+		current = null;
+	}
+
+	/**
+	 * @return Counts per command name, in order of first use
+	 */
+	public static Map<String, WriteStats> getStats() {
+		return stats;
+	}
+
+	/**
+	 * @return Bytes of transient arrays allocated by the applet
+	 */
+	public static long getTransientAllocated() {
+		return transientAllocated;
+	}
+
+	private static WriteStats stats(String name) {
+		WriteStats s = stats.get(name);
+		if (s == null) {
+			s = new WriteStats();
+			stats.put(name, s);
+		}
+		return s;
+	}
+
+	private static WriteStats current() {
+		return current != null ? current : stats(INSTALL);
+	}
+
+	private static boolean isPersistent(Object array) {
+		try {
+			if (array == APDU.getCurrentAPDUBuffer())
+				return false;
+		} catch (RuntimeException e) {
+			// No APDU is being processed
+		}
+		return JCSystem.isTransient(array) == JCSystem.NOT_A_TRANSIENT_OBJECT;
+	}
+
+	private static void write(long bytes) {
+		WriteStats s = current();
+		s.persistentBytes += bytes;
+		s.persistentWrites++;
+		if (depth > 0) {
+			commit += bytes;
+			s.commitBytes += bytes;
+			s.maxCommitBytes = Math.max(s.maxCommitBytes, commit);
+		}
+	}
+
+	private static void write(Object array, long bytes) {
+		if (isPersistent(array))
+			write(bytes);
+	}
+
+	// Replacements of array stores
+
+	public static void bastore(Object array, int index, int value) {
+		if (array instanceof byte[])
+			((byte[]) array)[index] = (byte) value;
+		else
+			((boolean[]) array)[index] = value != 0;
+		write(array, 1);
+	}
+
+	public static void sastore(short[] array, int index, short value) {
+		array[index] = value;
+		write(array, 2);
+	}
+
+	public static void aastore(Object[] array, int index, Object value) {
+		array[index] = value;
+		write(array, 2);
+	}
+
+	/**
+	 * Store to a field of a persistent object or a static field.
+	 */
+	public static void field(int bytes) {
+		write(bytes);
+	}
+
+	// Replacements of Util
+
+	public static short arrayCopy(byte[] src, short srcOff, byte[] dest,
+			short destOff, short length) {
+		short result = Util.arrayCopy(src, srcOff, dest, destOff, length);
+		if (isPersistent(dest)) {
+			WriteStats s = current();
+			s.atomicCopies++;
+			write(length);
+			if (depth == 0) {
+				s.commitBytes += length;
+				s.maxCommitBytes = Math.max(s.maxCommitBytes, length);
+			}
+		}
+		return result;
+	}
+
+	public static short arrayCopyNonAtomic(byte[] src, short srcOff,
+			byte[] dest, short destOff, short length) {
+		short result = Util.arrayCopyNonAtomic(src, srcOff, dest, destOff,
+				length);
+		write(dest, length);
+		return result;
+	}
+
+	public static short arrayFillNonAtomic(byte[] bArray, short bOff,
+			short bLen, byte bValue) {
+		short result = Util.arrayFillNonAtomic(bArray, bOff, bLen, bValue);
+		write(bArray, bLen);
+		return result;
+	}
+
+	public static short setShort(byte[] bArray, short bOff, short sValue) {
+		short result = Util.setShort(bArray, bOff, sValue);
+		write(bArray, 2);
+		return result;
+	}
+
+	// Replacements of JCSystem
+
+	public static void beginTransaction() {
+		JCSystem.beginTransaction();
+		current().transactions++;
+		depth++;
+		commit = 0;
+	}
+
+	public static void commitTransaction() {
+		JCSystem.commitTransaction();
+		depth = 0;
+	}
+
+	public static void abortTransaction() {
+		JCSystem.abortTransaction();
+		depth = 0;
+	}
+
+	public static byte[] makeTransientByteArray(short length, byte event) {
+		transientAllocated += length;
+		return JCSystem.makeTransientByteArray(length, event);
+	}
+
+	public static short[] makeTransientShortArray(short length, byte event) {
+		transientAllocated += 2 * length;
+		return JCSystem.makeTransientShortArray(length, event);
+	}
+
+	public static boolean[] makeTransientBooleanArray(short length, byte event) {
+		transientAllocated += length;
+		return JCSystem.makeTransientBooleanArray(length, event);
+	}
+
+	public static Object[] makeTransientObjectArray(short length, byte event) {
+		transientAllocated += 2 * length;
+		return JCSystem.makeTransientObjectArray(length, event);
+	}
+
+	// Calls of the API that write persistent memory, called before the API
+
+	/**
+	 * OwnerPIN check, update or reset, which writes the retry counter.
+	 */
+	public static void pin() {
+		current().pinWrites++;
+	}
+
+	/**
+	 * Key component set with a setter taking an array, offset and length.
+	 */
+	public static void key(short length) {
+		current().keyBytes += length;
+		write(length);
+	}
+
+	public static void keyGeneration() {
+		current().keyGenerations++;
+	}
+}
@@ -0,0 +1,136 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host.profile;
+
+/**
+ * Persistent memory usage of the commands with the same name.
+ */
+public class WriteStats {
+	long commands = 0;
+	long persistentBytes = 0;
+	long persistentWrites = 0;
+	long atomicCopies = 0;
+	long transactions = 0;
+	long commitBytes = 0;
+	long maxCommitBytes = 0;
+	long pinWrites = 0;
+	long keyBytes = 0;
+	long keyGenerations = 0;
+
+	/**
+	 * @return Number of commands
+	 */
+	public long getCommands() {
+		return commands;
+	}
+
+	/**
+	 * @return Bytes written to persistent memory, by array stores, field
+	 *         stores, Util methods and key setters
+	 */
+	public long getPersistentBytes() {
+		return persistentBytes;
+	}
+
+	/**
+	 * @return Number of write operations to persistent memory; a copy of
+	 *         several bytes counts as one operation
+	 */
+	public long getPersistentWrites() {
+		return persistentWrites;
+	}
+
+	/**
+	 * @return Number of atomic Util.arrayCopy calls to persistent arrays
+	 */
+	public long getAtomicCopies() {
+		return atomicCopies;
+	}
+
+	/**
+	 * @return Number of transactions started
+	 */
+	public long getTransactions() {
+		return transactions;
+	}
+
+	/**
+	 * @return Bytes written within transactions and by atomic copies, which
+	 *         all pass through the commit buffer
+	 */
+	public long getCommitBytes() {
+		return commitBytes;
+	}
+
+	/**
+	 * @return Largest number of bytes in the commit buffer at once
+	 */
+	public long getMaxCommitBytes() {
+		return maxCommitBytes;
+	}
+
+	/**
+	 * @return Number of PIN checks and updates, which write the retry
+	 *         counter
+	 */
+	public long getPinWrites() {
+		return pinWrites;
+	}
+
+	/**
+	 * @return Bytes of key components set
+	 */
+	public long getKeyBytes() {
+		return keyBytes;
+	}
+
+	/**
+	 * @return Number of key pair generations
+	 */
+	public long getKeyGenerations() {
+		return keyGenerations;
+	}
+
+	/**
+	 * Estimate of the time spent writing persistent memory.
+	 * 
+	 * @param writeMicros
+	 *            Time of a write operation in microseconds
+	 * @param commitMicros
+	 *            Additional time of a transaction or atomic copy
+	 * @return Estimated time in microseconds
+	 */
+	public long estimateMicros(long writeMicros, long commitMicros) {
+		return (persistentWrites + pinWrites) * writeMicros
+				+ (transactions + atomicCopies) * commitMicros;
+	}
+
+	void add(WriteStats other) {
+		commands += other.commands;
+		persistentBytes += other.persistentBytes;
+		persistentWrites += other.persistentWrites;
+		atomicCopies += other.atomicCopies;
+		transactions += other.transactions;
+		commitBytes += other.commitBytes;
+		maxCommitBytes = Math.max(maxCommitBytes, other.maxCommitBytes);
+		pinWrites += other.pinWrites;
+		keyBytes += other.keyBytes;
+		keyGenerations += other.keyGenerations;
+	}
+}
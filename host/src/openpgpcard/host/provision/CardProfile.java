@@ -0,0 +1,213 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host.provision;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import openpgpcard.host.Hex;
+import openpgpcard.host.OpenPGPCard;
+
+/**
+ * Contents of a card to be provisioned, read from a properties file:
+ * 
+ * - pw1, pw3 and rc: new PINs and resetting code, as text
+ * 
+ * - name (5B), login (5E), lang (5F2D), sex (5F35), url (5F50), pw1.status
+ * (C4, hex) and cert (7F21, name of a DER file)
+ * 
+ * - do.XX: any other data object with tag XX, as hex
+ * 
+ * - key.sig, key.dec and key.auth: "generate" to generate the key on the
+ * card, or the name of a PKCS#8 DER file with an RSA key to import
+ * 
+ * - key.time: creation time of the keys in seconds since 1970, used for the
+ * fingerprints and timestamps; defaults to the time of provisioning
+ * 
+ * File names are relative to the profile.
+ */
+public class CardProfile {
+	/**
+	 * Key to import, or null to generate the key on the card.
+	 */
+	private final Map<Integer, RSAPrivateCrtKey> keys = new LinkedHashMap<Integer, RSAPrivateCrtKey>();
+	private final Map<Integer, byte[]> dataObjects = new LinkedHashMap<Integer, byte[]>();
+	private byte[] pw1 = null;
+	private byte[] pw3 = null;
+	private byte[] resettingCode = null;
+	private long keyTime = -1;
+
+	/**
+	 * Profile without any content.
+	 */
+	public CardProfile() {
+	}
+
+	public static CardProfile load(File file) throws IOException,
+			GeneralSecurityException {
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+
+		File dir = file.getAbsoluteFile().getParentFile();
+		CardProfile profile = new CardProfile();
+		for (String name : properties.stringPropertyNames()) {
+			String value = properties.getProperty(name).trim();
+			if (name.equals("pw1"))
+				profile.setPW1(value.getBytes());
+			else if (name.equals("pw3"))
+				profile.setPW3(value.getBytes());
+			else if (name.equals("rc"))
+				profile.setResettingCode(value.getBytes());
+			else if (name.equals("name"))
+				profile.setDataObject(0x5B, value.getBytes());
+			else if (name.equals("login"))
+				profile.setDataObject(0x5E, value.getBytes());
+			else if (name.equals("lang"))
+				profile.setDataObject(0x5F2D, value.getBytes());
+			else if (name.equals("sex"))
+				profile.setDataObject(0x5F35, value.getBytes());
+			else if (name.equals("url"))
+				profile.setDataObject(0x5F50, value.getBytes());
+			else if (name.equals("pw1.status"))
+				profile.setDataObject(0xC4, Hex.toBytes(value));
+			else if (name.equals("cert"))
+				profile.setDataObject(0x7F21, Files.readAllBytes(new File(dir,
+						value).toPath()));
+			else if (name.startsWith("do."))
+				profile.setDataObject(Integer.parseInt(name.substring(3), 16),
+						Hex.toBytes(value));
+			else if (name.equals("key.time"))
+				profile.setKeyTime(Long.parseLong(value));
+			else if (name.startsWith("key."))
+				profile.setKey(keyReference(name.substring(4)), value
+						.equals("generate") ? null : readKey(new File(dir,
+						value)));
+			else
+				throw new IllegalArgumentException("Unknown profile entry "
+						+ name);
+		}
+		return profile;
+	}
+
+	private static int keyReference(String name) {
+		if (name.equals("sig"))
+			return OpenPGPCard.KEY_SIGNATURE;
+		if (name.equals("dec"))
+			return OpenPGPCard.KEY_DECRYPTION;
+		if (name.equals("auth"))
+			return OpenPGPCard.KEY_AUTHENTICATION;
+		throw new IllegalArgumentException("Unknown key " + name);
+	}
+
+	private static RSAPrivateCrtKey readKey(File file) throws IOException,
+			GeneralSecurityException {
+		return (RSAPrivateCrtKey) KeyFactory.getInstance("RSA").generatePrivate(
+				new PKCS8EncodedKeySpec(Files.readAllBytes(file.toPath())));
+	}
+
+	/**
+	 * @return New PW1, or null to keep the default
+	 */
+	public byte[] getPW1() {
+		return pw1;
+	}
+
+	public void setPW1(byte[] pw1) {
+		this.pw1 = pw1;
+	}
+
+	/**
+	 * @return New PW3, or null to keep the default
+	 */
+	public byte[] getPW3() {
+		return pw3;
+	}
+
+	public void setPW3(byte[] pw3) {
+		this.pw3 = pw3;
+	}
+
+	/**
+	 * @return Resetting code, or null for none
+	 */
+	public byte[] getResettingCode() {
+		return resettingCode;
+	}
+
+	public void setResettingCode(byte[] resettingCode) {
+		this.resettingCode = resettingCode;
+	}
+
+	/**
+	 * @return Data objects to set, by tag, in the order they were added
+	 */
+	public Map<Integer, byte[]> getDataObjects() {
+		return Collections.unmodifiableMap(dataObjects);
+	}
+
+	public void setDataObject(int tag, byte[] value) {
+		dataObjects.put(tag, value);
+	}
+
+	/**
+	 * @return Keys by key reference, with null for keys generated on the
+	 *         card
+	 */
+	public Map<Integer, RSAPrivateCrtKey> getKeys() {
+		return Collections.unmodifiableMap(keys);
+	}
+
+	/**
+	 * @param key
+	 *            Key reference (B6, B8 or A4)
+	 * @param privateKey
+	 *            Key to import, or null to generate the key on the card
+	 */
+	public void setKey(int key, RSAPrivateCrtKey privateKey) {
+		keys.put(key, privateKey);
+	}
+
+	/**
+	 * @return Creation time of the keys in seconds since 1970, or -1 for the
+	 *         time of provisioning
+	 */
+	public long getKeyTime() {
+		return keyTime;
+	}
+
+	public void setKeyTime(long keyTime) {
+		this.keyTime = keyTime;
+	}
+}
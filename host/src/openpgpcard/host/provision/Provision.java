@@ -0,0 +1,164 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host.provision;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import javax.smartcardio.TerminalFactory;
+
+import openpgpcard.host.CardTransport;
+import openpgpcard.host.PcscTransport;
+import openpgpcard.host.sim.SimulatedCard;
+
+/**
+ * Provision all cards in the PC/SC readers, or simulated cards, with a
+ * profile.
+ * 
+ * Usage: Provision [--simulate n] [--workers n] [--attempts n] [--verbose]
+ * [--dry-run] profile
+ * 
+ * --dry-run prints the script. Exits with status 1 if a card could not be
+ * provisioned.
+ */
+public class Provision {
+	public static void main(String[] args) throws Exception {
+		int simulate = 0;
+		int workers = 8;
+		int attempts = 3;
+		boolean verbose = false;
+		boolean dryRun = false;
+		File profileFile = null;
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--simulate"))
+				simulate = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--workers"))
+				workers = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--attempts"))
+				attempts = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--verbose"))
+				verbose = true;
+			else if (args[i].equals("--dry-run"))
+				dryRun = true;
+			else
+				profileFile = new File(args[i]);
+		}
+		if (profileFile == null)
+			throw new IllegalArgumentException("No profile given");
+
+		CardProfile profile = CardProfile.load(profileFile);
+		long time = System.currentTimeMillis() / 1000;
+		if (dryRun) {
+			ProvisioningScript script = ProvisioningScript.compile(profile,
+					time);
+			for (ProvisioningScript.Step step : script.getSteps())
+				System.out.printf("%-28s %d APDU(s)%n", step.getName(),
+						step.getApdus());
+			System.out.printf("%d APDUs per card, including SELECT and "
+					+ "VERIFY%n", script.getApdus());
+			return;
+		}
+
+		List<Provisioner.Reader> readers = new ArrayList<Provisioner.Reader>();
+		if (simulate > 0) {
+			for (int i = 0; i < simulate; i++)
+				readers.add(simulated("simulated " + i));
+		} else {
+			for (CardTerminal terminal : TerminalFactory.getDefault()
+					.terminals().list(CardTerminals.State.CARD_PRESENT))
+				readers.add(pcsc(terminal));
+		}
+
+		List<ProvisioningScript> scripts = new ArrayList<ProvisioningScript>();
+		for (int i = 0; i < readers.size(); i++)
+			scripts.add(ProvisioningScript.compile(profile, time));
+
+		final boolean progress = verbose;
+		long start = System.nanoTime();
+		List<Provisioner.Job> jobs = new Provisioner(workers, attempts, 500,
+				new Provisioner.Listener() {
+					public void progress(Provisioner.Job job) {
+						if (progress)
+							System.out.printf("%s: %d/%d %s%n", job.getReader()
+									.getName(), job.getDone(), job.getScript()
+									.getSteps().size(), job.getScript()
+									.getSteps().get(job.getDone() - 1)
+									.getName());
+					}
+
+					public void completed(Provisioner.Job job) {
+						System.out.printf("%s: done%n", job.getReader()
+								.getName());
+					}
+
+					public void failed(Provisioner.Job job, Exception e,
+							boolean retry) {
+						System.out.printf("%s: attempt %d failed at step %d: "
+								+ "%s%s%n", job.getReader().getName(), job
+								.getAttempts(), job.getDone() + 1, e, retry
+								? ", retrying" : "");
+					}
+				}).run(readers, scripts);
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		int completed = 0;
+		for (Provisioner.Job job : jobs) {
+			if (job.isCompleted())
+				completed++;
+		}
+		System.out.printf("%d of %d cards provisioned in %.1f s%n", completed,
+				jobs.size(), seconds);
+		if (completed < jobs.size())
+			System.exit(1);
+	}
+
+	private static Provisioner.Reader pcsc(final CardTerminal terminal) {
+		return new Provisioner.Reader() {
+			public String getName() {
+				return terminal.getName();
+			}
+
+			public CardTransport connect() throws CardException {
+				return new PcscTransport(terminal);
+			}
+		};
+	}
+
+	/**
+	 * Reader with a simulated card that keeps its state between attempts.
+	 */
+	private static Provisioner.Reader simulated(final String name) {
+		final SimulatedCard card = new SimulatedCard();
+		return new Provisioner.Reader() {
+			public String getName() {
+				return name;
+			}
+
+			public CardTransport connect() {
+				card.reset();
+				return card;
+			}
+		};
+	}
+}
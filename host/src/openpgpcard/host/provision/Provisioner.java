@@ -0,0 +1,213 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host.provision;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.smartcardio.CardException;
+
+import openpgpcard.host.CardTransport;
+import openpgpcard.host.OpenPGPCard;
+
+/**
+ * Runs provisioning scripts on many cards in parallel with a bounded number
+ * of worker threads. A failed script is retried on the same card, resuming
+ * at the failed step, after a delay that doubles with every attempt.
+ */
+public class Provisioner {
+	/**
+	 * Reader holding a card to provision.
+	 */
+	public interface Reader {
+		String getName();
+
+		/**
+		 * Connect to the card, for every attempt.
+		 */
+		CardTransport connect() throws CardException;
+	}
+
+	/**
+	 * Notified of the progress of all cards, from the worker threads.
+	 */
+	public interface Listener {
+		void progress(Job job);
+
+		void completed(Job job);
+
+		/**
+		 * @param retry
+		 *            Whether the job will be retried
+		 */
+		void failed(Job job, Exception e, boolean retry);
+	}
+
+	/**
+	 * Provisioning of the card in one reader.
+	 */
+	public static class Job {
+		private final Reader reader;
+		private final ProvisioningScript script;
+		private volatile int done = 0;
+		private volatile int attempts = 0;
+		private volatile Exception error = null;
+
+		Job(Reader reader, ProvisioningScript script) {
+			this.reader = reader;
+			this.script = script;
+		}
+
+		public Reader getReader() {
+			return reader;
+		}
+
+		public ProvisioningScript getScript() {
+			return script;
+		}
+
+		/**
+		 * @return Number of steps done
+		 */
+		public int getDone() {
+			return done;
+		}
+
+		public int getAttempts() {
+			return attempts;
+		}
+
+		/**
+		 * @return Error of the last attempt, or null if the card was
+		 *         provisioned
+		 */
+		public Exception getError() {
+			return error;
+		}
+
+		public boolean isCompleted() {
+			return error == null && done == script.getSteps().size();
+		}
+	}
+
+	private final int workers;
+	private final int maxAttempts;
+	private final long retryDelay;
+	private final Listener listener;
+
+	/**
+	 * @param workers
+	 *            Number of cards provisioned at the same time
+	 * @param maxAttempts
+	 *            Attempts per card
+	 * @param retryDelay
+	 *            Delay in milliseconds before the first retry
+	 * @param listener
+	 *            Notified of the progress
+	 */
+	public Provisioner(int workers, int maxAttempts, long retryDelay,
+			Listener listener) {
+		this.workers = workers;
+		this.maxAttempts = maxAttempts;
+		this.retryDelay = retryDelay;
+		this.listener = listener;
+	}
+
+	/**
+	 * Provision the cards in the readers and wait until all are done.
+	 * 
+	 * @param readers
+	 *            Readers with a card each
+	 * @param scripts
+	 *            Script for the card in each reader
+	 * @return Jobs with the result per reader
+	 */
+	public List<Job> run(List<? extends Reader> readers,
+			List<ProvisioningScript> scripts) throws InterruptedException {
+		if (readers.size() != scripts.size())
+			throw new IllegalArgumentException("One script per reader needed");
+
+		List<Job> jobs = new ArrayList<Job>();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1,
+				Math.min(workers, readers.size())));
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int i = 0; i < readers.size(); i++) {
+				final Job job = new Job(readers.get(i), scripts.get(i));
+				jobs.add(job);
+				futures.add(executor.submit(new Runnable() {
+					public void run() {
+						provision(job);
+					}
+				}));
+			}
+			for (Future<?> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					throw new IllegalStateException(e.getCause());
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		return jobs;
+	}
+
+	private void provision(final Job job) {
+		long delay = retryDelay;
+		while (true) {
+			job.attempts++;
+			try {
+				CardTransport transport = job.reader.connect();
+				try {
+					job.script.run(new OpenPGPCard(transport), job.done,
+							new ProvisioningScript.Listener() {
+								public void step(int step) {
+									job.done = step + 1;
+									listener.progress(job);
+								}
+							});
+				} finally {
+					transport.close();
+				}
+				job.error = null;
+				listener.completed(job);
+				return;
+			} catch (CardException | RuntimeException e) {
+				job.error = e;
+				boolean retry = job.attempts < maxAttempts;
+				listener.failed(job, e, retry);
+				if (!retry)
+					return;
+			}
+
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				return;
+			}
+			delay *= 2;
+		}
+	}
+}
@@ -0,0 +1,349 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host.provision;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.interfaces.RSAPublicKey;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.smartcardio.CardException;
+
+import openpgpcard.host.CardStatusException;
+import openpgpcard.host.OpenPGPCard;
+
+/**
+ * Commands that provision a fresh card with a CardProfile. The script is kept
+ * as short as possible:
+ * 
+ * - Data objects and PINs that have their default value on a fresh card are
+ * not set.
+ * 
+ * - PW3 is verified once; the resetting code and PW1 are set after the
+ * other data objects and PW3 is changed last, so no other VERIFY is needed.
+ * 
+ * - Fingerprints and timestamps are computed on the host, for generated keys
+ * from the public key returned by GENERATE.
+ * 
+ * Data longer than a short APDU, like key import templates and certificates,
+ * is sent with command chaining by OpenPGPCard. The applet supports neither
+ * extended length nor data objects that set several fingerprints at once.
+ */
+public class ProvisioningScript {
+	private static final int CHUNK_SIZE = 255;
+
+	private static final int[] FINGERPRINT_TAGS = { 0xC7, 0xC8, 0xC9 };
+	private static final int[] TIME_TAGS = { 0xCE, 0xCF, 0xD0 };
+	private static final int[] KEYS = { OpenPGPCard.KEY_SIGNATURE,
+			OpenPGPCard.KEY_DECRYPTION, OpenPGPCard.KEY_AUTHENTICATION };
+
+	/**
+	 * Values of data objects on a fresh card, besides empty values.
+	 */
+	private static final Map<Integer, byte[]> DEFAULTS = new TreeMap<Integer, byte[]>();
+	static {
+		DEFAULTS.put(0x5F35, new byte[] { 0x39 });
+		DEFAULTS.put(0xC4, new byte[] { 0x00 });
+	}
+
+	/**
+	 * One command of the script.
+	 */
+	public static class Step {
+		private final String name;
+		private final int ins;
+		private final int p1;
+		private final int p2;
+		private final byte[] data;
+		private int generate = 0;
+		private long time = 0;
+		private int verifyMode = 0;
+		private byte[] newPin = null;
+
+		Step(String name, int ins, int p1, int p2, byte[] data) {
+			this.name = name;
+			this.ins = ins;
+			this.p1 = p1;
+			this.p2 = p2;
+			this.data = data;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return APDUs sent for the step, without GET RESPONSE
+		 */
+		public int getApdus() {
+			int apdus = Math.max(1, (data.length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+			// The fingerprint of a generated key
+			return generate != 0 ? apdus + 1 : apdus;
+		}
+
+		/**
+		 * @return True if the step is a PIN change and the new PIN can be
+		 *         verified
+		 */
+		boolean isDone(OpenPGPCard card) throws CardException {
+			if (newPin == null)
+				return false;
+			try {
+				card.verify(verifyMode, newPin);
+				return true;
+			} catch (CardStatusException e) {
+				return false;
+			}
+		}
+
+		void run(OpenPGPCard card) throws CardException {
+			if (generate != 0) {
+				RSAPublicKey key = OpenPGPCard.toPublicKey(card
+						.generateKey(generate));
+				card.putData(FINGERPRINT_TAGS[index(generate)], fingerprint(key,
+						time));
+			} else {
+				card.command(0x00, ins, p1, p2, data, false);
+			}
+		}
+	}
+
+	private final List<Step> steps = new ArrayList<Step>();
+
+	private ProvisioningScript() {
+	}
+
+	/**
+	 * Compile a profile.
+	 * 
+	 * @param profile
+	 *            Contents of the card
+	 * @param time
+	 *            Creation time of the keys in seconds since 1970, if the
+	 *            profile does not specify it
+	 * @return Script
+	 */
+	public static ProvisioningScript compile(CardProfile profile, long time) {
+		if (profile.getKeyTime() >= 0)
+			time = profile.getKeyTime();
+		byte[] pw1 = changed(profile.getPW1(), OpenPGPCard.PW1_DEFAULT);
+		byte[] pw3 = changed(profile.getPW3(), OpenPGPCard.PW3_DEFAULT);
+		ProvisioningScript script = new ProvisioningScript();
+
+		for (Map.Entry<Integer, byte[]> entry : new TreeMap<Integer, byte[]>(
+				profile.getDataObjects()).entrySet()) {
+			int tag = entry.getKey();
+			byte[] value = entry.getValue();
+			byte[] fresh = DEFAULTS.containsKey(tag) ? DEFAULTS.get(tag)
+					: new byte[0];
+			if (!Arrays.equals(value, fresh))
+				script.putData(String.format("PUT DATA %X", tag), tag, value);
+		}
+
+		List<Step> fingerprints = new ArrayList<Step>();
+		for (int key : KEYS) {
+			if (!profile.getKeys().containsKey(key))
+				continue;
+			RSAPrivateCrtKey privateKey = profile.getKeys().get(key);
+			int i = index(key);
+			if (privateKey == null) {
+				Step step = new Step(String.format("GENERATE %02X", key), 0x47,
+						0x80, 0x00, new byte[] { (byte) key, 0x00 });
+				step.generate = key;
+				step.time = time;
+				script.steps.add(step);
+			} else {
+				script.steps.add(new Step(String.format("IMPORT KEY %02X", key),
+						0xDB, 0x3F, 0xFF, OpenPGPCard.keyImportTemplate(key,
+								privateKey)));
+				fingerprints.add(new Step(String.format("PUT DATA %X",
+						FINGERPRINT_TAGS[i]), 0xDA, 0x00, FINGERPRINT_TAGS[i],
+						fingerprint(OpenPGPCard.toPublicKey(privateKey), time)));
+			}
+			fingerprints.add(new Step(String.format("PUT DATA %X",
+					TIME_TAGS[i]), 0xDA, 0x00, TIME_TAGS[i], new byte[] {
+					(byte) (time >> 24), (byte) (time >> 16),
+					(byte) (time >> 8), (byte) time }));
+		}
+		script.steps.addAll(fingerprints);
+
+		if (profile.getResettingCode() != null)
+			script.putData("PUT DATA D3", 0xD3, profile.getResettingCode());
+		if (pw1 != null)
+			script.changePin(OpenPGPCard.PW1_SIGN, OpenPGPCard.PW1,
+					OpenPGPCard.PW1_DEFAULT, pw1);
+		if (pw3 != null)
+			script.changePin(OpenPGPCard.PW3, OpenPGPCard.PW3,
+					OpenPGPCard.PW3_DEFAULT, pw3);
+		return script;
+	}
+
+	private void changePin(int reference, int verifyMode, byte[] oldPin,
+			byte[] newPin) {
+		Step step = new Step(String.format("CHANGE REFERENCE DATA %02X",
+				reference), 0x24, 0x00, reference, concat(oldPin, newPin));
+		step.verifyMode = verifyMode;
+		step.newPin = newPin;
+		steps.add(step);
+	}
+
+	private void putData(String name, int tag, byte[] value) {
+		steps.add(new Step(name, 0xDA, tag >> 8, tag & 0xFF, value));
+	}
+
+	/**
+	 * @return Steps of the script, without the SELECT and VERIFY PW3
+	 *         preceding them
+	 */
+	public List<Step> getSteps() {
+		return Collections.unmodifiableList(steps);
+	}
+
+	/**
+	 * @return APDUs sent to provision a card, including SELECT and VERIFY
+	 *         and excluding GET RESPONSE
+	 */
+	public int getApdus() {
+		int apdus = 2;
+		for (Step step : steps)
+			apdus += step.getApdus();
+		return apdus;
+	}
+
+	/**
+	 * Run the script from the given step. The applet is selected and PW3
+	 * verified first. When resuming at a PIN change, the new PIN is tried
+	 * first, as the change may have been done without the response being
+	 * received; a wrong try is undone by the following successful change or
+	 * verification.
+	 * 
+	 * @param card
+	 *            Card to provision
+	 * @param from
+	 *            Index of the first step to run
+	 * @param listener
+	 *            Notified after every step, may be null
+	 * @throws CardException
+	 *             If a step fails; the steps before it are done
+	 */
+	public void run(OpenPGPCard card, int from, Listener listener)
+			throws CardException {
+		card.select();
+		Step resumed = from > 0 && from < steps.size() ? steps.get(from)
+				: null;
+		if (resumed != null && resumed.verifyMode == OpenPGPCard.PW3
+				&& resumed.isDone(card)) {
+			from++;
+		} else {
+			card.verify(OpenPGPCard.PW3, OpenPGPCard.PW3_DEFAULT);
+			if (resumed != null && resumed.verifyMode == OpenPGPCard.PW1
+					&& resumed.isDone(card))
+				from++;
+		}
+		if (listener != null && from > 0)
+			listener.step(from - 1);
+
+		for (int i = from; i < steps.size(); i++) {
+			steps.get(i).run(card);
+			if (listener != null)
+				listener.step(i);
+		}
+	}
+
+	/**
+	 * Notified of the progress of a script.
+	 */
+	public interface Listener {
+		/**
+		 * @param step
+		 *            Index of the step that is done
+		 */
+		void step(int step);
+	}
+
+	/**
+	 * OpenPGP version 4 fingerprint of an RSA key: SHA-1 over the public key
+	 * packet.
+	 * 
+	 * @param key
+	 *            Public key
+	 * @param time
+	 *            Creation time in seconds since 1970
+	 * @return Fingerprint of 20 bytes
+	 */
+	public static byte[] fingerprint(RSAPublicKey key, long time) {
+		ByteArrayOutputStream packet = new ByteArrayOutputStream();
+		packet.write(0x04);
+		packet.write((int) (time >> 24));
+		packet.write((int) (time >> 16));
+		packet.write((int) (time >> 8));
+		packet.write((int) time);
+		packet.write(0x01);
+		mpi(packet, key.getModulus());
+		mpi(packet, key.getPublicExponent());
+
+		try {
+			MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+			sha1.update((byte) 0x99);
+			sha1.update((byte) (packet.size() >> 8));
+			sha1.update((byte) packet.size());
+			sha1.update(packet.toByteArray());
+			return sha1.digest();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void mpi(ByteArrayOutputStream out, BigInteger value) {
+		byte[] bytes = value.toByteArray();
+		int offset = bytes[0] == 0 && bytes.length > 1 ? 1 : 0;
+		out.write(value.bitLength() >> 8);
+		out.write(value.bitLength());
+		out.write(bytes, offset, bytes.length - offset);
+	}
+
+	private static int index(int key) {
+		for (int i = 0; i < KEYS.length; i++) {
+			if (KEYS[i] == key)
+				return i;
+		}
+		throw new IllegalArgumentException("Unknown key reference");
+	}
+
+	/**
+	 * @return The PIN, or null if it equals the default
+	 */
+	private static byte[] changed(byte[] pin, byte[] fresh) {
+		return pin == null || Arrays.equals(pin, fresh) ? null : pin;
+	}
+
+	private static byte[] concat(byte[] a, byte[] b) {
+		byte[] result = Arrays.copyOf(a, a.length + b.length);
+		System.arraycopy(b, 0, result, a.length, b.length);
+		return result;
+	}
+}
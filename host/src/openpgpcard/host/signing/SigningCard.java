@@ -0,0 +1,135 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host.signing;
+
+import java.util.Arrays;
+
+import javax.smartcardio.CardException;
+
+import openpgpcard.host.CardStatusException;
+import openpgpcard.host.CardTransport;
+import openpgpcard.host.OpenPGPCard;
+
+/**
+ * Card of a SigningPool. Keeps the fingerprint of the signature key, the PW1
+ * status byte and the digital signature counter, and verifies PW1 for
+ * signing when the card requires it. Not thread safe: a card is used by one
+ * worker thread only.
+ */
+public class SigningCard {
+	private static final int SW_SECURITY_STATUS_NOT_SATISFIED = 0x6982;
+
+	private final String name;
+	private final OpenPGPCard card;
+	private final byte[] pin;
+	private byte[] fingerprint;
+	private boolean multipleSignatures;
+	private boolean verified = false;
+	private long signatureCounter;
+
+	/**
+	 * @param name
+	 *            Name of the card, for messages
+	 * @param transport
+	 *            Transport to the card
+	 * @param pin
+	 *            PW1
+	 */
+	public SigningCard(String name, CardTransport transport, byte[] pin) {
+		this.name = name;
+		this.card = new OpenPGPCard(transport);
+		this.pin = pin.clone();
+	}
+
+	/**
+	 * Select the applet and read the fingerprint, the PW1 status (from GET
+	 * DATA 6E) and the signature counter (from GET DATA 7A).
+	 */
+	public void open() throws CardException {
+		card.select();
+		verified = false;
+
+		byte[] data = card.getData(0x6E);
+		byte[] fingerprints = OpenPGPCard.find(data, 0xC5);
+		byte[] status = OpenPGPCard.find(data, 0xC4);
+		if (fingerprints == null || fingerprints.length < 20 || status == null
+				|| status.length < 1)
+			throw new CardException("Incomplete application related data");
+		fingerprint = Arrays.copyOf(fingerprints, 20);
+		multipleSignatures = status[0] != 0;
+
+		byte[] counter = OpenPGPCard.find(card.getData(0x7A), 0x93);
+		if (counter == null)
+			throw new CardException("No signature counter");
+		signatureCounter = 0;
+		for (byte b : counter)
+			signatureCounter = (signatureCounter << 8) | (b & 0xFF);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return Fingerprint of the signature key (C7)
+	 */
+	public byte[] getFingerprint() {
+		return fingerprint.clone();
+	}
+
+	/**
+	 * @return Digital signature counter of the card
+	 */
+	public long getSignatureCounter() {
+		return signatureCounter;
+	}
+
+	/**
+	 * Compute a signature. PW1 is verified before the signature if the card
+	 * allows only one signature per verification, and otherwise once, or
+	 * again when the card no longer accepts the verification.
+	 * 
+	 * @param digestInfo
+	 *            DigestInfo to sign
+	 * @return Signature
+	 */
+	public byte[] sign(byte[] digestInfo) throws CardException {
+		if (!verified || !multipleSignatures) {
+			card.verify(OpenPGPCard.PW1_SIGN, pin);
+			verified = true;
+		}
+
+		byte[] signature;
+		try {
+			signature = card.sign(digestInfo);
+		} catch (CardStatusException e) {
+			if (e.getStatus() != SW_SECURITY_STATUS_NOT_SATISFIED
+					|| !multipleSignatures)
+				throw e;
+			card.verify(OpenPGPCard.PW1_SIGN, pin);
+			signature = card.sign(digestInfo);
+		}
+		signatureCounter++;
+		return signature;
+	}
+
+	public void close() throws CardException {
+		card.getTransport().close();
+	}
+}
@@ -0,0 +1,253 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host.signing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.smartcardio.CardException;
+
+import openpgpcard.host.CardStatusException;
+import openpgpcard.host.CardTransport;
+
+/**
+ * Pool of cards computing signatures in parallel. Every card has its own
+ * worker thread, which is the only thread using the card. A request is
+ * queued at the least loaded card with the requested signature key.
+ * 
+ * A status word returned by the card fails only the request, as it may be
+ * caused by the request itself, for example a malformed DigestInfo. A card is
+ * removed from the pool when the transport fails, for example when the
+ * reader is gone, or when PW1 is blocked. The request it was processing
+ * fails and its queued requests are passed to the other cards. A request is
+ * never sent to another card after it failed.
+ */
+public class SigningPool {
+	private static final int SW_PIN_BLOCKED = 0x6983;
+
+	/**
+	 * Notified when a card is removed, from its worker thread.
+	 */
+	public interface Listener {
+		void removed(SigningCard card, Exception e);
+	}
+
+	private static class Request {
+		final byte[] fingerprint;
+		final byte[] digestInfo;
+		final CompletableFuture<byte[]> result = new CompletableFuture<byte[]>();
+
+		Request(byte[] fingerprint, byte[] digestInfo) {
+			this.fingerprint = fingerprint;
+			this.digestInfo = digestInfo;
+		}
+	}
+
+	private class Worker extends Thread {
+		final SigningCard card;
+		final BlockingQueue<Request> queue = new LinkedBlockingQueue<Request>();
+		final CompletableFuture<Void> opened = new CompletableFuture<Void>();
+		volatile int load = 0;
+
+		Worker(SigningCard card) {
+			super("signing " + card.getName());
+			this.card = card;
+			setDaemon(true);
+		}
+
+		public void run() {
+			try {
+				card.open();
+				opened.complete(null);
+			} catch (CardException | RuntimeException e) {
+				opened.completeExceptionally(e);
+				close();
+				return;
+			}
+
+			try {
+				while (true) {
+					Request request = queue.take();
+					if (request.digestInfo == null)
+						break;
+					try {
+						byte[] signature = card.sign(request.digestInfo);
+						signatures.incrementAndGet();
+						request.result.complete(signature);
+					} catch (CardStatusException e) {
+						request.result.completeExceptionally(e);
+						if (e.getStatus() == SW_PIN_BLOCKED) {
+							fail(e);
+							return;
+						}
+					} catch (CardException | RuntimeException e) {
+						request.result.completeExceptionally(e);
+						fail(e);
+						return;
+					} finally {
+						synchronized (SigningPool.this) {
+							load--;
+						}
+					}
+				}
+			} catch (InterruptedException e) {
+				// Pool closed
+			}
+			close();
+		}
+
+		/**
+		 * Remove the card from the pool and dispatch its queued requests to
+		 * other cards.
+		 */
+		private void fail(Exception e) {
+			List<Request> requests = new ArrayList<Request>();
+			synchronized (SigningPool.this) {
+				workers.remove(this);
+				queue.drainTo(requests);
+			}
+			close();
+			if (listener != null)
+				listener.removed(card, e);
+			for (Request r : requests) {
+				if (r.digestInfo != null)
+					dispatch(r);
+			}
+		}
+
+		private void close() {
+			try {
+				card.close();
+			} catch (CardException e) {
+				// Card is no longer used
+			}
+		}
+	}
+
+	private final List<Worker> workers = new ArrayList<Worker>();
+	private final AtomicLong signatures = new AtomicLong();
+	private final Listener listener;
+
+	/**
+	 * @param listener
+	 *            Notified when a card is removed, may be null
+	 */
+	public SigningPool(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Add a card to the pool. The card is opened by its worker thread; this
+	 * method returns when it is ready.
+	 * 
+	 * @param name
+	 *            Name of the card, for messages
+	 * @param transport
+	 *            Transport to the card, only used by the worker thread
+	 * @param pin
+	 *            PW1
+	 * @return The card
+	 * @throws CardException
+	 *             If the card could not be opened
+	 */
+	public SigningCard add(String name, CardTransport transport, byte[] pin)
+			throws CardException, InterruptedException {
+		Worker worker = new Worker(new SigningCard(name, transport, pin));
+		worker.start();
+		try {
+			worker.opened.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof CardException)
+				throw (CardException) e.getCause();
+			throw new CardException(e.getCause());
+		}
+
+		synchronized (this) {
+			workers.add(worker);
+		}
+		return worker.card;
+	}
+
+	/**
+	 * Request a signature.
+	 * 
+	 * @param fingerprint
+	 *            Fingerprint of the signature key
+	 * @param digestInfo
+	 *            DigestInfo to sign
+	 * @return Signature, or a CardException if no card has the key or the
+	 *         card returned an error for the request
+	 */
+	public Future<byte[]> sign(byte[] fingerprint, byte[] digestInfo) {
+		Request request = new Request(fingerprint.clone(), digestInfo.clone());
+		dispatch(request);
+		return request.result;
+	}
+
+	private void dispatch(Request request) {
+		Worker best = null;
+		synchronized (this) {
+			for (Worker worker : workers) {
+				if (Arrays.equals(worker.card.getFingerprint(),
+						request.fingerprint)
+						&& (best == null || worker.load < best.load))
+					best = worker;
+			}
+			if (best != null) {
+				best.load++;
+				best.queue.add(request);
+			}
+		}
+		if (best == null)
+			request.result.completeExceptionally(new CardException(
+					"No card with the requested signature key"));
+	}
+
+	/**
+	 * @return Number of cards in the pool
+	 */
+	public synchronized int size() {
+		return workers.size();
+	}
+
+	/**
+	 * @return Signatures computed by all cards
+	 */
+	public long getSignatures() {
+		return signatures.get();
+	}
+
+	/**
+	 * Stop all workers after their queued requests and close the cards.
+	 */
+	public void close() {
+		synchronized (this) {
+			for (Worker worker : workers)
+				worker.queue.add(new Request(new byte[0], null));
+			workers.clear();
+		}
+	}
+}
@@ -0,0 +1,343 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host.sim;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.RSAPrivateCrtKeySpec;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import javax.smartcardio.CardException;
+
+import openpgpcard.OpenPGPApplet;
+import openpgpcard.host.Hex;
+import openpgpcard.host.OpenPGPCard;
+
+/**
+ * Personalization of a card with fixed data objects and freshly generated
+ * keys, used as the starting point for benchmarks and traces.
+ * 
+ * Simulated cards can be personalized from a snapshot of a personalized
+ * card, which is much faster than generating keys. Snapshots are kept in
+ * memory and, if the system property openpgpcard.snapshots names a
+ * directory, in files in that directory.
+ */
+public class CardFixture {
+	public static final String SNAPSHOTS_PROPERTY = "openpgpcard.snapshots";
+
+	public static final byte[] NAME = "Doe<<John".getBytes();
+	public static final byte[] LANG = "en".getBytes();
+	public static final byte[] URL = "https://example.org/key.asc".getBytes();
+	public static final byte[] LOGIN = "jdoe".getBytes();
+	public static final int CERT_LENGTH = 500;
+
+	public static final byte[] SM_ENC_KEY = repeat((byte) 0x11, 16);
+	public static final byte[] SM_MAC_KEY = repeat((byte) 0x22, 16);
+
+	private static final int[] KEYS = { OpenPGPCard.KEY_SIGNATURE,
+			OpenPGPCard.KEY_DECRYPTION, OpenPGPCard.KEY_AUTHENTICATION };
+	private static final int[] FINGERPRINT_TAGS = { 0xC7, 0xC8, 0xC9 };
+	private static final int[] TIME_TAGS = { 0xCE, 0xCF, 0xD0 };
+
+	private static final BigInteger PUBLIC_EXPONENT = BigInteger.valueOf(65537);
+
+	private static final String[] APPLET_CLASSES = { "OpenPGPApplet",
+			"OpenPGPSecureMessaging", "PGPKey", "CryptoPool", "TLV" };
+	private static final Map<String, CardState> snapshots = new HashMap<String, CardState>();
+
+	private final RSAPublicKey[] publicKeys = new RSAPublicKey[KEYS.length];
+
+	/**
+	 * Personalize the card and generate all three keys on the card.
+	 *
+	 * @param card
+	 *            Selected card with default PINs
+	 * @throws CardException
+	 */
+	public void personalize(OpenPGPCard card) throws CardException {
+		personalize(card, true);
+	}
+
+	/**
+	 * Personalize the card: set the cardholder data, a certificate of
+	 * CERT_LENGTH bytes and PW1 status 01 (PW1 valid for multiple
+	 * signatures), and generate or import all three keys. Leaves PW3
+	 * verified.
+	 *
+	 * @param card
+	 *            Selected card with default PINs
+	 * @param generate
+	 *            Generate the keys on the card, otherwise the keys from
+	 *            testKey() are imported. Imported keys make the card
+	 *            deterministic, but GENERATE 81 does not return their public
+	 *            key.
+	 * @throws CardException
+	 */
+	public void personalize(OpenPGPCard card, boolean generate)
+			throws CardException {
+		card.verify(OpenPGPCard.PW3, OpenPGPCard.PW3_DEFAULT);
+
+		card.putData(0x5B, NAME);
+		card.putData(0x5F2D, LANG);
+		card.putData(0x5F35, new byte[] { 0x39 });
+		card.putData(0x5F50, URL);
+		card.putData(0x5E, LOGIN);
+		card.putData(0x7F21, certificate());
+		card.putData(0xC4, new byte[] { 0x01 });
+
+		for (int i = 0; i < KEYS.length; i++) {
+			if (generate) {
+				publicKeys[i] = OpenPGPCard.toPublicKey(card.generateKey(KEYS[i]));
+			} else {
+				RSAPrivateCrtKey key = testKey(KEYS[i]);
+				card.importKey(KEYS[i], key);
+				publicKeys[i] = OpenPGPCard.toPublicKey(key);
+			}
+			card.putData(FINGERPRINT_TAGS[i], fingerprint(publicKeys[i]));
+			card.putData(TIME_TAGS[i], new byte[] { 0x5A, 0x00, 0x00, 0x00 });
+		}
+	}
+
+	/**
+	 * Personalize a simulated card in the same way as personalize(), by
+	 * restoring a snapshot. If there is no snapshot yet, the card is
+	 * personalized and a snapshot is taken. Leaves the applet selected and
+	 * PW3 verified.
+	 * 
+	 * @param simulator
+	 *            Simulated card, freshly installed
+	 * @param generate
+	 *            Generate the keys on the card, otherwise the keys from
+	 *            testKey() are imported
+	 * @throws CardException
+	 */
+	public void personalize(SimulatedCard simulator, boolean generate)
+			throws CardException {
+		String name = "personalized-" + (generate ? "generated" : "imported")
+				+ "-" + appletVersion();
+		if (simulator.getParameters().length > 0)
+			name += "-" + Hex.toString(simulator.getParameters());
+		CardState state = snapshot(name);
+		OpenPGPCard card = new OpenPGPCard(simulator);
+
+		if (state == null) {
+			card.select();
+			personalize(card, generate);
+			state = CardState.save(simulator);
+			store(name, state);
+		} else {
+			state.restore(simulator);
+			card.select();
+			for (int i = 0; i < KEYS.length; i++) {
+				if (generate)
+					publicKeys[i] = OpenPGPCard.toPublicKey(card
+							.readPublicKey(KEYS[i]));
+				else
+					publicKeys[i] = OpenPGPCard.toPublicKey(testKey(KEYS[i]));
+			}
+		}
+
+		card.select();
+		card.verify(OpenPGPCard.PW3, OpenPGPCard.PW3_DEFAULT);
+	}
+
+	private static synchronized CardState snapshot(String name) {
+		CardState state = snapshots.get(name);
+		File file = snapshotFile(name);
+		if (state == null && file != null && file.exists()) {
+			try {
+				state = CardState.read(file);
+				snapshots.put(name, state);
+			} catch (IOException e) {
+				// Personalize the card instead
+			}
+		}
+		return state;
+	}
+
+	private static synchronized void store(String name, CardState state) {
+		snapshots.put(name, state);
+		File file = snapshotFile(name);
+		if (file == null)
+			return;
+		try {
+			file.getParentFile().mkdirs();
+			state.write(file);
+		} catch (IOException e) {
+			// Only kept in memory
+		}
+	}
+
+	private static File snapshotFile(String name) {
+		String directory = System.getProperty(SNAPSHOTS_PROPERTY);
+		return directory == null ? null : new File(directory, name
+				+ ".properties");
+	}
+
+	/**
+	 * @return Checksum of the applet classes, so snapshots of an older applet
+	 *         are not used
+	 */
+	private static String appletVersion() {
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[4096];
+		for (String name : APPLET_CLASSES) {
+			InputStream in = OpenPGPApplet.class.getResourceAsStream(name
+					+ ".class");
+			if (in == null)
+				continue;
+			try {
+				try {
+					for (int n = in.read(buffer); n > 0; n = in.read(buffer))
+						crc.update(buffer, 0, n);
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		return Long.toHexString(crc.getValue());
+	}
+
+	/**
+	 * Verify PW1 for signing and for the other operations.
+	 *
+	 * @param card
+	 *            Selected card
+	 * @throws CardException
+	 */
+	public static void login(OpenPGPCard card) throws CardException {
+		card.verify(OpenPGPCard.PW1_SIGN, OpenPGPCard.PW1_DEFAULT);
+		card.verify(OpenPGPCard.PW1, OpenPGPCard.PW1_DEFAULT);
+	}
+
+	/**
+	 * @param key
+	 *            Key reference (B6, B8 or A4)
+	 * @return Public key generated during personalization
+	 */
+	public RSAPublicKey getPublicKey(int key) {
+		for (int i = 0; i < KEYS.length; i++) {
+			if (KEYS[i] == key)
+				return publicKeys[i];
+		}
+		throw new IllegalArgumentException("Unknown key reference");
+	}
+
+	/**
+	 * Fixed 2048 bit test key for the given key reference. The primes are
+	 * derived from a seeded random generator, so the key is the same in
+	 * every run. Never use these keys for anything but tests.
+	 *
+	 * @param key
+	 *            Key reference (B6, B8 or A4)
+	 * @return RSA private key
+	 */
+	public static RSAPrivateCrtKey testKey(int key) {
+		Random random = new Random(key);
+		BigInteger p, q, n;
+		do {
+			p = prime(random);
+			q = prime(random);
+			n = p.multiply(q);
+		} while (n.bitLength() != 2048 || p.equals(q));
+
+		BigInteger p1 = p.subtract(BigInteger.ONE);
+		BigInteger q1 = q.subtract(BigInteger.ONE);
+		BigInteger d = PUBLIC_EXPONENT.modInverse(p1.multiply(q1));
+
+		try {
+			return (RSAPrivateCrtKey) KeyFactory.getInstance("RSA")
+					.generatePrivate(new RSAPrivateCrtKeySpec(n,
+							PUBLIC_EXPONENT, d, p, q, d.mod(p1), d.mod(q1), q
+									.modInverse(p)));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return 1024 bit prime p for which e is invertible modulo p - 1
+	 */
+	private static BigInteger prime(Random random) {
+		BigInteger p;
+		do {
+			p = BigInteger.probablePrime(1024, random);
+		} while (!p.subtract(BigInteger.ONE).gcd(PUBLIC_EXPONENT)
+				.equals(BigInteger.ONE));
+		return p;
+	}
+
+	/**
+	 * @return Certificate of CERT_LENGTH bytes with recognizable content
+	 */
+	public static byte[] certificate() {
+		byte[] cert = new byte[CERT_LENGTH];
+		for (int i = 0; i < cert.length; i++)
+			cert[i] = (byte) i;
+		return cert;
+	}
+
+	/**
+	 * @return SHA-256 DigestInfo of the given data
+	 */
+	public static byte[] digestInfo(byte[] data) {
+		byte[] prefix = { 0x30, 0x31, 0x30, 0x0D, 0x06, 0x09, 0x60, (byte) 0x86,
+				0x48, 0x01, 0x65, 0x03, 0x04, 0x02, 0x01, 0x05, 0x00, 0x04, 0x20 };
+		byte[] hash = sha(data, "SHA-256");
+		byte[] info = Arrays.copyOf(prefix, prefix.length + hash.length);
+		System.arraycopy(hash, 0, info, prefix.length, hash.length);
+		return info;
+	}
+
+	/**
+	 * The fingerprint is not computed as specified by OpenPGP, as there is no
+	 * OpenPGP key packet. It only has to be unique for the key.
+	 */
+	private static byte[] fingerprint(RSAPublicKey key) {
+		return sha(key.getModulus().toByteArray(), "SHA-1");
+	}
+
+	private static byte[] sha(byte[] data, String algorithm) {
+		try {
+			return MessageDigest.getInstance(algorithm).digest(data);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static byte[] repeat(byte value, int length) {
+		byte[] data = new byte[length];
+		Arrays.fill(data, value);
+		return data;
+	}
+}
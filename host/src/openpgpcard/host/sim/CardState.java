@@ -0,0 +1,343 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host.sim;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Properties;
+import java.util.Set;
+
+import javacard.framework.OwnerPIN;
+import javacard.security.AESKey;
+import javacard.security.DESKey;
+import javacard.security.Key;
+import javacard.security.KeyBuilder;
+import javacard.security.KeyPair;
+import javacard.security.RSAPrivateCrtKey;
+import javacard.security.RSAPrivateKey;
+import javacard.security.RSAPublicKey;
+
+import openpgpcard.host.Hex;
+
+/**
+ * Persistent state of a simulated applet: the fields of the applet and of
+ * the objects of its package, PINs and keys. The state is stored as
+ * properties named after the path of fields from the applet, e.g.
+ * "sig_key.key.private.P", and restored into a freshly installed applet with
+ * the same install parameters.
+ * 
+ * Transient memory is not part of the state. Cipher, Signature and other
+ * engine objects are skipped, as the applet initializes them before use.
+ */
+public class CardState {
+	private static final int MAX_KEY_COMPONENT = 512;
+
+	private final Properties values = new Properties();
+	// Objects walked so far, objects referenced twice are walked once
+	private final Set<Object> walked = Collections
+			.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+
+	private CardState() {
+	}
+
+	/**
+	 * Save the state of a card. The card is reset first, so transient memory
+	 * is cleared and no PIN remains verified.
+	 * 
+	 * @return State of the card
+	 */
+	public static CardState save(SimulatedCard card) {
+		CardState state = new CardState();
+		synchronized (card.getLock()) {
+			card.reset();
+			state.walked.clear();
+			state.walk(card.getApplet(), "", true);
+		}
+		return state;
+	}
+
+	/**
+	 * Restore the state into a card. The card is reset afterwards.
+	 * 
+	 * @throws IllegalStateException
+	 *             If the state does not fit the applet, for example because
+	 *             it was installed with other parameters
+	 */
+	public void restore(SimulatedCard card) {
+		synchronized (card.getLock()) {
+			card.reset();
+			walked.clear();
+			walk(card.getApplet(), "", false);
+			card.reset();
+		}
+	}
+
+	public static CardState read(File file) throws IOException {
+		CardState state = new CardState();
+		InputStream in = new FileInputStream(file);
+		try {
+			state.values.load(in);
+		} finally {
+			in.close();
+		}
+		return state;
+	}
+
+	/**
+	 * Write the state to a file. A temporary file is renamed to the file, so
+	 * the file is not left half written.
+	 */
+	public void write(File file) throws IOException {
+		File temporary = new File(file.getPath() + ".tmp");
+		OutputStream out = new FileOutputStream(temporary);
+		try {
+			values.store(out, "Simulated OpenPGP card state");
+		} finally {
+			out.close();
+		}
+		if (!temporary.renameTo(file)) {
+			file.delete();
+			if (!temporary.renameTo(file))
+				throw new IOException("Cannot write " + file);
+		}
+	}
+
+	/**
+	 * Save or restore the instance fields of an object.
+	 */
+	private void walk(Object object, String path, boolean save) {
+		for (Class<?> c = object.getClass(); isWalked(c); c = c
+				.getSuperclass()) {
+			for (Field field : c.getDeclaredFields()) {
+				if (Modifier.isStatic(field.getModifiers()))
+					continue;
+				field.setAccessible(true);
+				field(object, field, path + field.getName(), save);
+			}
+		}
+	}
+
+	private static boolean isWalked(Class<?> c) {
+		return c == OwnerPIN.class || c.getName().startsWith("openpgpcard.")
+				&& c.getName().indexOf('.', "openpgpcard.".length()) < 0;
+	}
+
+	private void field(Object object, Field field, String path, boolean save) {
+		try {
+			Class<?> type = field.getType();
+			if (type.isPrimitive()) {
+				if (save)
+					values.setProperty(path, field.get(object).toString());
+				else if (values.containsKey(path))
+					field.set(object, parse(type, values.getProperty(path)));
+				return;
+			}
+
+			Object value = field.get(object);
+			if (value == null && !save && type == AESKey.class
+					&& values.containsKey(path + ".size")) {
+				// Allocated by the applet when the key is first set
+				value = KeyBuilder.buildKey(KeyBuilder.TYPE_AES, Short
+						.parseShort(values.getProperty(path + ".size")), false);
+				field.set(object, value);
+			}
+			value(value, path, save);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void value(Object value, String path, boolean save) {
+		if (value == null) {
+			return;
+		} else if (value instanceof byte[] || value instanceof short[]
+				|| value instanceof boolean[]) {
+			array(value, path, save);
+		} else if (value instanceof Object[]) {
+			Object[] array = (Object[]) value;
+			for (int i = 0; i < array.length; i++)
+				value(array[i], path + "[" + i + "]", save);
+		} else if (value instanceof KeyPair) {
+			value(((KeyPair) value).getPrivate(), path + ".private", save);
+			value(((KeyPair) value).getPublic(), path + ".public", save);
+		} else if (value instanceof Key) {
+			key((Key) value, path, save);
+		} else if (isWalked(value.getClass()) && walked.add(value)) {
+			walk(value, path + ".", save);
+		}
+	}
+
+	/**
+	 * Save or restore the contents of a byte, short or boolean array. The
+	 * array itself is kept, so references to it remain valid.
+	 */
+	private void array(Object array, String path, boolean save) {
+		int length = Array.getLength(array);
+		if (save) {
+			byte[] data = new byte[length * elementSize(array)];
+			for (int i = 0; i < length; i++) {
+				if (array instanceof byte[]) {
+					data[i] = ((byte[]) array)[i];
+				} else if (array instanceof short[]) {
+					data[2 * i] = (byte) (((short[]) array)[i] >> 8);
+					data[2 * i + 1] = (byte) ((short[]) array)[i];
+				} else {
+					data[i] = (byte) (((boolean[]) array)[i] ? 1 : 0);
+				}
+			}
+			values.setProperty(path, Hex.toString(data));
+			return;
+		}
+
+		String value = values.getProperty(path);
+		if (value == null)
+			return;
+		byte[] data = Hex.toBytes(value);
+		if (data.length != length * elementSize(array))
+			throw new IllegalStateException("Length of " + path
+					+ " differs, applet installed with other parameters?");
+		for (int i = 0; i < length; i++) {
+			if (array instanceof byte[])
+				((byte[]) array)[i] = data[i];
+			else if (array instanceof short[])
+				((short[]) array)[i] = (short) ((data[2 * i] << 8) | (data[2 * i + 1] & 0xFF));
+			else
+				((boolean[]) array)[i] = data[i] != 0;
+		}
+	}
+
+	private static int elementSize(Object array) {
+		return array instanceof short[] ? 2 : 1;
+	}
+
+	private void key(Key key, String path, boolean save) {
+		if (save) {
+			values.setProperty(path + ".initialized",
+					Boolean.toString(key.isInitialized()));
+			if (key instanceof AESKey)
+				values.setProperty(path + ".size",
+						Short.toString(key.getSize()));
+			if (!key.isInitialized())
+				return;
+		} else {
+			String initialized = values.getProperty(path + ".initialized");
+			if (initialized == null)
+				return;
+			if (!Boolean.parseBoolean(initialized)) {
+				key.clearKey();
+				return;
+			}
+		}
+
+		byte[] buffer = new byte[MAX_KEY_COMPONENT];
+		if (key instanceof RSAPrivateCrtKey) {
+			RSAPrivateCrtKey k = (RSAPrivateCrtKey) key;
+			if (save) {
+				put(path + ".P", buffer, k.getP(buffer, (short) 0));
+				put(path + ".Q", buffer, k.getQ(buffer, (short) 0));
+				put(path + ".DP1", buffer, k.getDP1(buffer, (short) 0));
+				put(path + ".DQ1", buffer, k.getDQ1(buffer, (short) 0));
+				put(path + ".PQ", buffer, k.getPQ(buffer, (short) 0));
+			} else {
+				byte[] p = get(path + ".P");
+				k.setP(p, (short) 0, (short) p.length);
+				byte[] q = get(path + ".Q");
+				k.setQ(q, (short) 0, (short) q.length);
+				byte[] dp1 = get(path + ".DP1");
+				k.setDP1(dp1, (short) 0, (short) dp1.length);
+				byte[] dq1 = get(path + ".DQ1");
+				k.setDQ1(dq1, (short) 0, (short) dq1.length);
+				byte[] pq = get(path + ".PQ");
+				k.setPQ(pq, (short) 0, (short) pq.length);
+			}
+		} else if (key instanceof RSAPrivateKey) {
+			RSAPrivateKey k = (RSAPrivateKey) key;
+			if (save) {
+				put(path + ".modulus", buffer, k.getModulus(buffer, (short) 0));
+				put(path + ".exponent", buffer,
+						k.getExponent(buffer, (short) 0));
+			} else {
+				byte[] modulus = get(path + ".modulus");
+				k.setModulus(modulus, (short) 0, (short) modulus.length);
+				byte[] exponent = get(path + ".exponent");
+				k.setExponent(exponent, (short) 0, (short) exponent.length);
+			}
+		} else if (key instanceof RSAPublicKey) {
+			RSAPublicKey k = (RSAPublicKey) key;
+			if (save) {
+				put(path + ".modulus", buffer, k.getModulus(buffer, (short) 0));
+				put(path + ".exponent", buffer,
+						k.getExponent(buffer, (short) 0));
+			} else {
+				byte[] modulus = get(path + ".modulus");
+				k.setModulus(modulus, (short) 0, (short) modulus.length);
+				byte[] exponent = get(path + ".exponent");
+				k.setExponent(exponent, (short) 0, (short) exponent.length);
+			}
+		} else if (key instanceof DESKey) {
+			DESKey k = (DESKey) key;
+			if (save)
+				put(path + ".key", buffer, k.getKey(buffer, (short) 0));
+			else
+				k.setKey(get(path + ".key"), (short) 0);
+		} else if (key instanceof AESKey) {
+			AESKey k = (AESKey) key;
+			if (save)
+				put(path + ".key", buffer, k.getKey(buffer, (short) 0));
+			else
+				k.setKey(get(path + ".key"), (short) 0);
+		} else {
+			throw new IllegalStateException("Unsupported key type at " + path);
+		}
+	}
+
+	private void put(String path, byte[] buffer, short length) {
+		byte[] data = new byte[length];
+		System.arraycopy(buffer, 0, data, 0, length);
+		values.setProperty(path, Hex.toString(data));
+	}
+
+	private byte[] get(String path) {
+		String value = values.getProperty(path);
+		if (value == null)
+			throw new IllegalStateException("Missing " + path);
+		return Hex.toBytes(value);
+	}
+
+	private static Object parse(Class<?> type, String value) {
+		if (type == byte.class)
+			return Byte.valueOf(value);
+		if (type == short.class)
+			return Short.valueOf(value);
+		if (type == int.class)
+			return Integer.valueOf(value);
+		if (type == boolean.class)
+			return Boolean.valueOf(value);
+		throw new IllegalStateException("Unsupported field type " + type);
+	}
+}
@@ -0,0 +1,236 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host.sim;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javacard.framework.AID;
+import javacard.framework.Applet;
+
+import javax.smartcardio.CardException;
+
+import openpgpcard.OpenPGPApplet;
+import openpgpcard.host.CardTransport;
+import openpgpcard.host.Hex;
+
+import com.licel.jcardsim.base.Simulator;
+import com.licel.jcardsim.base.SimulatorRuntime;
+import com.licel.jcardsim.utils.AIDUtil;
+
+/**
+ * OpenPGPApplet installed in the jCardSim Java Card simulator.
+ */
+public class SimulatedCard implements CardTransport {
+	/**
+	 * Default instance AID, as used in build.properties.
+	 */
+	public static final byte[] AID = Hex.toBytes("D2760001240102000000000000010000");
+
+	public static final String PROTOCOL_T0 = "T=0";
+	public static final String PROTOCOL_T1 = "T=1";
+	public static final String PROTOCOL_CONTACTLESS = "T=CL,TYPE_A,T1";
+
+	// Held while the simulator runs applet code or its state is accessed.
+	// Every card has its own runtime, so cards run in parallel.
+	private final Object lock = new Object();
+	private final Simulator simulator;
+	private final AID aid;
+	private final Class<? extends Applet> appletClass;
+	private final byte[] parameters;
+	private Applet applet = null;
+
+	/**
+	 * Install the applet without applet specific install parameters.
+	 */
+	public SimulatedCard() {
+		this(new byte[0]);
+	}
+
+	/**
+	 * Install the applet.
+	 *
+	 * @param parameters
+	 *            Applet specific install parameters
+	 */
+	public SimulatedCard(byte[] parameters) {
+		this(OpenPGPApplet.class, parameters);
+	}
+
+	/**
+	 * Install an applet class, for example one loaded by an instrumenting
+	 * class loader.
+	 *
+	 * @param applet
+	 *            Applet class
+	 * @param parameters
+	 *            Applet specific install parameters
+	 */
+	public SimulatedCard(Class<? extends Applet> applet, byte[] parameters) {
+		// The default runtime of the simulator is shared by all simulators
+		simulator = new Simulator(new SimulatorRuntime());
+		aid = AIDUtil.create(AID);
+		appletClass = applet;
+		this.parameters = parameters.clone();
+
+		byte[] install = installParameters(AID, parameters);
+		synchronized (lock) {
+			simulator.installApplet(aid, applet, install, (short) 0,
+					(byte) install.length);
+		}
+	}
+
+	/**
+	 * Build install parameters in the format passed to Applet.install():
+	 * instance AID, control information and applet specific parameters, each
+	 * preceded by their length.
+	 *
+	 * @param aid
+	 *            Instance AID
+	 * @param parameters
+	 *            Applet specific install parameters
+	 * @return Install parameters
+	 */
+	public static byte[] installParameters(byte[] aid, byte[] parameters) {
+		byte[] install = new byte[aid.length + parameters.length + 3];
+		install[0] = (byte) aid.length;
+		System.arraycopy(aid, 0, install, 1, aid.length);
+		install[aid.length + 1] = 0;
+		install[aid.length + 2] = (byte) parameters.length;
+		System.arraycopy(parameters, 0, install, aid.length + 3,
+				parameters.length);
+		return install;
+	}
+
+	/**
+	 * @return Applet specific install parameters
+	 */
+	public byte[] getParameters() {
+		return parameters.clone();
+	}
+
+	/**
+	 * Change the transport protocol reported to the applet.
+	 *
+	 * @param protocol
+	 *            One of PROTOCOL_T0, PROTOCOL_T1 or PROTOCOL_CONTACTLESS
+	 */
+	public void setProtocol(String protocol) {
+		synchronized (lock) {
+			simulator.changeProtocol(protocol);
+		}
+	}
+
+	/**
+	 * Simulate removing and inserting the card. Transient data is cleared and
+	 * the applet is deselected.
+	 */
+	public void reset() {
+		synchronized (lock) {
+			simulator.reset();
+		}
+	}
+
+	/**
+	 * @return Lock to hold while the state of the applet is accessed directly
+	 */
+	Object getLock() {
+		return lock;
+	}
+
+	/**
+	 * @return The underlying simulator
+	 */
+	public Simulator getSimulator() {
+		return simulator;
+	}
+
+	/**
+	 * Find the installed applet instance. The simulator has no API for this,
+	 * so its objects are searched for an instance of the applet class.
+	 * 
+	 * @return The applet instance
+	 */
+	public Applet getApplet() {
+		if (applet == null)
+			applet = find(simulator, appletClass);
+		return applet;
+	}
+
+	private static <T> T find(Object root, Class<T> type) {
+		Set<Object> seen = Collections
+				.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+		Deque<Object> queue = new ArrayDeque<Object>();
+		queue.add(root);
+
+		while (!queue.isEmpty()) {
+			Object object = queue.remove();
+			if (!seen.add(object))
+				continue;
+			if (type.isInstance(object))
+				return type.cast(object);
+
+			Class<?> c = object.getClass();
+			if (object instanceof Map) {
+				queue.addAll(((Map<?, ?>) object).values());
+			} else if (object instanceof Collection) {
+				queue.addAll((Collection<?>) object);
+			} else if (object instanceof Object[]) {
+				for (Object element : (Object[]) object) {
+					if (element != null)
+						queue.add(element);
+				}
+			} else if (!c.isArray() && !c.getName().startsWith("java")) {
+				for (; c != null && c != Object.class; c = c.getSuperclass()) {
+					for (Field field : c.getDeclaredFields()) {
+						if (Modifier.isStatic(field.getModifiers())
+								|| field.getType().isPrimitive())
+							continue;
+						try {
+							field.setAccessible(true);
+							Object value = field.get(object);
+							if (value != null)
+								queue.add(value);
+						} catch (RuntimeException | IllegalAccessException e) {
+							// Not accessible, so it cannot lead to the applet
+						}
+					}
+				}
+			}
+		}
+		throw new IllegalStateException("Applet instance not found");
+	}
+
+	public byte[] transmit(byte[] command) throws CardException {
+		try {
+			synchronized (lock) {
+				return simulator.transmitCommand(command);
+			}
+		} catch (RuntimeException e) {
+			throw new CardException(e);
+		}
+	}
+}
@@ -0,0 +1,112 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host.trace;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Figures of earlier trace replays, stored as properties with keys
+ * "trace.apdus", "trace.sent", "trace.received" and "trace.p50" (median
+ * replay time in microseconds). Missing keys are not compared.
+ */
+public class Baseline {
+	private final Properties properties = new Properties();
+
+	public static Baseline load(File file) throws IOException {
+		Baseline baseline = new Baseline();
+		InputStream in = new FileInputStream(file);
+		try {
+			baseline.properties.load(in);
+		} finally {
+			in.close();
+		}
+		return baseline;
+	}
+
+	public void store(File file) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			properties.store(out, "Trace replay baseline");
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return Differences between the result and the baseline
+	 */
+	public List<String> compare(TraceReplay.Result result) {
+		List<String> lines = new ArrayList<String>();
+		compare(lines, result, "apdus", "APDUs", result.getApdus());
+		compare(lines, result, "sent", "bytes sent", result.getBytesSent());
+		compare(lines, result, "received", "bytes received",
+				result.getBytesReceived());
+		compare(lines, result, "p50", "median time (us)", result.getTotal()
+				.getPercentile(50) / 1000);
+		return lines;
+	}
+
+	/**
+	 * @return True if the replay needed more APDUs than the baseline
+	 */
+	public boolean isRegression(TraceReplay.Result result) {
+		long apdus = get(result, "apdus");
+		return apdus >= 0 && result.getApdus() > apdus;
+	}
+
+	/**
+	 * Replace the figures of the trace by those of the result.
+	 */
+	public void update(TraceReplay.Result result) {
+		set(result, "apdus", result.getApdus());
+		set(result, "sent", result.getBytesSent());
+		set(result, "received", result.getBytesReceived());
+		set(result, "p50", result.getTotal().getPercentile(50) / 1000);
+	}
+
+	private void compare(List<String> lines, TraceReplay.Result result,
+			String key, String description, long value) {
+		long old = get(result, key);
+		if (old < 0)
+			return;
+
+		String change = old == 0 ? "" : String.format(" (%+.1f%%)",
+				(value - old) * 100.0 / old);
+		lines.add(String.format("%-18s baseline %d, now %d%s", description,
+				old, value, change));
+	}
+
+	private long get(TraceReplay.Result result, String key) {
+		String value = properties.getProperty(result.getName() + "." + key);
+		return value == null ? -1 : Long.parseLong(value.trim());
+	}
+
+	private void set(TraceReplay.Result result, String key, long value) {
+		properties.setProperty(result.getName() + "." + key,
+				Long.toString(value));
+	}
+}
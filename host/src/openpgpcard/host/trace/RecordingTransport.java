@@ -0,0 +1,68 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host.trace;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+
+import javax.smartcardio.CardException;
+
+import openpgpcard.host.CardTransport;
+import openpgpcard.host.Hex;
+
+/**
+ * Transport that writes all exchanged APDUs in the hex trace format read by
+ * Trace.
+ */
+public class RecordingTransport implements CardTransport {
+	private final CardTransport transport;
+	private final PrintWriter out;
+
+	/**
+	 * @param transport
+	 *            Transport used to communicate with the card
+	 * @param writer
+	 *            Destination of the trace, flushed after every response
+	 */
+	public RecordingTransport(CardTransport transport, Writer writer) {
+		this.transport = transport;
+		this.out = new PrintWriter(writer);
+	}
+
+	/**
+	 * Write a comment to the trace.
+	 */
+	public void comment(String text) {
+		out.println("# " + text);
+		out.flush();
+	}
+
+	public byte[] transmit(byte[] command) throws CardException {
+		out.println("> " + Hex.toString(command));
+		byte[] response = transport.transmit(command);
+		out.println("< " + Hex.toString(response));
+		out.flush();
+		return response;
+	}
+
+	public void close() throws CardException {
+		out.flush();
+		transport.close();
+	}
+}
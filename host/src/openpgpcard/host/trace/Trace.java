@@ -0,0 +1,247 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host.trace;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import openpgpcard.host.Hex;
+
+/**
+ * Sequence of command APDUs with the status words they are expected to
+ * return.
+ * 
+ * Traces are read from plain hex trace files or pcsc-spy logs. A hex trace
+ * contains a line "> hex" for every command and optionally a line "< hex"
+ * with the response (or only its status word). Lines starting with # are
+ * comments, a comment "# iterations: n" sets the number of replays.
+ * 
+ * GET RESPONSE commands are not part of a trace: they follow from the 61xx
+ * status words of the card that the trace is replayed against. The expected
+ * status of a command is the status of its last response.
+ */
+public class Trace {
+	private static final Pattern ITERATIONS = Pattern
+			.compile("#\\s*iterations:\\s*(\\d+)");
+	private static final Pattern SPY_DATA = Pattern
+			.compile("^\\s*[io]\\s+[0-9A-Fa-f]{4}((?:\\s[0-9A-Fa-f]{2})+)");
+
+	/**
+	 * Command of a trace.
+	 */
+	public static class Entry {
+		private final byte[] command;
+		private final int status;
+
+		Entry(byte[] command, int status) {
+			this.command = command;
+			this.status = status;
+		}
+
+		/**
+		 * @return Command APDU
+		 */
+		public byte[] getCommand() {
+			return command;
+		}
+
+		/**
+		 * @return Expected status word, or -1 if not known
+		 */
+		public int getStatus() {
+			return status;
+		}
+	}
+
+	private final String name;
+	private final List<Entry> entries = new ArrayList<Entry>();
+	private int iterations = -1;
+
+	public Trace(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Read a trace from a hex trace file or a pcsc-spy log. The name of the
+	 * trace is the file name without extension.
+	 */
+	public static Trace read(File file) throws IOException {
+		String name = file.getName();
+		if (name.lastIndexOf('.') > 0)
+			name = name.substring(0, name.lastIndexOf('.'));
+
+		Reader reader = new FileReader(file);
+		try {
+			return read(name, reader);
+		} finally {
+			reader.close();
+		}
+	}
+
+	public static Trace read(String name, Reader reader) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(reader);
+		boolean spy = false;
+		for (String line = in.readLine(); line != null; line = in.readLine()) {
+			lines.add(line);
+			spy |= line.contains("pbSendBuffer");
+		}
+
+		Trace trace = new Trace(name);
+		if (spy)
+			trace.parseSpy(lines);
+		else
+			trace.parseHex(lines);
+		return trace;
+	}
+
+	private void parseHex(List<String> lines) throws IOException {
+		byte[] command = null;
+		for (String line : lines) {
+			line = line.trim();
+			Matcher matcher = ITERATIONS.matcher(line);
+			if (matcher.matches()) {
+				iterations = Integer.parseInt(matcher.group(1));
+			} else if (line.startsWith(">")) {
+				if (command != null)
+					add(command, null);
+				command = parse(line.substring(1));
+			} else if (line.startsWith("<")) {
+				if (command == null)
+					throw new IOException("Response without command: " + line);
+				add(command, parse(line.substring(1)));
+				command = null;
+			} else if (line.length() > 0 && !line.startsWith("#")) {
+				throw new IOException("Invalid trace line: " + line);
+			}
+		}
+		if (command != null)
+			add(command, null);
+	}
+
+	/**
+	 * Parse the pbSendBuffer and pbRecvBuffer dumps of SCardTransmit calls
+	 * in a pcsc-spy log.
+	 */
+	private void parseSpy(List<String> lines) throws IOException {
+		StringBuilder data = null;
+		byte[] command = null;
+		boolean send = false;
+		for (String line : lines) {
+			Matcher matcher = SPY_DATA.matcher(line);
+			if (data != null && matcher.find()) {
+				data.append(matcher.group(1));
+				continue;
+			}
+
+			if (data != null) {
+				if (send) {
+					command = parse(data.toString());
+				} else if (command != null) {
+					add(command, parse(data.toString()));
+					command = null;
+				}
+				data = null;
+			}
+
+			if (line.contains("pbSendBuffer")) {
+				data = new StringBuilder();
+				send = true;
+			} else if (line.contains("pbRecvBuffer")) {
+				data = new StringBuilder();
+				send = false;
+			}
+		}
+		if (data != null && !send && command != null)
+			add(command, parse(data.toString()));
+	}
+
+	/**
+	 * Add a command to the trace. GET RESPONSE commands only update the
+	 * expected status of the previous command.
+	 * 
+	 * @param command
+	 *            Command APDU
+	 * @param response
+	 *            Response APDU or status word, may be null
+	 */
+	public void add(byte[] command, byte[] response) {
+		int status = -1;
+		if (response != null && response.length >= 2)
+			status = ((response[response.length - 2] & 0xFF) << 8)
+					| (response[response.length - 1] & 0xFF);
+
+		if (command.length >= 4 && command[1] == (byte) 0xC0
+				&& !entries.isEmpty()) {
+			Entry last = entries.remove(entries.size() - 1);
+			entries.add(new Entry(last.command, status));
+		} else {
+			entries.add(new Entry(command.clone(), status));
+		}
+	}
+
+	/**
+	 * Write the trace in the hex trace format.
+	 */
+	public void write(Writer writer) {
+		PrintWriter out = new PrintWriter(writer);
+		out.println("# " + name);
+		if (iterations > 0)
+			out.println("# iterations: " + iterations);
+		for (Entry entry : entries) {
+			out.println("> " + Hex.toString(entry.command));
+			if (entry.status >= 0)
+				out.println(String.format("< %04X", entry.status));
+		}
+		out.flush();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public List<Entry> getEntries() {
+		return Collections.unmodifiableList(entries);
+	}
+
+	/**
+	 * @return Number of replays requested by the trace, or -1
+	 */
+	public int getIterations() {
+		return iterations;
+	}
+
+	private static byte[] parse(String hex) throws IOException {
+		try {
+			return Hex.toBytes(hex);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Invalid hex data: " + hex.trim());
+		}
+	}
+}
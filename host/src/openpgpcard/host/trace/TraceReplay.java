@@ -0,0 +1,281 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host.trace;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.smartcardio.CardException;
+
+import openpgpcard.host.CardTransport;
+import openpgpcard.host.CommandNames;
+import openpgpcard.host.CountingTransport;
+import openpgpcard.host.LatencyHistogram;
+import openpgpcard.host.sim.CardFixture;
+import openpgpcard.host.sim.SimulatedCard;
+
+/**
+ * Replays traces against the applet in the simulator and reports latency,
+ * round trips and bytes per trace. Every trace is replayed on a freshly
+ * personalized card with the fixed test keys of CardFixture, so recorded
+ * cryptograms can be decrypted.
+ * 
+ * Usage: TraceReplay [--iterations n] [--baseline file] [--update-baseline]
+ * trace...
+ * 
+ * Exits with status 1 if a command returns another status word than
+ * recorded, or if a trace needs more APDUs than in the baseline.
+ */
+public class TraceReplay {
+	private static final int DEFAULT_ITERATIONS = 10;
+
+	/**
+	 * Figures of the replays of one trace.
+	 */
+	public static class Result {
+		private final String name;
+		private final int iterations;
+		private long apdus = 0;
+		private long bytesSent = 0;
+		private long bytesReceived = 0;
+		private final LatencyHistogram total = new LatencyHistogram();
+		private final Map<String, LatencyHistogram> commands = new LinkedHashMap<String, LatencyHistogram>();
+		private final List<String> errors = new ArrayList<String>();
+
+		Result(String name, int iterations) {
+			this.name = name;
+			this.iterations = iterations;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getIterations() {
+			return iterations;
+		}
+
+		/**
+		 * @return APDUs exchanged in one replay, including GET RESPONSE
+		 */
+		public long getApdus() {
+			return apdus;
+		}
+
+		/**
+		 * @return Bytes sent in one replay
+		 */
+		public long getBytesSent() {
+			return bytesSent;
+		}
+
+		/**
+		 * @return Bytes received in one replay
+		 */
+		public long getBytesReceived() {
+			return bytesReceived;
+		}
+
+		/**
+		 * @return Latency of complete replays
+		 */
+		public LatencyHistogram getTotal() {
+			return total;
+		}
+
+		/**
+		 * @return Latency per command name, including GET RESPONSE
+		 *         continuations
+		 */
+		public Map<String, LatencyHistogram> getCommands() {
+			return commands;
+		}
+
+		/**
+		 * @return Commands that returned an unexpected status word
+		 */
+		public List<String> getErrors() {
+			return errors;
+		}
+	}
+
+	private final CountingTransport transport;
+
+	/**
+	 * @param transport
+	 *            Transport to the card the trace is replayed against
+	 */
+	public TraceReplay(CardTransport transport) {
+		this.transport = new CountingTransport(transport);
+	}
+
+	/**
+	 * Replay a trace.
+	 * 
+	 * @param trace
+	 *            Trace to replay
+	 * @param iterations
+	 *            Number of replays
+	 * @return Figures of the replays
+	 * @throws CardException
+	 */
+	public Result replay(Trace trace, int iterations) throws CardException {
+		Result result = new Result(trace.getName(), iterations);
+
+		for (int i = 0; i < iterations; i++) {
+			transport.reset();
+			long start = System.nanoTime();
+
+			for (Trace.Entry entry : trace.getEntries()) {
+				long begin = System.nanoTime();
+				int status = transmit(entry.getCommand());
+				String name = CommandNames.name(entry.getCommand());
+
+				LatencyHistogram histogram = result.commands.get(name);
+				if (histogram == null) {
+					histogram = new LatencyHistogram();
+					result.commands.put(name, histogram);
+				}
+				histogram.record(System.nanoTime() - begin);
+
+				if (i == 0 && entry.getStatus() >= 0
+						&& entry.getStatus() != status)
+					result.errors.add(String.format(
+							"%s returned %04X, expected %04X", name, status,
+							entry.getStatus()));
+			}
+
+			result.total.record(System.nanoTime() - start);
+			result.apdus = Math.max(result.apdus, transport.getCommands());
+			result.bytesSent = Math.max(result.bytesSent,
+					transport.getBytesSent());
+			result.bytesReceived = Math.max(result.bytesReceived,
+					transport.getBytesReceived());
+		}
+
+		return result;
+	}
+
+	/**
+	 * Send a command and retrieve all response data with GET RESPONSE.
+	 * 
+	 * @return Final status word
+	 */
+	private int transmit(byte[] command) throws CardException {
+		int status = status(transport.transmit(command));
+		while ((status & 0xFF00) == 0x6100)
+			status = status(transport.transmit(new byte[] { 0x00,
+					(byte) 0xC0, 0x00, 0x00, (byte) status }));
+		return status;
+	}
+
+	private static int status(byte[] response) {
+		return ((response[response.length - 2] & 0xFF) << 8)
+				| (response[response.length - 1] & 0xFF);
+	}
+
+	/**
+	 * Install the applet in a new simulator and personalize it with the test
+	 * keys. The card is reset afterwards, so no PIN is verified.
+	 */
+	public static SimulatedCard personalizedCard() throws CardException {
+		return personalize(new SimulatedCard());
+	}
+
+	/**
+	 * Personalize a simulated card with the test keys and reset it.
+	 * 
+	 * @return The given card
+	 */
+	public static SimulatedCard personalize(SimulatedCard simulator)
+			throws CardException {
+		new CardFixture().personalize(simulator, false);
+		simulator.reset();
+		return simulator;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int iterations = -1;
+		File baselineFile = null;
+		boolean update = false;
+		List<File> files = new ArrayList<File>();
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--iterations"))
+				iterations = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--baseline"))
+				baselineFile = new File(args[++i]);
+			else if (args[i].equals("--update-baseline"))
+				update = true;
+			else
+				files.add(new File(args[i]));
+		}
+
+		Baseline baseline = baselineFile != null && baselineFile.exists() ? Baseline
+				.load(baselineFile) : new Baseline();
+		boolean failed = false;
+
+		for (File file : files) {
+			Trace trace = Trace.read(file);
+			int n = iterations > 0 ? iterations
+					: trace.getIterations() > 0 ? trace.getIterations()
+							: DEFAULT_ITERATIONS;
+
+			Result result = new TraceReplay(personalizedCard()).replay(trace, n);
+			print(result);
+
+			for (String error : result.getErrors()) {
+				System.out.println("  ERROR " + error);
+				failed = true;
+			}
+			for (String line : baseline.compare(result)) {
+				System.out.println("  " + line);
+			}
+			if (baseline.isRegression(result)) {
+				System.out.println("  FAILED APDU count regression");
+				failed = true;
+			}
+			System.out.println();
+
+			if (update)
+				baseline.update(result);
+		}
+
+		if (update && baselineFile != null)
+			baseline.store(baselineFile);
+
+		if (failed)
+			System.exit(1);
+	}
+
+	private static void print(Result result) {
+		System.out.printf("%s: %d iterations, %d APDUs, %d bytes sent, "
+				+ "%d bytes received per replay%n", result.getName(),
+				result.getIterations(), result.getApdus(),
+				result.getBytesSent(), result.getBytesReceived());
+		System.out.printf("  %-28s %s%n", "replay", result.getTotal());
+		for (Map.Entry<String, LatencyHistogram> entry : result.getCommands()
+				.entrySet()) {
+			System.out.printf("  %-28s %s%n", entry.getKey(), entry.getValue());
+		}
+	}
+}
@@ -0,0 +1,134 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.smartcardio.CardException;
+
+import openpgpcard.host.CardStatusException;
+import openpgpcard.host.Hex;
+import openpgpcard.host.OpenPGPCard;
+import openpgpcard.host.sim.SimulatedCard;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * PSO: ENCIPHER and DECIPHER with the AES key (D5).
+ */
+public class AesTest {
+	// Buffers of 688 bytes, a multiple of the block size
+	private static final int BUFFER_LENGTH = 688;
+
+	private OpenPGPCard card;
+
+	@Before
+	public void setUp() throws CardException {
+		card = new OpenPGPCard(new SimulatedCard(Hex.toBytes("020202B0")));
+		card.select();
+		card.verify(OpenPGPCard.PW3, OpenPGPCard.PW3_DEFAULT);
+		card.verify(OpenPGPCard.PW1, OpenPGPCard.PW1_DEFAULT);
+	}
+
+	@Test
+	public void enciphersWithCbcAndZeroIv() throws Exception {
+		for (int length : new int[] { 16, 32 }) {
+			byte[] key = data(length);
+			card.putData(0xD5, key);
+			byte[] plaintext = data(48);
+
+			byte[] cryptogram = card.encipher(plaintext);
+			assertEquals(0x02, cryptogram[0]);
+			byte[] expected = aes(Cipher.ENCRYPT_MODE, key, plaintext);
+			assertArrayEquals(expected, Arrays.copyOfRange(cryptogram, 1,
+					cryptogram.length));
+			assertArrayEquals(plaintext, card.decipherAES(expected));
+		}
+	}
+
+	@Test
+	public void enciphersLongestDataFittingTheBuffer() throws Exception {
+		byte[] key = data(16);
+		card.putData(0xD5, key);
+		byte[] plaintext = data(BUFFER_LENGTH - 16);
+
+		byte[] cryptogram = card.encipher(plaintext);
+		assertArrayEquals(aes(Cipher.ENCRYPT_MODE, key, plaintext), Arrays
+				.copyOfRange(cryptogram, 1, cryptogram.length));
+	}
+
+	@Test
+	public void rejectsDataNotFittingWithPaddingIndicator()
+			throws CardException {
+		card.putData(0xD5, data(16));
+		assertStatus(0x6700, data(BUFFER_LENGTH), true);
+	}
+
+	@Test
+	public void rejectsPartialBlocks() throws CardException {
+		card.putData(0xD5, data(16));
+		assertStatus(0x6700, data(17), true);
+		assertStatus(0x6700, new byte[0], true);
+		assertStatus(0x6700, data(15), false);
+	}
+
+	@Test
+	public void requiresKey() throws CardException {
+		assertStatus(0x6985, data(16), true);
+		card.putData(0xD5, data(16));
+		card.putData(0xD5, new byte[0]);
+		assertStatus(0x6985, data(16), false);
+	}
+
+	private void assertStatus(int status, byte[] data, boolean encipher)
+			throws CardException {
+		try {
+			if (encipher)
+				card.encipher(data);
+			else
+				card.decipherAES(data);
+			fail();
+		} catch (CardStatusException e) {
+			assertEquals(status, e.getStatus());
+		}
+	}
+
+	private static byte[] aes(int mode, byte[] key, byte[] data)
+			throws Exception {
+		Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+		cipher.init(mode, new SecretKeySpec(key, "AES"), new IvParameterSpec(
+				new byte[16]));
+		return cipher.doFinal(data);
+	}
+
+	private static byte[] data(int length) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++)
+			data[i] = (byte) (i * 7);
+		return data;
+	}
+}
@@ -0,0 +1,145 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.smartcardio.CardException;
+
+import openpgpcard.host.CardStatusException;
+import openpgpcard.host.Hex;
+import openpgpcard.host.OpenPGPCard;
+import openpgpcard.host.sim.CardFixture;
+import openpgpcard.host.sim.SimulatedCard;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * File Control Information returned on SELECT: the AID (84) and the
+ * proprietary information (A5) with the extended capabilities (C0), PW status
+ * (C4), change counter (E1) and key presence (E2).
+ */
+public class FciTest {
+	private OpenPGPCard card;
+
+	@Before
+	public void setUp() {
+		card = new OpenPGPCard(new SimulatedCard());
+	}
+
+	@Test
+	public void containsDataObjectsInOrder() throws CardException {
+		byte[] fci = card.select();
+		assertEquals(0x6F, fci[0]);
+		assertEquals(fci.length - 2, fci[1]);
+
+		byte[] template = OpenPGPCard.find(fci, 0x6F);
+		assertEquals(Arrays.asList(0x84, 0xA5), tags(template));
+		assertArrayEquals(SimulatedCard.AID, OpenPGPCard.find(template, 0x84));
+		assertEquals(Arrays.asList(0xC0, 0xC4, 0xE1, 0xE2),
+				tags(OpenPGPCard.find(template, 0xA5)));
+		assertEquals(7, proprietary(fci, 0xC4).length);
+		assertEquals(1, proprietary(fci, 0xE2).length);
+	}
+
+	@Test
+	public void matchesGetData() throws CardException {
+		byte[] fci = card.select();
+		assertArrayEquals(OpenPGPCard.find(card.getData(0x6E), 0xC0),
+				proprietary(fci, 0xC0));
+		assertArrayEquals(card.getData(0xC4), proprietary(fci, 0xC4));
+		assertArrayEquals(card.getData(0xE1), proprietary(fci, 0xE1));
+		assertEquals("00", Hex.toString(proprietary(fci, 0xE2)));
+	}
+
+	@Test
+	public void reflectsPwStatus() throws CardException {
+		byte[] before = proprietary(card.select(), 0xC4);
+		try {
+			card.verify(OpenPGPCard.PW1, "000000".getBytes());
+			fail();
+		} catch (CardStatusException e) {
+			assertEquals(0x63C2, e.getStatus());
+		}
+
+		byte[] after = proprietary(card.select(), 0xC4);
+		assertEquals(before[4] - 1, after[4]);
+		assertArrayEquals(card.getData(0xC4), after);
+	}
+
+	@Test
+	public void reflectsChangesAndKeys() throws CardException {
+		byte[] counter = proprietary(card.select(), 0xE1);
+
+		card.verify(OpenPGPCard.PW3, OpenPGPCard.PW3_DEFAULT);
+		card.putData(0x5B, CardFixture.NAME);
+		card.importKey(OpenPGPCard.KEY_SIGNATURE,
+				CardFixture.testKey(OpenPGPCard.KEY_SIGNATURE));
+		byte[] fci = card.select();
+		assertFalse(Arrays.equals(counter, proprietary(fci, 0xE1)));
+		assertArrayEquals(card.getData(0xE1), proprietary(fci, 0xE1));
+		assertEquals("01", Hex.toString(proprietary(fci, 0xE2)));
+
+		card.verify(OpenPGPCard.PW3, OpenPGPCard.PW3_DEFAULT);
+		card.importKey(OpenPGPCard.KEY_DECRYPTION,
+				CardFixture.testKey(OpenPGPCard.KEY_DECRYPTION));
+		card.importKey(OpenPGPCard.KEY_AUTHENTICATION,
+				CardFixture.testKey(OpenPGPCard.KEY_AUTHENTICATION));
+		card.putData(0xD5, new byte[16]);
+		assertEquals("0F", Hex.toString(proprietary(card.select(), 0xE2)));
+	}
+
+	/**
+	 * Value of a data object in the proprietary information (A5). Its data
+	 * objects are taken one by one, as E1 and E2 have the constructed bit set
+	 * but hold plain values, which OpenPGPCard.find() would look into.
+	 */
+	private static byte[] proprietary(byte[] fci, int tag) {
+		byte[] data = OpenPGPCard.find(fci, 0xA5);
+		int offset = 0;
+		while (offset < data.length) {
+			int length = data[offset + 1] & 0xFF;
+			if ((data[offset] & 0xFF) == tag)
+				return Arrays.copyOfRange(data, offset + 2, offset + 2 + length);
+			offset += 2 + length;
+		}
+		return null;
+	}
+
+	/**
+	 * @return Tags of the data objects at the top level of the data
+	 */
+	private static List<Integer> tags(byte[] data) {
+		List<Integer> tags = new ArrayList<Integer>();
+		int offset = 0;
+		while (offset < data.length) {
+			tags.add(data[offset] & 0xFF);
+			offset += 2 + (data[offset + 1] & 0xFF);
+		}
+		return tags;
+	}
+}
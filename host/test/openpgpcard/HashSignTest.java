@@ -0,0 +1,122 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.security.GeneralSecurityException;
+import java.security.Signature;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+
+import javax.smartcardio.CardException;
+
+import openpgpcard.host.CardStatusException;
+import openpgpcard.host.OpenPGPCard;
+import openpgpcard.host.sim.CardFixture;
+import openpgpcard.host.sim.SimulatedCard;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * PSO: COMPUTE DIGITAL SIGNATURE over data hashed on the card (9E80).
+ */
+public class HashSignTest {
+	private OpenPGPCard card;
+	private RSAPublicKey publicKey;
+
+	@Before
+	public void setUp() throws CardException {
+		SimulatedCard simulator = new SimulatedCard();
+		CardFixture fixture = new CardFixture();
+		fixture.personalize(simulator, false);
+		publicKey = fixture.getPublicKey(OpenPGPCard.KEY_SIGNATURE);
+		card = new OpenPGPCard(simulator);
+	}
+
+	@Test
+	public void signsSha256() throws Exception {
+		byte[] data = data(100);
+		card.verify(OpenPGPCard.PW1_SIGN, OpenPGPCard.PW1_DEFAULT);
+		assertVerifies("SHA256withRSA", data,
+				card.hashAndSign(OpenPGPCard.HASH_SHA256, data));
+	}
+
+	@Test
+	public void signsDataLongerThanBuffer() throws Exception {
+		byte[] data = data(3000);
+		card.verify(OpenPGPCard.PW1_SIGN, OpenPGPCard.PW1_DEFAULT);
+		assertVerifies("SHA512withRSA", data,
+				card.hashAndSign(OpenPGPCard.HASH_SHA512, data));
+		card.verify(OpenPGPCard.PW1_SIGN, OpenPGPCard.PW1_DEFAULT);
+		assertVerifies("SHA256withRSA", data,
+				card.hashAndSign(OpenPGPCard.HASH_SHA256, data));
+	}
+
+	@Test
+	public void rejectsUnknownAlgorithm() throws CardException {
+		card.verify(OpenPGPCard.PW1_SIGN, OpenPGPCard.PW1_DEFAULT);
+		assertFails(new byte[] { 0x02, 0x01, 0x02 }, 0x6A80);
+	}
+
+	@Test
+	public void requiresPw1() throws CardException {
+		assertFails(new byte[] { OpenPGPCard.HASH_SHA256, 0x01 }, 0x6982);
+	}
+
+	@Test
+	public void otherCommandEndsHashing() throws CardException {
+		card.verify(OpenPGPCard.PW1_SIGN, OpenPGPCard.PW1_DEFAULT);
+		card.command(0x10, 0x2A, 0x9E, 0x80, new byte[] {
+				OpenPGPCard.HASH_SHA256, 0x01, 0x02 }, false);
+		card.getData(0xC4);
+
+		// The next command starts a new hash, so its first byte is taken as
+		// the algorithm
+		assertFails(new byte[] { 0x03, 0x04 }, 0x6A80);
+	}
+
+	private void assertFails(byte[] data, int status) throws CardException {
+		try {
+			card.command(0x00, 0x2A, 0x9E, 0x80, data, true);
+			fail();
+		} catch (CardStatusException e) {
+			assertEquals(status, e.getStatus());
+		}
+	}
+
+	private void assertVerifies(String algorithm, byte[] data,
+			byte[] signature) throws GeneralSecurityException {
+		Signature verifier = Signature.getInstance(algorithm);
+		verifier.initVerify(publicKey);
+		verifier.update(data);
+		assertTrue(verifier.verify(signature));
+	}
+
+	private static byte[] data(int length) {
+		byte[] data = new byte[length];
+		Arrays.fill(data, (byte) 0x5A);
+		for (int i = 0; i < length; i += 7)
+			data[i] = (byte) i;
+		return data;
+	}
+}
@@ -0,0 +1,142 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.security.GeneralSecurityException;
+import java.security.Signature;
+import java.security.interfaces.RSAPublicKey;
+
+import javax.smartcardio.CardException;
+
+import openpgpcard.host.CardStatusException;
+import openpgpcard.host.Hex;
+import openpgpcard.host.OpenPGPCard;
+import openpgpcard.host.sim.CardFixture;
+import openpgpcard.host.sim.SimulatedCard;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * GENERATE RESERVE KEYS (EC), the reserve status (E5) and GENERATE
+ * ASYMMETRIC KEY PAIR taking key pairs from the reserve.
+ */
+public class ReserveKeysTest {
+	private static final byte[] MESSAGE = "Attack at dawn".getBytes();
+
+	private OpenPGPCard card;
+
+	@Before
+	public void setUp() throws CardException {
+		// 1024 bit keys, two reserve slots
+		card = new OpenPGPCard(new SimulatedCard(
+				Hex.toBytes("0603010400090102")));
+		card.select();
+	}
+
+	@Test
+	public void reserveIsEmptyAfterInstall() throws CardException {
+		assertEquals("0002", Hex.toString(card.getData(0xE5)));
+	}
+
+	@Test
+	public void generatesReserveKeys() throws CardException {
+		card.verify(OpenPGPCard.PW3, OpenPGPCard.PW3_DEFAULT);
+		assertArrayEquals(new int[] { 1, 2 }, card.generateReserveKeys(1));
+		assertEquals("0102", Hex.toString(card.getData(0xE5)));
+
+		// Only the empty slots are filled
+		assertArrayEquals(new int[] { 2, 2 }, card.generateReserveKeys(0));
+		assertArrayEquals(new int[] { 2, 2 }, card.generateReserveKeys(0));
+		assertEquals("0202", Hex.toString(card.getData(0xE5)));
+	}
+
+	@Test
+	public void generatingReserveKeysRequiresPw3() throws CardException {
+		assertFails(0x6982);
+		assertEquals("0002", Hex.toString(card.getData(0xE5)));
+	}
+
+	@Test
+	public void generateTakesKeysFromReserve() throws Exception {
+		card.verify(OpenPGPCard.PW3, OpenPGPCard.PW3_DEFAULT);
+		card.generateReserveKeys(0);
+
+		RSAPublicKey first = generate();
+		assertEquals("0102", Hex.toString(card.getData(0xE5)));
+		RSAPublicKey second = generate();
+		assertEquals("0002", Hex.toString(card.getData(0xE5)));
+		assertFalse(first.getModulus().equals(second.getModulus()));
+
+		// The keys taken from the reserve sign, and the replaced key pairs
+		// left empty slots that can be filled again
+		assertSigns(second);
+		card.verify(OpenPGPCard.PW3, OpenPGPCard.PW3_DEFAULT);
+		assertArrayEquals(new int[] { 2, 2 }, card.generateReserveKeys(0));
+	}
+
+	@Test
+	public void generateWithEmptyReserve() throws Exception {
+		card.verify(OpenPGPCard.PW3, OpenPGPCard.PW3_DEFAULT);
+		RSAPublicKey key = generate();
+		assertEquals(1024, key.getModulus().bitLength());
+		assertEquals("0002", Hex.toString(card.getData(0xE5)));
+		assertSigns(key);
+	}
+
+	@Test
+	public void cardWithoutReserve() throws CardException {
+		card = new OpenPGPCard(new SimulatedCard(Hex.toBytes("0603010400")));
+		card.select();
+		card.verify(OpenPGPCard.PW3, OpenPGPCard.PW3_DEFAULT);
+		assertEquals("0000", Hex.toString(card.getData(0xE5)));
+		assertFails(0x6985);
+	}
+
+	private RSAPublicKey generate() throws CardException {
+		return OpenPGPCard.toPublicKey(card
+				.generateKey(OpenPGPCard.KEY_SIGNATURE));
+	}
+
+	private void assertSigns(RSAPublicKey key) throws CardException,
+			GeneralSecurityException {
+		card.verify(OpenPGPCard.PW1_SIGN, OpenPGPCard.PW1_DEFAULT);
+		byte[] signature = card.sign(CardFixture.digestInfo(MESSAGE));
+
+		Signature verifier = Signature.getInstance("SHA256withRSA");
+		verifier.initVerify(key);
+		verifier.update(MESSAGE);
+		assertTrue(verifier.verify(signature));
+	}
+
+	private void assertFails(int status) throws CardException {
+		try {
+			card.generateReserveKeys(0);
+			fail();
+		} catch (CardStatusException e) {
+			assertEquals(status, e.getStatus());
+		}
+	}
+}
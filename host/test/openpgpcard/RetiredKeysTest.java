@@ -0,0 +1,172 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.security.GeneralSecurityException;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.smartcardio.CardException;
+
+import openpgpcard.host.CardStatusException;
+import openpgpcard.host.Hex;
+import openpgpcard.host.OpenPGPCard;
+import openpgpcard.host.sim.CardFixture;
+import openpgpcard.host.sim.SimulatedCard;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Decryption with retired decryption keys, selected by the fingerprint in a
+ * key reference (83).
+ */
+public class RetiredKeysTest {
+	private static final byte[] MESSAGE = "Attack at dawn".getBytes();
+
+	private static RSAPrivateCrtKey[] keys;
+
+	private OpenPGPCard card;
+
+	@BeforeClass
+	public static void setUpKeys() {
+		keys = new RSAPrivateCrtKey[4];
+		for (int i = 0; i < keys.length; i++)
+			keys[i] = CardFixture.testKey(i + 1);
+	}
+
+	@Before
+	public void setUp() throws CardException {
+		// Two retired decryption keys
+		card = new OpenPGPCard(new SimulatedCard(Hex.toBytes("010102")));
+		card.select();
+		card.verify(OpenPGPCard.PW3, OpenPGPCard.PW3_DEFAULT);
+		card.verify(OpenPGPCard.PW1, OpenPGPCard.PW1_DEFAULT);
+		importKey(0);
+		importKey(1);
+	}
+
+	@Test
+	public void decryptsWithRetiredKeys() throws Exception {
+		importKey(2);
+		assertEquals(Hex.toString(fingerprint(1)) + Hex.toString(fingerprint(0)),
+				Hex.toString(card.getData(0xE3)));
+		assertArrayEquals(MESSAGE, decipher(0));
+		assertArrayEquals(MESSAGE, decipher(1));
+		assertArrayEquals(MESSAGE, card.decipher(encrypt(2)));
+
+		// The oldest retired key is replaced
+		importKey(3);
+		assertEquals(Hex.toString(fingerprint(2)) + Hex.toString(fingerprint(1)),
+				Hex.toString(card.getData(0xE3)));
+		assertArrayEquals(MESSAGE, decipher(1));
+		assertArrayEquals(MESSAGE, decipher(2));
+		try {
+			decipher(0);
+			fail();
+		} catch (CardStatusException e) {
+			assertEquals(0x6A83, e.getStatus());
+		}
+	}
+
+	@Test
+	public void importingCurrentKeyAgainDoesNotRetireIt() throws Exception {
+		byte[] retired = card.getData(0xE3);
+		card.importKey(OpenPGPCard.KEY_DECRYPTION, keys[1]);
+
+		assertArrayEquals(retired, card.getData(0xE3));
+		assertArrayEquals(MESSAGE, decipher(0));
+		assertArrayEquals(MESSAGE, card.decipher(encrypt(1)));
+	}
+
+	@Test
+	public void failedImportKeepsRetiredKeys() throws Exception {
+		byte[] retired = card.getData(0xE3);
+		byte[] template = OpenPGPCard.keyImportTemplate(
+				OpenPGPCard.KEY_DECRYPTION, keys[2]);
+
+		// Key elements cut short
+		assertImportFails(Arrays.copyOf(template, template.length - 40),
+				0x6A80);
+		// Concatenation of the key elements (5F48) missing
+		byte[] malformed = template.clone();
+		int offset = indexOf(malformed, Hex.toBytes("5F48"));
+		malformed[offset + 1] = 0x49;
+		assertImportFails(malformed, 0x6984);
+
+		assertArrayEquals(retired, card.getData(0xE3));
+		assertArrayEquals(MESSAGE, decipher(0));
+		assertArrayEquals(MESSAGE, card.decipher(encrypt(1)));
+	}
+
+	private void importKey(int i) throws CardException {
+		card.importKey(OpenPGPCard.KEY_DECRYPTION, keys[i]);
+		card.putData(0xC8, fingerprint(i));
+	}
+
+	private void assertImportFails(byte[] template, int status)
+			throws CardException {
+		try {
+			card.command(0x00, 0xDB, 0x3F, 0xFF, template, false);
+			fail();
+		} catch (CardStatusException e) {
+			assertEquals(status, e.getStatus());
+		}
+	}
+
+	/**
+	 * PSO: DECIPHER with the key with the fingerprint of key i
+	 */
+	private byte[] decipher(int i) throws Exception {
+		byte[] cryptogram = encrypt(i);
+		byte[] data = new byte[22 + 1 + cryptogram.length];
+		data[0] = (byte) 0x83;
+		data[1] = 20;
+		System.arraycopy(fingerprint(i), 0, data, 2, 20);
+		System.arraycopy(cryptogram, 0, data, 23, cryptogram.length);
+		return card.command(0x00, 0x2A, 0x80, 0x86, data, true);
+	}
+
+	private static byte[] encrypt(int i) throws GeneralSecurityException {
+		Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+		cipher.init(Cipher.ENCRYPT_MODE, OpenPGPCard.toPublicKey(keys[i]));
+		return cipher.doFinal(MESSAGE);
+	}
+
+	private static byte[] fingerprint(int i) {
+		byte[] fingerprint = new byte[20];
+		Arrays.fill(fingerprint, (byte) (0x11 * (i + 1)));
+		return fingerprint;
+	}
+
+	private static int indexOf(byte[] data, byte[] pattern) {
+		for (int i = 0; i <= data.length - pattern.length; i++) {
+			if (Arrays.equals(Arrays.copyOfRange(data, i, i + pattern.length),
+					pattern))
+				return i;
+		}
+		throw new IllegalArgumentException("Pattern not found");
+	}
+}
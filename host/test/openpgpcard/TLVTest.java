@@ -0,0 +1,159 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import openpgpcard.host.Hex;
+
+import org.junit.Test;
+
+public class TLVTest {
+	@Test
+	public void writesShortestLength() {
+		assertEncoding("5B00", 0x5B, 0);
+		assertEncoding("5B7F", 0x5B, 0x7F);
+		assertEncoding("5B8180", 0x5B, 0x80);
+		assertEncoding("5B81FF", 0x5B, 0xFF);
+		assertEncoding("5B820100", 0x5B, 0x100);
+		assertEncoding("5F2D02", 0x5F2D, 2);
+		assertEncoding("7F21820200", 0x7F21, 0x200);
+	}
+
+	@Test
+	public void readsWhatIsWritten() {
+		int[] tags = { 0x5B, 0x5F2D, 0x7F21 };
+		int[] lengths = { 0, 1, 0x7F, 0x80, 0xFF, 0x100, 0x400 };
+		for (int tag : tags) {
+			for (int length : lengths) {
+				byte[] value = value(length);
+				byte[] data = new byte[length + 8];
+				short end = TLV.write(data, (short) 2, (short) tag, value,
+						(short) 0, (short) length);
+
+				assertEquals(tag, TLV.getTag(data, (short) 2) & 0xFFFF);
+				assertEquals(length, TLV.getLength(data, (short) 2));
+				assertEquals(end, TLV.next(data, (short) 2));
+				short offset = TLV.getValueOffset(data, (short) 2);
+				assertEquals(end - length, offset);
+				assertArrayEquals(value, slice(data, offset, length));
+			}
+		}
+	}
+
+	@Test
+	public void endMovesValueWhenFewerLengthBytesAreNeeded() {
+		byte[] data = new byte[0x120];
+		short offset = TLV.begin(data, (short) 0, (short) 0x7F49, (short) 0x110);
+		assertEquals(5, offset);
+		offset = TLV.write(data, offset, (short) 0x81, value(3), (short) 0,
+				(short) 3);
+		short end = TLV.end(data, (short) 0, offset);
+
+		assertEquals("7F49058103000102", Hex.toString(data, 0, end));
+	}
+
+	@Test
+	public void endKeepsReservedLengthBytes() {
+		byte[] data = new byte[0x120];
+		short offset = TLV.begin(data, (short) 0, (short) 0x65, (short) 0x110);
+		offset = TLV.write(data, offset, (short) 0x5B, value(0x100),
+				(short) 0, (short) 0x100);
+		short end = TLV.end(data, (short) 0, offset);
+
+		assertEquals(0x108, end);
+		assertEquals(0x104, TLV.getLength(data, (short) 0));
+		assertEquals(0x5B, TLV.getTag(data, TLV.getValueOffset(data,
+				(short) 0)));
+	}
+
+	@Test
+	public void endRejectsValueLongerThanReserved() {
+		byte[] data = new byte[0x100];
+		short offset = TLV.begin(data, (short) 0, (short) 0x65, (short) 0x10);
+		try {
+			TLV.end(data, (short) 0, (short) (offset + 0x80));
+			fail();
+		} catch (ISOException e) {
+			assertEquals(ISO7816.SW_UNKNOWN, e.getReason());
+		}
+	}
+
+	@Test
+	public void findsOnlyOnGivenLevel() {
+		byte[] data = Hex.toBytes("65095B024142" + "5F2D02656E" + "C40101");
+		short end = (short) data.length;
+
+		assertEquals(0, TLV.find(data, (short) 0, end, (short) 0x65));
+		assertEquals(11, TLV.find(data, (short) 0, end, (short) 0xC4));
+		assertEquals(-1, TLV.find(data, (short) 0, end, (short) 0x5B));
+		assertEquals(2, TLV.find(data, (short) 2, (short) 11, (short) 0x5B));
+		assertEquals(6, TLV.find(data, (short) 2, (short) 11, (short) 0x5F2D));
+	}
+
+	@Test
+	public void expectChecksTag() {
+		byte[] data = Hex.toBytes("5F2D02656E");
+		assertEquals(3, TLV.expect(data, (short) 0, (short) 0x5F2D));
+		try {
+			TLV.expect(data, (short) 0, (short) 0x5F35);
+			fail();
+		} catch (ISOException e) {
+			assertEquals(ISO7816.SW_DATA_INVALID, e.getReason());
+		}
+	}
+
+	@Test
+	public void rejectsInvalidLengths() {
+		for (String data : new String[] { "5B80", "5B8301", "5B828000" }) {
+			try {
+				TLV.getLength(Hex.toBytes(data), (short) 0);
+				fail(data);
+			} catch (ISOException e) {
+				assertEquals(ISO7816.SW_DATA_INVALID, e.getReason());
+			}
+		}
+	}
+
+	private static void assertEncoding(String expected, int tag, int length) {
+		byte[] data = new byte[8];
+		short end = TLV.writeHeader(data, (short) 0, (short) tag,
+				(short) length);
+		assertEquals(expected, Hex.toString(data, 0, end));
+		assertEquals(length, TLV.getLength(data, (short) 0));
+		assertEquals(end, TLV.getValueOffset(data, (short) 0));
+	}
+
+	private static byte[] value(int length) {
+		byte[] value = new byte[length];
+		for (int i = 0; i < length; i++)
+			value[i] = (byte) i;
+		return value;
+	}
+
+	private static byte[] slice(byte[] data, int offset, int length) {
+		byte[] result = new byte[length];
+		System.arraycopy(data, offset, result, 0, length);
+		return result;
+	}
+}
@@ -0,0 +1,155 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import javax.smartcardio.CardException;
+
+import openpgpcard.host.CardStatusException;
+import openpgpcard.host.OpenPGPCard;
+import openpgpcard.host.sim.CardFixture;
+import openpgpcard.host.sim.SimulatedCard;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Usage counters (GET DATA E4, vendor specific).
+ */
+public class UsageCountersTest {
+	private static final int SELECT = 0;
+	private static final int VERIFY = 2;
+	private static final int PSO_CDS = 5;
+	private static final int GET_DATA = 10;
+	private static final int PUT_DATA = 11;
+	private static final int OTHER = 13;
+	private static final int CHAINED = 14;
+	private static final int ERRORS = 16;
+	private static final int PSO_ENC = 32;
+	private static final int PSO_HASH = 33;
+	private static final int GENERATE_RESERVE = 34;
+	private static final int SELF_BENCHMARK = 35;
+	private static final int COUNTERS = 36;
+
+	private OpenPGPCard card;
+
+	@Before
+	public void setUp() throws CardException {
+		card = new OpenPGPCard(new SimulatedCard());
+		card.select();
+	}
+
+	@Test
+	public void countsCommandsAndErrors() throws CardException {
+		card.verify(OpenPGPCard.PW3, OpenPGPCard.PW3_DEFAULT);
+		assertStatus(0x6D00, 0xFE, 0x00, 0x00);
+
+		long[] counters = counters();
+		assertEquals(1, counters[SELECT]);
+		assertEquals(1, counters[VERIFY]);
+		assertEquals(1, counters[OTHER]);
+		assertEquals(1, counters[ERRORS + 0x0D]);
+		// Including the GET DATA reading the counters
+		assertEquals(1, counters[GET_DATA]);
+	}
+
+	@Test
+	public void countsEveryCommand() throws Exception {
+		card.verify(OpenPGPCard.PW3, OpenPGPCard.PW3_DEFAULT);
+		card.importKey(OpenPGPCard.KEY_SIGNATURE, CardFixture
+				.testKey(OpenPGPCard.KEY_SIGNATURE));
+		card.putData(0xD5, new byte[16]);
+		card.verify(OpenPGPCard.PW1_SIGN, OpenPGPCard.PW1_DEFAULT);
+		card.verify(OpenPGPCard.PW1, OpenPGPCard.PW1_DEFAULT);
+		long[] before = counters();
+
+		card.encipher(new byte[16]);
+		// Three commands in a chain
+		card.hashAndSign(OpenPGPCard.HASH_SHA256, new byte[600]);
+		// Without the number of iterations and without reserve
+		assertStatus(0x6700, 0xEE, 0x01, 0x00);
+		assertStatus(0x6985, 0xEC, 0x00, 0x01);
+
+		long[] counters = counters();
+		assertEquals(1, counters[PSO_ENC] - before[PSO_ENC]);
+		assertEquals(3, counters[PSO_HASH] - before[PSO_HASH]);
+		assertEquals(2, counters[CHAINED] - before[CHAINED]);
+		assertEquals(1, counters[PSO_CDS] - before[PSO_CDS]);
+		assertEquals(1, counters[SELF_BENCHMARK] - before[SELF_BENCHMARK]);
+		assertEquals(1, counters[GENERATE_RESERVE]
+				- before[GENERATE_RESERVE]);
+	}
+
+	@Test
+	public void keepsCountersAcrossSelections() throws CardException {
+		card.getData(0xC4);
+		card.select();
+		card.getData(0xC4);
+		card.select();
+
+		long[] counters = counters();
+		assertEquals(3, counters[SELECT]);
+		assertEquals(3, counters[GET_DATA]);
+	}
+
+	@Test
+	public void countsSessionsOfMoreThan65535Commands() throws CardException {
+		int commands = 70000;
+		for (int i = 0; i < commands; i++)
+			card.getData(0xC4);
+
+		assertEquals(commands + 1, counters()[GET_DATA]);
+	}
+
+	@Test
+	public void resetsCounters() throws CardException {
+		card.getData(0xC4);
+		card.verify(OpenPGPCard.PW3, OpenPGPCard.PW3_DEFAULT);
+		card.putData(0xE4, new byte[0]);
+
+		long[] counters = counters();
+		assertEquals(0, counters[SELECT]);
+		assertEquals(0, counters[PUT_DATA]);
+		assertEquals(1, counters[GET_DATA]);
+	}
+
+	private void assertStatus(int status, int ins, int p1, int p2)
+			throws CardException {
+		try {
+			card.command(0x00, ins, p1, p2, new byte[0], true);
+			fail();
+		} catch (CardStatusException e) {
+			assertEquals(status, e.getStatus());
+		}
+	}
+
+	private long[] counters() throws CardException {
+		byte[] data = card.getData(0xE4);
+		assertEquals(COUNTERS * 4, data.length);
+
+		long[] counters = new long[COUNTERS];
+		for (int i = 0; i < counters.length; i++) {
+			for (int j = 0; j < 4; j++)
+				counters[i] = (counters[i] << 8) | (data[4 * i + j] & 0xFF);
+		}
+		return counters;
+	}
+}
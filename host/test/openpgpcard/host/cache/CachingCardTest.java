@@ -0,0 +1,137 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import javax.smartcardio.CardException;
+
+import openpgpcard.host.CardStatusException;
+import openpgpcard.host.CountingTransport;
+import openpgpcard.host.OpenPGPCard;
+import openpgpcard.host.sim.SimulatedCard;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class CachingCardTest {
+	private static final byte[] LOGIN = "jdoe".getBytes();
+	private static final byte[] OTHER_LOGIN = "jroe".getBytes();
+	private static final byte[] URL = "https://example.org/key.asc".getBytes();
+
+	private DataObjectCache cache;
+	private CountingTransport transport;
+	private CachingCard card;
+	// Another client of the same card
+	private OpenPGPCard other;
+
+	@Before
+	public void setUp() throws CardException {
+		SimulatedCard simulator = new SimulatedCard();
+		other = new OpenPGPCard(simulator);
+		other.select();
+		other.verify(OpenPGPCard.PW3, OpenPGPCard.PW3_DEFAULT);
+		other.putData(0x5E, LOGIN);
+		other.putData(0x5F50, URL);
+
+		cache = new DataObjectCache(16);
+		transport = new CountingTransport(simulator);
+		card = new CachingCard(transport, cache);
+		card.select();
+	}
+
+	@Test
+	public void answersRepeatedReadsFromCache() throws CardException {
+		assertArrayEquals(LOGIN, card.getData(0x5E));
+		assertArrayEquals(LOGIN, card.getData(0x5E));
+		assertEquals(1, cache.getHits());
+
+		card.setCheckReads(false);
+		transport.reset();
+		assertArrayEquals(LOGIN, card.getData(0x5E));
+		assertEquals(0, transport.getCommands());
+	}
+
+	@Test
+	public void checksChangeCounterBeforeCachedRead() throws CardException {
+		card.getData(0x5E);
+		transport.reset();
+		card.getData(0x5E);
+
+		// Only E1, not the data object
+		assertEquals(1, transport.getCommands());
+	}
+
+	@Test
+	public void ownWriteKeepsUnaffectedEntries() throws CardException {
+		card.verify(OpenPGPCard.PW3, OpenPGPCard.PW3_DEFAULT);
+		card.getData(0x5E);
+		card.getData(0x5F50);
+		card.putData(0x5E, OTHER_LOGIN);
+
+		long hits = cache.getHits();
+		assertArrayEquals(OTHER_LOGIN, card.getData(0x5E));
+		assertArrayEquals(URL, card.getData(0x5F50));
+		assertEquals(hits + 1, cache.getHits());
+	}
+
+	@Test
+	public void noticesWriteOfOtherClient() throws CardException {
+		card.getData(0x5E);
+		changeLogin();
+
+		assertArrayEquals(OTHER_LOGIN, card.getData(0x5E));
+	}
+
+	@Test
+	public void noticesWriteOfOtherClientOnSelectOnly() throws CardException {
+		card.setCheckReads(false);
+		card.getData(0x5E);
+		changeLogin();
+
+		assertArrayEquals(LOGIN, card.getData(0x5E));
+		card.select();
+		assertArrayEquals(OTHER_LOGIN, card.getData(0x5E));
+	}
+
+	@Test
+	public void noticesRetryCounterChangedByOtherClient() throws CardException {
+		byte[] before = OpenPGPCard.find(card.getData(0x6E), 0xC4);
+		try {
+			other.verify(OpenPGPCard.PW1, "000000".getBytes());
+			fail();
+		} catch (CardStatusException e) {
+			// Decrements the retry counter of PW1
+		}
+
+		byte[] after = OpenPGPCard.find(card.getData(0x6E), 0xC4);
+		assertEquals(before[4] - 1, after[4]);
+	}
+
+	/**
+	 * Change the login data through the other client. Selecting the applet for
+	 * the caching client ended the verification of PW3.
+	 */
+	private void changeLogin() throws CardException {
+		other.verify(OpenPGPCard.PW3, OpenPGPCard.PW3_DEFAULT);
+		other.putData(0x5E, OTHER_LOGIN);
+	}
+}
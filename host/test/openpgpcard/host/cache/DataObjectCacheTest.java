@@ -0,0 +1,117 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DataObjectCacheTest {
+	private static final byte[] STAMP_1 = { 0x00, 0x01 };
+	private static final byte[] STAMP_2 = { 0x00, 0x02 };
+	private static final byte[] VALUE = { 0x41, 0x42 };
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void returnsValueOnlyForSameStamp() {
+		DataObjectCache cache = new DataObjectCache(4);
+		cache.put("card", "DO 005B", STAMP_1, VALUE);
+
+		assertArrayEquals(VALUE, cache.get("card", "DO 005B", STAMP_1));
+		assertNull(cache.get("card", "DO 005B", STAMP_2));
+		assertNull(cache.get("other", "DO 005B", STAMP_1));
+		assertEquals(1, cache.getHits());
+		assertEquals(2, cache.getMisses());
+	}
+
+	@Test
+	public void evictsLeastRecentlyUsed() {
+		DataObjectCache cache = new DataObjectCache(2);
+		cache.put("card", "a", STAMP_1, VALUE);
+		cache.put("card", "b", STAMP_1, VALUE);
+		cache.get("card", "a", STAMP_1);
+		cache.put("card", "c", STAMP_1, VALUE);
+
+		assertEquals(2, cache.size());
+		assertArrayEquals(VALUE, cache.get("card", "a", STAMP_1));
+		assertNull(cache.get("card", "b", STAMP_1));
+		assertArrayEquals(VALUE, cache.get("card", "c", STAMP_1));
+	}
+
+	@Test
+	public void restampsOnlyEntriesOfCardAndState() {
+		DataObjectCache cache = new DataObjectCache(4);
+		cache.put("card", "a", STAMP_1, VALUE);
+		cache.put("card", "b", new byte[] { 0x00, 0x00 }, VALUE);
+		cache.put("other", "a", STAMP_1, VALUE);
+		cache.restamp("card", STAMP_1, STAMP_2);
+
+		assertArrayEquals(VALUE, cache.get("card", "a", STAMP_2));
+		assertNull(cache.get("card", "b", STAMP_2));
+		assertArrayEquals(VALUE, cache.get("other", "a", STAMP_1));
+	}
+
+	@Test
+	public void clearsOnlyEntriesOfCard() {
+		DataObjectCache cache = new DataObjectCache(4);
+		cache.put("card", "a", STAMP_1, VALUE);
+		cache.put("card", "b", STAMP_1, VALUE);
+		cache.put("card2", "a", STAMP_1, VALUE);
+		cache.clear("card");
+
+		assertEquals(1, cache.size());
+		assertArrayEquals(VALUE, cache.get("card2", "a", STAMP_1));
+	}
+
+	@Test
+	public void valuesAreCopied() {
+		DataObjectCache cache = new DataObjectCache(4);
+		byte[] value = VALUE.clone();
+		cache.put("card", "a", STAMP_1, value);
+		value[0] = 0;
+		cache.get("card", "a", STAMP_1)[1] = 0;
+
+		assertArrayEquals(VALUE, cache.get("card", "a", STAMP_1));
+	}
+
+	@Test
+	public void loadsStoredEntries() throws IOException {
+		DataObjectCache cache = new DataObjectCache(4);
+		cache.put("D27600012401", "DO 5F2D", STAMP_1, VALUE);
+		cache.put("D27600012401", "PK B6", STAMP_2, new byte[0]);
+		File file = folder.newFile();
+		cache.store(file);
+
+		DataObjectCache loaded = DataObjectCache.load(file, 4);
+		assertEquals(2, loaded.size());
+		assertArrayEquals(VALUE, loaded.get("D27600012401", "DO 5F2D",
+				STAMP_1));
+		assertArrayEquals(new byte[0], loaded.get("D27600012401", "PK B6",
+				STAMP_2));
+	}
+}
@@ -0,0 +1,153 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host.profile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import javacard.framework.Applet;
+
+import javax.smartcardio.CardException;
+
+import openpgpcard.host.OpenPGPCard;
+import openpgpcard.host.sim.CardFixture;
+import openpgpcard.host.sim.SimulatedCard;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Bytecodes and API calls counted by BytecodeProfiler for an instrumented
+ * applet in the simulator.
+ */
+public class BytecodeProfilerTest {
+	private static Class<? extends Applet> applet;
+
+	private SimulatedCard simulator;
+	private OpenPGPCard card;
+
+	@BeforeClass
+	public static void setUpApplet() throws ClassNotFoundException {
+		InstrumentingClassLoader loader = new InstrumentingClassLoader(
+				BytecodeProfilerTest.class.getClassLoader(), "openpgpcard",
+				new BytecodeInstrumentation());
+		applet = loader.load("openpgpcard.OpenPGPApplet", Applet.class);
+	}
+
+	@Before
+	public void setUp() throws CardException {
+		simulator = new SimulatedCard(applet, new byte[0]);
+		card = new OpenPGPCard(new ProfilingTransport(simulator,
+				BytecodeProfiler.COMMANDS));
+		BytecodeProfiler.reset();
+	}
+
+	@Test
+	public void countsPerCommand() throws CardException {
+		card.select();
+		card.getData(0x5E);
+		card.getData(0x5E);
+		card.verify(OpenPGPCard.PW1, OpenPGPCard.PW1_DEFAULT);
+
+		Map<String, BytecodeStats> stats = BytecodeProfiler.getStats();
+		assertEquals("[SELECT, GET DATA 5E, VERIFY 82]", stats.keySet()
+				.toString());
+		assertEquals(1, stats.get("SELECT").getCommands());
+		assertEquals(2, stats.get("GET DATA 5E").getCommands());
+		for (BytecodeStats s : stats.values()) {
+			assertTrue(s.getBytecodes() > 0);
+			assertTrue(s.getApiCalls() > 0);
+			assertTrue(s.getCasts() + s.getArrayAccesses() <= s
+					.getBytecodes());
+		}
+	}
+
+	@Test
+	public void countsSameCommandTheSame() throws CardException {
+		card.select();
+		BytecodeProfiler.reset();
+		card.getData(0x5E);
+		long once = BytecodeProfiler.getStats().get("GET DATA 5E")
+				.getBytecodes();
+
+		BytecodeProfiler.reset();
+		card.getData(0x5E);
+		card.getData(0x5E);
+		assertEquals(2 * once, BytecodeProfiler.getStats().get("GET DATA 5E")
+				.getBytecodes());
+	}
+
+	@Test
+	public void attributesCountsToMethods() throws CardException {
+		card.select();
+		card.getData(0x6E);
+
+		BytecodeStats s = BytecodeProfiler.getStats().get("GET DATA 6E");
+		long bytecodes = 0;
+		long calls = 0;
+		for (int method = 0; method < s.getMethods(); method++) {
+			bytecodes += s.getBytecodes(method);
+			calls += s.getApiCalls(method);
+		}
+		assertEquals(s.getBytecodes(), bytecodes);
+		assertEquals(s.getApiCalls(), calls);
+		assertTrue(s.getBytecodes(method("OpenPGPApplet.process(APDU)")) > 0);
+	}
+
+	@Test
+	public void countsApiCalls() throws CardException {
+		card.select();
+		card.verify(OpenPGPCard.PW3, OpenPGPCard.PW3_DEFAULT);
+		card.importKey(OpenPGPCard.KEY_SIGNATURE,
+				CardFixture.testKey(OpenPGPCard.KEY_SIGNATURE));
+		card.verify(OpenPGPCard.PW1_SIGN, OpenPGPCard.PW1_DEFAULT);
+		card.sign(CardFixture.digestInfo(new byte[0]));
+
+		BytecodeStats s = BytecodeProfiler.getStats().get("PSO:CDS");
+		assertEquals(1, s.getCallsOf(api(s, "Cipher.doFinal")));
+		long calls = 0;
+		for (int api = 0; api < s.getApiMethods(); api++)
+			calls += s.getCallsOf(api);
+		assertEquals(s.getApiCalls(), calls);
+	}
+
+	@Test
+	public void ignoresCommandsNotProfiled() throws CardException {
+		new OpenPGPCard(simulator).select();
+		assertTrue(BytecodeProfiler.getStats().isEmpty());
+	}
+
+	private static int method(String name) {
+		for (int method = 0;; method++) {
+			if (BytecodeProfiler.getMethod(method).equals(name))
+				return method;
+		}
+	}
+
+	private static int api(BytecodeStats s, String name) {
+		for (int api = 0; api < s.getApiMethods(); api++) {
+			if (BytecodeProfiler.getApi(api).equals(name))
+				return api;
+		}
+		throw new IllegalArgumentException(name + " not called");
+	}
+}
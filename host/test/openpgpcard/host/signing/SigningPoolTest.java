@@ -0,0 +1,188 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host.signing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.security.GeneralSecurityException;
+import java.security.Signature;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.smartcardio.CardException;
+
+import openpgpcard.host.CardStatusException;
+import openpgpcard.host.CardTransport;
+import openpgpcard.host.OpenPGPCard;
+import openpgpcard.host.sim.CardFixture;
+import openpgpcard.host.sim.SimulatedCard;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class SigningPoolTest {
+	private static final int REQUESTS = 20;
+
+	private final AtomicReference<SigningCard> removed = new AtomicReference<SigningCard>();
+	private final SigningPool pool = new SigningPool(new SigningPool.Listener() {
+		public void removed(SigningCard card, Exception e) {
+			removed.set(card);
+		}
+	});
+	private RSAPublicKey publicKey;
+
+	@After
+	public void tearDown() {
+		pool.close();
+	}
+
+	@Test
+	public void spreadsRequestsOverCards() throws Exception {
+		SigningCard first = pool.add("first", personalized(),
+				OpenPGPCard.PW1_DEFAULT);
+		SigningCard second = pool.add("second", personalized(),
+				OpenPGPCard.PW1_DEFAULT);
+		long firstCounter = first.getSignatureCounter();
+		long secondCounter = second.getSignatureCounter();
+
+		verify(sign(first.getFingerprint()));
+
+		assertEquals(REQUESTS, pool.getSignatures());
+		assertTrue(first.getSignatureCounter() > firstCounter);
+		assertTrue(second.getSignatureCounter() > secondCounter);
+	}
+
+	@Test
+	public void rejectsUnknownFingerprint() throws Exception {
+		pool.add("card", personalized(), OpenPGPCard.PW1_DEFAULT);
+
+		try {
+			pool.sign(new byte[20], CardFixture.digestInfo(new byte[0])).get();
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof CardException);
+		}
+	}
+
+	@Test
+	public void keepsCardsAfterMalformedRequest() throws Exception {
+		SigningCard card = null;
+		for (int i = 0; i < 3; i++)
+			card = pool.add("card " + i, personalized(),
+					OpenPGPCard.PW1_DEFAULT);
+
+		try {
+			pool.sign(card.getFingerprint(), new byte[250]).get();
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof CardStatusException);
+		}
+
+		assertEquals(3, pool.size());
+		assertNull(removed.get());
+		verify(sign(card.getFingerprint()));
+	}
+
+	@Test
+	public void movesRequestsOfFailedCard() throws Exception {
+		final CardTransport simulator = personalized();
+		final AtomicBoolean gone = new AtomicBoolean(false);
+		CardTransport transport = new CardTransport() {
+			public byte[] transmit(byte[] command) throws CardException {
+				if (gone.get())
+					throw new CardException("Card removed");
+				return simulator.transmit(command);
+			}
+		};
+
+		SigningCard remaining = pool.add("remaining", personalized(),
+				OpenPGPCard.PW1_DEFAULT);
+		SigningCard failing = pool.add("failing", transport,
+				OpenPGPCard.PW1_DEFAULT);
+		gone.set(true);
+
+		// The request the card was processing fails, its queued requests
+		// are signed by the other card
+		List<Future<byte[]>> results = sign(remaining.getFingerprint());
+		int failed = 0;
+		for (int i = 0; i < results.size(); i++) {
+			try {
+				results.get(i).get();
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof CardException);
+				results.set(i, null);
+				failed++;
+			}
+		}
+		verify(results);
+
+		assertEquals(1, failed);
+		assertSame(failing, removed.get());
+		assertEquals(1, pool.size());
+		assertEquals(REQUESTS - 1, pool.getSignatures());
+	}
+
+	/**
+	 * @return Simulated card personalized with the test keys
+	 */
+	private SimulatedCard personalized() throws CardException {
+		SimulatedCard simulator = new SimulatedCard();
+		CardFixture fixture = new CardFixture();
+		fixture.personalize(simulator, false);
+		publicKey = fixture.getPublicKey(OpenPGPCard.KEY_SIGNATURE);
+		return simulator;
+	}
+
+	private List<Future<byte[]>> sign(byte[] fingerprint) {
+		List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+		for (int i = 0; i < REQUESTS; i++)
+			results.add(pool.sign(fingerprint, CardFixture
+					.digestInfo(message(i))));
+		return results;
+	}
+
+	/**
+	 * Verify the signatures, skipping requests that are null.
+	 */
+	private void verify(List<Future<byte[]>> results)
+			throws GeneralSecurityException, InterruptedException,
+			ExecutionException {
+		Signature signature = Signature.getInstance("SHA256withRSA");
+		for (int i = 0; i < results.size(); i++) {
+			if (results.get(i) == null)
+				continue;
+			signature.initVerify(publicKey);
+			signature.update(message(i));
+			assertTrue(signature.verify(results.get(i).get()));
+		}
+	}
+
+	private static byte[] message(int i) {
+		return ("message " + i).getBytes();
+	}
+}
@@ -0,0 +1,148 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard.host.sim;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.security.GeneralSecurityException;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.smartcardio.CardException;
+
+import openpgpcard.host.CardStatusException;
+import openpgpcard.host.Hex;
+import openpgpcard.host.OpenPGPCard;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CardStateTest {
+	// One retired decryption key
+	private static final byte[] PARAMETERS = Hex.toBytes("010101");
+	private static final byte[] AES_KEY = "0123456789abcdef".getBytes();
+	private static final byte[] MESSAGE = "Attack at dawn!!".getBytes();
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void restoresCardFromFile() throws Exception {
+		RSAPrivateCrtKey retired = CardFixture.testKey(OpenPGPCard.KEY_DECRYPTION);
+		RSAPrivateCrtKey current = CardFixture.testKey(OpenPGPCard.KEY_AUTHENTICATION);
+		byte[] digestInfo = CardFixture.digestInfo(MESSAGE);
+
+		SimulatedCard simulator = new SimulatedCard(PARAMETERS);
+		OpenPGPCard card = new OpenPGPCard(simulator);
+		card.select();
+		card.verify(OpenPGPCard.PW3, OpenPGPCard.PW3_DEFAULT);
+		card.putData(0x5B, CardFixture.NAME);
+		card.putData(0xD5, AES_KEY);
+		card.importKey(OpenPGPCard.KEY_SIGNATURE, CardFixture
+				.testKey(OpenPGPCard.KEY_SIGNATURE));
+		card.importKey(OpenPGPCard.KEY_DECRYPTION, retired);
+		card.putData(0xC8, fingerprint(0xAA));
+		card.importKey(OpenPGPCard.KEY_DECRYPTION, current);
+		card.putData(0xC8, fingerprint(0xBB));
+		try {
+			card.verify(OpenPGPCard.PW1, "000000".getBytes());
+			fail();
+		} catch (CardStatusException e) {
+			// Decrements the retry counter
+		}
+		// PW1 status 00 ends the verification of PW1 after the signature
+		CardFixture.login(card);
+		byte[] cryptogram = card.encipher(MESSAGE);
+		byte[] signature = card.sign(digestInfo);
+
+		File file = folder.newFile();
+		CardState.save(simulator).write(file);
+		SimulatedCard restored = new SimulatedCard(PARAMETERS);
+		CardState.read(file).restore(restored);
+
+		// Saving resets the card
+		card.select();
+		OpenPGPCard copy = new OpenPGPCard(restored);
+		copy.select();
+		assertArrayEquals(card.getData(0x6E), copy.getData(0x6E));
+		assertArrayEquals(card.getData(0x65), copy.getData(0x65));
+		assertArrayEquals(card.getData(0xE3), copy.getData(0xE3));
+		assertArrayEquals(card.getData(0x7A), copy.getData(0x7A));
+
+		CardFixture.login(copy);
+		assertArrayEquals(MESSAGE, copy.decipherAES(Arrays.copyOfRange(
+				cryptogram, 1, cryptogram.length)));
+		assertArrayEquals(MESSAGE, copy.decipher(encrypt(current)));
+		assertArrayEquals(MESSAGE, copy.command(0x00, 0x2A, 0x80, 0x86,
+				concat(Hex.toBytes("8314"), fingerprint(0xAA), new byte[1],
+						encrypt(retired)), true));
+		assertArrayEquals(signature, copy.sign(digestInfo));
+	}
+
+	@Test
+	public void savedStateHasNoVerifiedPin() throws CardException {
+		SimulatedCard simulator = new SimulatedCard();
+		CardFixture fixture = new CardFixture();
+		fixture.personalize(simulator, false);
+		OpenPGPCard card = new OpenPGPCard(simulator);
+		CardFixture.login(card);
+
+		SimulatedCard restored = new SimulatedCard();
+		CardState.save(simulator).restore(restored);
+		OpenPGPCard copy = new OpenPGPCard(restored);
+		copy.select();
+		try {
+			copy.sign(CardFixture.digestInfo(MESSAGE));
+			fail();
+		} catch (CardStatusException e) {
+			assertEquals(0x6982, e.getStatus());
+		}
+	}
+
+	private static byte[] fingerprint(int value) {
+		byte[] fingerprint = new byte[20];
+		Arrays.fill(fingerprint, (byte) value);
+		return fingerprint;
+	}
+
+	private static byte[] encrypt(RSAPrivateCrtKey key)
+			throws GeneralSecurityException {
+		Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+		cipher.init(Cipher.ENCRYPT_MODE, OpenPGPCard.toPublicKey(key));
+		return cipher.doFinal(MESSAGE);
+	}
+
+	private static byte[] concat(byte[]... parts) {
+		int length = 0;
+		for (byte[] part : parts)
+			length += part.length;
+		byte[] result = new byte[length];
+		int offset = 0;
+		for (byte[] part : parts) {
+			System.arraycopy(part, 0, result, offset, part.length);
+			offset += part.length;
+		}
+		return result;
+	}
+}
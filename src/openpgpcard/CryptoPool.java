@@ -0,0 +1,203 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard;
+
+import javacard.framework.*;
+import javacard.security.*;
+import javacardx.crypto.*;
+
+/**
+ * Engines and scratch RAM of one or more instances of the applet. The
+ * buffers of the logical channels are allocated the first time they are
+ * used, the secure messaging engines the first time they are requested.
+ */
+public class CryptoPool implements CryptoService {
+	//#if sm
+	private static final short SM_SCRATCH_LENGTH = 256;
+
+	//#endif sm
+	// Length of the scratch array and the buffers
+	private short length = 0;
+	private byte[] scratch;
+	private Object[] buffers;
+
+	private Cipher cipher;
+	private RandomData random;
+	//#if aes
+	private Cipher aes_cipher;
+	//#endif aes
+	//#if hash
+	private MessageDigest sha256;
+	private MessageDigest sha512;
+	// Owner of the digests, which keep their state between commands
+	private Object[] digest_owner;
+	//#endif hash
+	//#if sm
+
+	private byte[] sm_scratch;
+	private Signature mac_signer;
+	private Signature mac_verifier;
+	private Cipher sm_cipher;
+	private Cipher sm_decipher;
+	// Owner of the secure messaging engines, cleared on reset as the engines
+	// have to be initialized again
+	private Object[] sm_owner;
+	//#endif sm
+
+	/**
+	 * @param channels
+	 *            Number of logical channels to keep a buffer for
+	 */
+	public CryptoPool(byte channels) {
+		buffers = new Object[channels];
+		cipher = Cipher.getInstance(Cipher.ALG_RSA_PKCS1, false);
+		random = RandomData.getInstance(RandomData.ALG_SECURE_RANDOM);
+	}
+
+	public void reserve(short length) {
+		if (scratch != null && length <= this.length)
+			return;
+
+		// Replace the arrays by larger ones, the buffers are allocated again
+		// on first use
+		boolean replace = scratch != null;
+		if (length > this.length)
+			this.length = length;
+		scratch = JCSystem.makeTransientByteArray(this.length,
+				JCSystem.CLEAR_ON_DESELECT);
+		for (short i = 0; i < buffers.length; i++)
+			buffers[i] = null;
+
+		if (replace && JCSystem.isObjectDeletionSupported())
+			JCSystem.requestObjectDeletion();
+	}
+
+	public byte[] getScratch() {
+		return scratch;
+	}
+
+	public byte[] getBuffer(byte channel) {
+		if (buffers[channel] == null)
+			buffers[channel] = JCSystem.makeTransientByteArray(length,
+					JCSystem.CLEAR_ON_DESELECT);
+
+		return (byte[]) buffers[channel];
+	}
+
+	public Cipher getRSACipher() {
+		return cipher;
+	}
+
+	public RandomData getRandom() {
+		return random;
+	}
+	//#if aes
+
+	public Cipher getAESCipher() {
+		if (aes_cipher == null)
+			aes_cipher = Cipher.getInstance(
+					Cipher.ALG_AES_BLOCK_128_CBC_NOPAD, false);
+
+		return aes_cipher;
+	}
+	//#endif aes
+	//#if hash
+
+	public MessageDigest getDigest(byte algorithm) {
+		if (digest_owner == null)
+			digest_owner = JCSystem.makeTransientObjectArray((short) 1,
+					JCSystem.CLEAR_ON_RESET);
+
+		if (algorithm == ALG_SHA_256) {
+			if (sha256 == null)
+				sha256 = MessageDigest.getInstance(algorithm, false);
+			return sha256;
+		}
+		if (algorithm == ALG_SHA_512) {
+			if (sha512 == null)
+				sha512 = MessageDigest.getInstance(algorithm, false);
+			return sha512;
+		}
+
+		CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
+		return null;
+	}
+
+	public boolean claimDigest(Object owner) {
+		if (digest_owner[0] == owner)
+			return false;
+
+		digest_owner[0] = owner;
+		return true;
+	}
+	//#endif hash
+	//#if sm
+
+	public byte[] getSMScratch() {
+		if (sm_scratch == null) {
+			sm_scratch = JCSystem.makeTransientByteArray(SM_SCRATCH_LENGTH,
+					JCSystem.CLEAR_ON_DESELECT);
+			sm_owner = JCSystem.makeTransientObjectArray((short) 1,
+					JCSystem.CLEAR_ON_RESET);
+		}
+
+		return sm_scratch;
+	}
+
+	public Signature getMACSigner() {
+		if (mac_signer == null)
+			mac_signer = Signature.getInstance(
+					Signature.ALG_DES_MAC8_ISO9797_1_M2_ALG3, false);
+
+		return mac_signer;
+	}
+
+	public Signature getMACVerifier() {
+		if (mac_verifier == null)
+			mac_verifier = Signature.getInstance(
+					Signature.ALG_DES_MAC8_ISO9797_1_M2_ALG3, false);
+
+		return mac_verifier;
+	}
+
+	public Cipher getSMCipher() {
+		if (sm_cipher == null)
+			sm_cipher = Cipher.getInstance(Cipher.ALG_DES_CBC_ISO9797_M2,
+					false);
+
+		return sm_cipher;
+	}
+
+	public Cipher getSMDecipher() {
+		if (sm_decipher == null)
+			sm_decipher = Cipher.getInstance(Cipher.ALG_DES_CBC_ISO9797_M2,
+					false);
+
+		return sm_decipher;
+	}
+
+	public boolean claimSM(Object owner) {
+		if (sm_owner[0] == owner)
+			return false;
+
+		sm_owner[0] = owner;
+		return true;
+	}
+	//#endif sm
+}
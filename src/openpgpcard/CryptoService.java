@@ -0,0 +1,147 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard;
+
+import javacard.framework.*;
+import javacard.security.*;
+import javacardx.crypto.*;
+
+/**
+ * Engines and scratch RAM that keep no state between commands, so they can
+ * be shared by the instances of the applet on a card. Key material and PINs
+ * are kept by the instances.
+ * 
+ * An instance obtains the service of another instance with
+ * JCSystem.getAppletShareableInterfaceObject(). The arrays are owned by the
+ * instance providing the service, so both instances have to be in the same
+ * package.
+ */
+public interface CryptoService extends Shareable {
+	//#if hash
+	// MessageDigest algorithms added in Java Card 2.2.2, the applet is built
+	// against the 2.2.1 API
+	public static final byte ALG_SHA_256 = 4;
+	public static final byte ALG_SHA_512 = 6;
+
+	//#endif hash
+	/**
+	 * Make sure the scratch array and the buffers are at least the given
+	 * length.
+	 * 
+	 * @param length
+	 *            Length needed by an instance
+	 */
+	public void reserve(short length);
+
+	/**
+	 * @return Transient scratch array, only valid during a command
+	 */
+	public byte[] getScratch();
+
+	/**
+	 * Get the buffer of a logical channel. Only one instance can be selected
+	 * on a channel, so instances use the same buffer for a channel.
+	 * 
+	 * @param channel
+	 *            Logical channel
+	 * @return Transient buffer of the channel
+	 */
+	public byte[] getBuffer(byte channel);
+
+	/**
+	 * @return RSA cipher with PKCS#1 padding, to be initialized before use
+	 */
+	public Cipher getRSACipher();
+
+	/**
+	 * @return Secure random number generator
+	 */
+	public RandomData getRandom();
+	//#if aes
+
+	/**
+	 * @return AES cipher in CBC mode without padding, to be initialized
+	 *         before use
+	 */
+	public Cipher getAESCipher();
+	//#endif aes
+	//#if hash
+
+	/**
+	 * Get a message digest. Its state is kept between commands, so the
+	 * instance hashing data has to claim it with claimDigest().
+	 * 
+	 * @param algorithm
+	 *            ALG_SHA_256 or ALG_SHA_512
+	 * @return Message digest
+	 * @throws CryptoException
+	 *             NO_SUCH_ALGORITHM if the card does not support the
+	 *             algorithm
+	 */
+	public MessageDigest getDigest(byte algorithm);
+
+	/**
+	 * Claim the message digests for an owner.
+	 * 
+	 * @param owner
+	 *            Object hashing data
+	 * @return Whether the digests were last claimed by another owner, in
+	 *         which case their state is lost
+	 */
+	public boolean claimDigest(Object owner);
+	//#endif hash
+	//#if sm
+
+	/**
+	 * @return Transient scratch array for secure messaging
+	 */
+	public byte[] getSMScratch();
+
+	/**
+	 * @return 3DES retail MAC for signing
+	 */
+	public Signature getMACSigner();
+
+	/**
+	 * @return 3DES retail MAC for verification
+	 */
+	public Signature getMACVerifier();
+
+	/**
+	 * @return 3DES cipher in CBC mode for encryption
+	 */
+	public Cipher getSMCipher();
+
+	/**
+	 * @return 3DES cipher in CBC mode for decryption
+	 */
+	public Cipher getSMDecipher();
+
+	/**
+	 * Claim the secure messaging engines for an owner.
+	 * 
+	 * @param owner
+	 *            Object using the engines
+	 * @return Whether the engines were last claimed by another owner, in
+	 *         which case they have to be initialized with the keys of the
+	 *         owner
+	 */
+	public boolean claimSM(Object owner);
+	//#endif sm
+}
@@ -37,7 +37,7 @@ import javacardx.crypto.*;
  * @version $Revision: 13 $ by $Author: joeridr $
  *          $LastChangedDate: 2015-04-13 16:02:31 +0200 (Mon, 13 Apr 2015) $
  */
-public class OpenPGPApplet extends Applet implements ISO7816 {
+public class OpenPGPApplet extends Applet implements ISO7816, MultiSelectable {
 	//TODO Check atomicity of all storage commands
 	
 	private static final short _0 = 0;
@@ -48,23 +48,137 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 			(byte) 0x80, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
 			0x00 };
 
+	// Template of the extended capabilities. Support for SM and key import
+	// and the maximum lengths of the certificate and command data are set
+	// from the build profile and the configuration.
 	private static final byte[] EXTENDED_CAP = { 
-			(byte) 0xF0, // Support for GET CHALLENGE
-						 // Support for Key Import
+			(byte) 0x50, // Support for GET CHALLENGE
 						 // PW1 Status byte changeable
 			0x00, // Secure messaging using 3DES
 			0x00, (byte) 0xFF, // Maximum length of challenges
-			0x00, (byte) 0xFF, // Maximum length Cardholder Certificate
+			0x00, 0x00, // Maximum length Cardholder Certificate
 			0x00, (byte) 0xFF, // Maximum length command data
 			0x00, (byte) 0xFF  // Maximum length response data
 	};
 
-	private static short RESPONSE_MAX_LENGTH = 255;
+	// Dynamic part at the end of the FCI: PW status (C4), change counter (E1)
+	// and key presence (E2)
+	private static final short FCI_DYNAMIC_LENGTH = 18;
+	private static final short FCI_MAX_LENGTH = 52;
+
+	// Number of logical channels on which the applet can be selected
+	private static final byte MAX_CHANNELS = 4;
+
+	// Indices of the per channel session state
+	private static final byte SESSION_IN_RECEIVED = 0;
+	private static final byte SESSION_OUT_LEFT = 1;
+	private static final byte SESSION_OUT_SENT = 2;
+	private static final byte SESSION_CHAIN = 3;
+	private static final byte SESSION_CHAIN_INS = 4;
+	private static final byte SESSION_CHAIN_P1P2 = 5;
+	// Hash algorithm of the data being hashed for a signature, 0 if none
+	private static final byte SESSION_DIGEST = 6;
+	private static final byte SESSION_SIZE = 7;
+	// Channel (plus one) of the session loaded in session, 0 if none
+	private static final byte SESSION_CHANNEL = 7;
+
+	// Indices of the usage counters, returned in this order by GET DATA E4
+	private static final byte USAGE_SELECT = 0;
+	private static final byte USAGE_GET_RESPONSE = 1;
+	private static final byte USAGE_VERIFY = 2;
+	private static final byte USAGE_CHANGE_REFERENCE_DATA = 3;
+	private static final byte USAGE_RESET_RETRY_COUNTER = 4;
+	private static final byte USAGE_PSO_CDS = 5;
+	private static final byte USAGE_PSO_DEC = 6;
+	private static final byte USAGE_INTERNAL_AUTHENTICATE = 7;
+	private static final byte USAGE_GENERATE = 8;
+	private static final byte USAGE_GET_CHALLENGE = 9;
+	private static final byte USAGE_GET_DATA = 10;
+	private static final byte USAGE_PUT_DATA = 11;
+	private static final byte USAGE_IMPORT_KEY = 12;
+	private static final byte USAGE_OTHER = 13;
+	private static final byte USAGE_CHAINED = 14;
+	private static final byte USAGE_SM = 15;
+	// Errors, counted per SW1 from 60 to 6F
+	private static final byte USAGE_ERRORS = 16;
+	private static final byte USAGE_PSO_ENC = 32;
+	// Every command of PSO: COMPUTE DIGITAL SIGNATURE over data hashed on
+	// the card, the signature itself is counted as USAGE_PSO_CDS
+	private static final byte USAGE_PSO_HASH = 33;
+	private static final byte USAGE_GENERATE_RESERVE = 34;
+	private static final byte USAGE_SELF_BENCHMARK = 35;
+	private static final byte USAGE_SIZE = 36;
+	// Length of a persistent usage counter
+	private static final byte USAGE_LENGTH = 4;
+
+	// Primitives of the self benchmark (P1)
+	private static final byte BENCHMARK_RSA = 0x01;
+	private static final byte BENCHMARK_SM_WRAP = 0x02;
+	private static final byte BENCHMARK_RANDOM = 0x03;
+	private static final byte BENCHMARK_WRITE = 0x04;
+	private static final byte BENCHMARK_WRITE_ATOMIC = 0x05;
+	// Length of the data signed by the self benchmark (SHA-256 DigestInfo)
+	private static final short BENCHMARK_RSA_LENGTH = 51;
+	private static final short BENCHMARK_SCRATCH_LENGTH = 32;
+
+	// Tags of the configuration in the install parameters
+	private static final byte INSTALL_RETIRED_KEYS = 0x01;
+	private static final byte INSTALL_BUFFER = 0x02;
+	private static final byte INSTALL_LOGINDATA = 0x03;
+	private static final byte INSTALL_URL = 0x04;
+	private static final byte INSTALL_CERT = 0x05;
+	private static final byte INSTALL_KEY = 0x06;
+	private static final byte INSTALL_SM = 0x07;
+	private static final byte INSTALL_SERVICE = 0x08;
+	private static final byte INSTALL_RESERVE_KEYS = 0x09;
+
+	// Parameter to request the crypto service from another instance
+	private static final byte SHAREABLE_CRYPTO = 0x01;
+
+	// Secure messaging modes in the install parameters
+	private static final byte SM_DISABLED = 0x00;
+	private static final byte SM_ENABLED = 0x01;
+
+	// Algorithm ID of RSA in the algorithm attributes
+	private static final byte ALGORITHM_RSA = 0x01;
+	//#if aes
+
+	// Padding indicator of PSO: DECIPHER and ENCIPHER with the AES key
+	private static final byte PADDING_AES = 0x02;
+	private static final short AES_BLOCK_SIZE = 16;
+	//#endif aes
+
+	// Maximum number of retired decryption keys
+	private static final byte RETIRED_KEYS_MAX = 16;
+	//#if reserve
+	// Maximum number of pre-generated key pairs
+	private static final byte RESERVE_KEYS_MAX = 8;
+	//#endif reserve
+
+	private static short RESPONSE_MAX_LENGTH = 256;
 	private static short RESPONSE_SM_MAX_LENGTH = 231;
 	private static short CHALLENGES_MAX_LENGTH = 255;
-
+	//#if hash
+
+	// PSO: COMPUTE DIGITAL SIGNATURE over data hashed on the card (vendor
+	// specific), the data starts with the OpenPGP hash algorithm ID
+	private static final short PSO_HASH_SIGN = (short) 0x9E80;
+	private static final byte HASH_SHA256 = 8;
+	private static final byte HASH_SHA512 = 10;
+	private static final byte[] DIGEST_INFO_SHA256 = { 0x30, 0x31, 0x30, 0x0D,
+			0x06, 0x09, 0x60, (byte) 0x86, 0x48, 0x01, 0x65, 0x03, 0x04, 0x02,
+			0x01, 0x05, 0x00, 0x04, 0x20 };
+	private static final byte[] DIGEST_INFO_SHA512 = { 0x30, 0x51, 0x30, 0x0D,
+			0x06, 0x09, 0x60, (byte) 0x86, 0x48, 0x01, 0x65, 0x03, 0x04, 0x02,
+			0x03, 0x05, 0x00, 0x04, 0x40 };
+	//#endif hash
+
+	// Default length of the buffers, enough to import a 2048 bit key
 	private static short BUFFER_MAX_LENGTH = 674;
+	// Bytes of key import data besides the key elements, see getBufferMinLength()
+	private static final short BUFFER_KEY_OVERHEAD = 31;
 
+	// Default capacities, can be changed with the install parameters
 	private static short LOGINDATA_MAX_LENGTH = 254;
 	private static short URL_MAX_LENGTH = 254;
 	private static short NAME_MAX_LENGTH = 39;
@@ -87,10 +201,10 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 	private static final byte[] PW3_DEFAULT = { 0x31, 0x32, 0x33, 0x34, 0x35,
 			0x36, 0x37, 0x38 };
 
-	private byte[] loginData = new byte[LOGINDATA_MAX_LENGTH];
+	private byte[] loginData;
 	private short loginData_length = 0;
 
-	private byte[] url = new byte[URL_MAX_LENGTH];
+	private byte[] url;
 	private short url_length = 0;
 
 	private byte[] name = new byte[NAME_MAX_LENGTH];
@@ -99,8 +213,13 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 	private byte[] lang = new byte[LANG_MAX_LENGTH];
 	private short lang_length = 0;
 
-	private byte[] cert = new byte[CERT_MAX_LENGTH];
+	//#if cert
+	private byte[] cert;
 	private short cert_length = 0;
+	//#endif cert
+
+	// Extended capabilities (C0) of this instance
+	private byte[] extended_cap;
 
 	private byte sex = 0x39;
 
@@ -117,9 +236,53 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 
 	private byte[] ds_counter = { 0x00, 0x00, 0x00 };
 
+	// Increased on every command that modifies the card data, so hosts can
+	// detect whether cached copies of the data objects are still valid
+	private byte[] change_counter = { 0x00, 0x00, 0x00, 0x00 };
+
+	// Usage counters, USAGE_LENGTH bytes each. The counters of the current
+	// selection are kept in RAM and added on SELECT and deselection.
+	private byte[] usage = new byte[(short) (USAGE_SIZE * USAGE_LENGTH)];
+	private short[] usage_session;
+
+	//#if benchmark
+	// Persistent scratch data for the self benchmark
+	private byte[] benchmark_scratch = new byte[BENCHMARK_SCRATCH_LENGTH];
+	// Temporary key pair for the self benchmark, generated on first use
+	private KeyPair benchmark_key = null;
+	//#endif benchmark
+
+	// Cached FCI returned on SELECT
+	private byte[] fci;
+	private short fci_length = 0;
+
 	private PGPKey sig_key;
 	private PGPKey dec_key;
 	private PGPKey auth_key;
+	//#if aes
+	// Symmetric key for PSO: DECIPHER and ENCIPHER (D5), allocated when set
+	private AESKey aes_key;
+	//#endif aes
+
+	//#if decipher
+	// Previous decryption keys, replaced in order of retirement
+	private PGPKey[] retired_keys;
+	private byte retired_next = 0;
+	// Fingerprint index of the retired keys: entries of the first two bytes
+	// of the fingerprint followed by the slot, sorted on the fingerprint
+	private byte[] retired_index;
+	private short retired_index_length = 0;
+	//#if import
+	// Key object a new decryption key is imported into, so the retired keys
+	// are unchanged until the import succeeded
+	private PGPKey retired_spare;
+	//#endif import
+	//#endif decipher
+	//#if reserve
+	// Pre-generated key pairs used by GENERATE ASYMMETRIC KEY PAIR, slots
+	// without a generated key pair are empty
+	private PGPKey[] reserve_keys;
+	//#endif reserve
 
 	private byte[] ca1_fp = { 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
 			0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
@@ -131,35 +294,118 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 			0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
 			0x00 };
 
+	// Engines and RAM, possibly shared with other instances of the applet
+	private CryptoService service;
+	// Instance providing the service, null if this instance provides it
+	private AID service_aid;
+
 	private Cipher cipher;
 	private RandomData random;
 
 	private byte[] tmp;
 
+	// Length of tmp and the buffers of the logical channels
+	private short buffer_length;
+
+	// Buffer of the session on the current channel
 	private byte[] buffer;
-	private short out_left = 0;
-	private short out_sent = 0;
-	private short in_received = 0;
 
-	private boolean chain = false;
-	private byte chain_ins = 0;
-	private short chain_p1p2 = 0;
+	// Session state of the current channel
+	private short[] session;
+	// Saved session state of the other channels
+	private short[] sessions;
 	
+	//#if sm
+	// Secure messaging, null if disabled in the install parameters
 	private OpenPGPSecureMessaging sm;
-	private boolean sm_success = false;
+	private boolean[] sm_success;
+	//#endif sm
 
 	public static void install(byte[] bArray, short bOffset, byte bLength) {
-		new OpenPGPApplet().register(bArray, (short) (bOffset + 1),
-                bArray[bOffset]);
+		new OpenPGPApplet(bArray, bOffset, bLength).register(bArray,
+				(short) (bOffset + 1), bArray[bOffset]);
 	}
 
-	public OpenPGPApplet() {
+	/**
+	 * Create the applet using the configuration from the install parameters.
+	 * The applet specific part of the install parameters is a list of TLV
+	 * elements, with a tag and length of one byte each:
+	 * - 01: Number of retired decryption keys (one byte)
+	 * - 02: Length of the working buffers (two bytes)
+	 * - 03: Capacity of the login data, 5E (two bytes)
+	 * - 04: Capacity of the URL, 5F50 (two bytes)
+	 * - 05: Capacity of the cardholder certificate, 7F21 (two bytes)
+	 * - 06: Key algorithm of all keys: algorithm ID, only 01 (RSA), followed
+	 * by the modulus length in bits (three bytes)
+	 * - 07: Secure messaging: 00 disabled or 01 enabled (one byte)
+	 * - 08: AID of an installed instance to share the crypto service with
+	 * - 09: Number of slots for pre-generated key pairs (one byte)
+	 * 
+	 * Omitted elements keep their default. One buffer is allocated in RAM for
+	 * every logical channel in use, plus one for temporary data. The buffer
+	 * has to fit the key import data for the key length and the capacities of
+	 * the data objects, otherwise installation fails with SW 6A80.
+	 * 
+	 * The buffers and the engines without key material are kept in a
+	 * CryptoService. With tag 08 the instance uses the service of the given
+	 * instance, which has to be from the same package, instead of creating
+	 * its own. The service is attached on the first SELECT, as it can only be
+	 * requested once this instance is registered.
+	 * 
+	 * @param bArray
+	 *            Array containing the install parameters
+	 * @param bOffset
+	 *            Offset of the install parameters
+	 * @param bLength
+	 *            Length of the install parameters
+	 */
+	public OpenPGPApplet(byte[] bArray, short bOffset, byte bLength) {
+		// Key algorithm
+		short key_size = PGPKey.KEY_SIZE;
+		short offset = findInstallParameter(bArray, bOffset, bLength,
+				INSTALL_KEY);
+		if (offset >= 0) {
+			if (bArray[(short) (offset - 1)] != 3
+					|| bArray[offset] != ALGORITHM_RSA)
+				ISOException.throwIt(SW_WRONG_DATA);
+			key_size = Util.getShort(bArray, (short) (offset + 1));
+		}
+
+		// Capacities of the data objects
+		loginData = new byte[getInstallParameter(bArray, bOffset, bLength,
+				INSTALL_LOGINDATA, LOGINDATA_MAX_LENGTH)];
+		url = new byte[getInstallParameter(bArray, bOffset, bLength,
+				INSTALL_URL, URL_MAX_LENGTH)];
+		//#if cert
+		cert = new byte[getInstallParameter(bArray, bOffset, bLength,
+				INSTALL_CERT, CERT_MAX_LENGTH)];
+		//#endif cert
+
+		// Length of the buffers, by default large enough for the key length
+		short min_length = getBufferMinLength(key_size);
+		buffer_length = BUFFER_MAX_LENGTH;
+		if (buffer_length < min_length)
+			buffer_length = min_length;
+		buffer_length = getInstallParameter(bArray, bOffset, bLength,
+				INSTALL_BUFFER, buffer_length);
+		if (buffer_length < min_length)
+			ISOException.throwIt(SW_WRONG_DATA);
+
 		// Create temporary arrays
-		tmp = JCSystem.makeTransientByteArray(BUFFER_MAX_LENGTH,
+		pw1_modes = JCSystem.makeTransientBooleanArray((short) 2,
 				JCSystem.CLEAR_ON_DESELECT);
-		buffer = JCSystem.makeTransientByteArray(BUFFER_MAX_LENGTH,
+		//#if sm
+		sm_success = JCSystem.makeTransientBooleanArray((short) 1,
 				JCSystem.CLEAR_ON_DESELECT);
-		pw1_modes = JCSystem.makeTransientBooleanArray((short) 2,
+		//#endif sm
+		usage_session = JCSystem.makeTransientShortArray(USAGE_SIZE,
+				JCSystem.CLEAR_ON_RESET);
+
+		// Create session state for the logical channels
+		session = JCSystem.makeTransientShortArray((short) (SESSION_SIZE + 1),
+				JCSystem.CLEAR_ON_DESELECT);
+		sessions = JCSystem.makeTransientShortArray(
+				(short) (SESSION_SIZE * MAX_CHANNELS),
 				JCSystem.CLEAR_ON_DESELECT);
 
 		// Initialize PW1 with default password
@@ -176,27 +422,286 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 		pw3_length = (byte) PW3_DEFAULT.length;
 
 		// Create empty keys
-		sig_key = new PGPKey();
-		dec_key = new PGPKey();
-		auth_key = new PGPKey();
+		sig_key = new PGPKey(key_size);
+		dec_key = new PGPKey(key_size);
+		auth_key = new PGPKey(key_size);
+
+		//#if decipher
+		// Create slots for retired decryption keys
+		offset = findInstallParameter(bArray, bOffset, bLength,
+				INSTALL_RETIRED_KEYS);
+		if (offset >= 0 && bArray[offset] > 0) {
+			byte count = bArray[offset];
+			if (count > RETIRED_KEYS_MAX)
+				count = RETIRED_KEYS_MAX;
+
+			retired_keys = new PGPKey[count];
+			for (short i = 0; i < count; i++)
+				retired_keys[i] = new PGPKey(key_size);
+			retired_index = new byte[(short) (count * 3)];
+			//#if import
+			retired_spare = new PGPKey(key_size);
+			//#endif import
+		}
+		//#endif decipher
+		//#if reserve
+
+		// Create slots for pre-generated key pairs
+		offset = findInstallParameter(bArray, bOffset, bLength,
+				INSTALL_RESERVE_KEYS);
+		if (offset >= 0 && bArray[offset] > 0) {
+			byte count = bArray[offset];
+			if (count > RESERVE_KEYS_MAX)
+				count = RESERVE_KEYS_MAX;
+
+			reserve_keys = new PGPKey[count];
+			for (short i = 0; i < count; i++)
+				reserve_keys[i] = new PGPKey(key_size);
+		}
+		//#endif reserve
 
-		//
-		cipher = Cipher.getInstance(Cipher.ALG_RSA_PKCS1, false);
-		random = RandomData.getInstance(RandomData.ALG_SECURE_RANDOM);
-		
+		//#if sm
 		// Initialize Secure Messaging
-		sm = new OpenPGPSecureMessaging();
+		byte sm_mode = (byte) getInstallParameter(bArray, bOffset, bLength,
+				INSTALL_SM, SM_ENABLED);
+		if (sm_mode == SM_ENABLED)
+			sm = new OpenPGPSecureMessaging(MAX_CHANNELS);
+		else if (sm_mode != SM_DISABLED)
+			ISOException.throwIt(SW_WRONG_DATA);
+		//#endif sm
+
+		// Crypto service, either our own or the one of another instance
+		offset = findInstallParameter(bArray, bOffset, bLength,
+				INSTALL_SERVICE);
+		if (offset >= 0) {
+			service_aid = JCSystem.lookupAID(bArray, offset,
+					bArray[(short) (offset - 1)]);
+			if (service_aid == null)
+				ISOException.throwIt(SW_WRONG_DATA);
+		} else {
+			service = new CryptoPool(MAX_CHANNELS);
+			attachService();
+		}
+
+		// Extended capabilities
+		extended_cap = new byte[EXTENDED_CAP.length];
+		Util.arrayCopyNonAtomic(EXTENDED_CAP, _0, extended_cap, _0,
+				(short) EXTENDED_CAP.length);
+		//#if sm
+		if (sm != null)
+			extended_cap[0] |= (byte) 0x80;
+		//#endif sm
+		//#if import
+		extended_cap[0] |= (byte) 0x20;
+		//#endif import
+		//#if aes
+		extended_cap[0] |= (byte) 0x02;
+		//#endif aes
+		//#if cert
+		Util.setShort(extended_cap, (short) 4, (short) cert.length);
+		//#endif cert
+		Util.setShort(extended_cap, (short) 6, buffer_length);
+
+		fci = new byte[FCI_MAX_LENGTH];
+	}
+
+	/**
+	 * Get the minimum length of the buffers: the key import data for the key
+	 * length (4D, 7F48 and 5F48 with e and five CRT elements of half the
+	 * modulus length), a certificate with its header and a full response.
+	 * 
+	 * @param key_size
+	 *            Length of the modulus in bits
+	 * @return Minimum length of the buffers
+	 */
+	private short getBufferMinLength(short key_size) {
+		short length = (short) ((short) (5 * (short) (key_size / 16))
+				+ PGPKey.EXPONENT_SIZE_BYTES + BUFFER_KEY_OVERHEAD);
+
+		if (length < RESPONSE_MAX_LENGTH)
+			length = RESPONSE_MAX_LENGTH;
+		//#if cert
+		if (length < (short) (cert.length + 4))
+			length = (short) (cert.length + 4);
+		//#endif cert
+		if (length < (short) loginData.length)
+			length = (short) loginData.length;
+		if (length < (short) url.length)
+			length = (short) url.length;
+
+		return length;
+	}
+
+	//#if sm
+	/**
+	 * Check whether secure messaging is enabled in the install parameters.
+	 */
+	private void checkSecureMessaging() {
+		if (sm == null)
+			ISOException.throwIt(SW_FUNC_NOT_SUPPORTED);
+	}
+	//#endif sm
+
+	/**
+	 * Get a numeric value from the applet specific part of the install
+	 * parameters. The value is encoded in one or two bytes.
+	 * 
+	 * @param bArray
+	 *            Array containing the install parameters
+	 * @param bOffset
+	 *            Offset of the install parameters
+	 * @param bLength
+	 *            Length of the install parameters
+	 * @param tag
+	 *            Tag of the requested value
+	 * @param value
+	 *            Default value if the tag is not present
+	 * @return Value of the parameter
+	 */
+	private static short getInstallParameter(byte[] bArray, short bOffset,
+			byte bLength, byte tag, short value) {
+		short offset = findInstallParameter(bArray, bOffset, bLength, tag);
+		if (offset < 0)
+			return value;
+
+		switch (bArray[(short) (offset - 1)]) {
+		case 1:
+			return (short) (bArray[offset] & 0xFF);
+		case 2:
+			value = Util.getShort(bArray, offset);
+			if (value < 0)
+				ISOException.throwIt(SW_WRONG_DATA);
+			return value;
+		default:
+			ISOException.throwIt(SW_WRONG_DATA);
+			return value;
+		}
+	}
+
+	/**
+	 * Find a value in the applet specific part of the install parameters.
+	 * 
+	 * @param bArray
+	 *            Array containing the install parameters
+	 * @param bOffset
+	 *            Offset of the install parameters
+	 * @param bLength
+	 *            Length of the install parameters
+	 * @param tag
+	 *            Tag of the requested value
+	 * @return Offset of the value, or -1 if the tag is not present
+	 */
+	private static short findInstallParameter(byte[] bArray, short bOffset,
+			byte bLength, byte tag) {
+		if (bLength <= 0)
+			return -1;
+
+		// Skip instance AID and control information
+		short offset = bOffset;
+		offset += (short) ((bArray[offset] & 0xFF) + 1);
+		offset += (short) ((bArray[offset] & 0xFF) + 1);
+
+		short end = (short) (offset + 1 + (bArray[offset] & 0xFF));
+		offset++;
+
+		while ((short) (offset + 2) <= end) {
+			short len = (short) (bArray[(short) (offset + 1)] & 0xFF);
+			if ((short) (offset + 2 + len) > end)
+				break;
+
+			if (bArray[offset] == tag)
+				return (short) (offset + 2);
+
+			offset += (short) (len + 2);
+		}
+
+		return -1;
+	}
+
+	public boolean select() {
+		// Attach to the crypto service of another instance
+		if (service == null) {
+			service = (CryptoService) JCSystem
+					.getAppletShareableInterfaceObject(service_aid,
+							SHAREABLE_CRYPTO);
+			if (service == null)
+				return false;
+
+			attachService();
+		}
+
+		// Reset PW1 modes
+		pw1_modes[PW1_MODE_NO81] = false;
+		pw1_modes[PW1_MODE_NO82] = false;
+
+		return true;
+	}
+
+	public boolean select(boolean appInstAlreadyActive) {
+		// PW1 modes are shared between the channels, so only reset them if
+		// the applet is not yet active on another channel
+		if (!appInstAlreadyActive)
+			return select();
+
+		return true;
+	}
+
+	public void deselect() {
+		closeSession();
+	}
+
+	/**
+	 * Start using the crypto service: reserve the length of the buffers and
+	 * get the engines.
+	 */
+	private void attachService() {
+		service.reserve(buffer_length);
+		tmp = service.getScratch();
+		cipher = service.getRSACipher();
+		random = service.getRandom();
+		//#if sm
+		if (sm != null)
+			sm.setService(service);
+		//#endif sm
+	}
+
+	/**
+	 * Provide the crypto service to other instances of this applet. Only
+	 * clients with the same RID get the service. The firewall keeps instances
+	 * from other packages from using the arrays and engines anyway.
+	 * 
+	 * @param clientAID
+	 *            AID of the instance requesting the service
+	 * @param parameter
+	 *            SHAREABLE_CRYPTO
+	 * @return The crypto service, or null if not available to the client
+	 */
+	public Shareable getShareableInterfaceObject(AID clientAID, byte parameter) {
+		if (parameter != SHAREABLE_CRYPTO || service == null
+				|| service_aid != null)
+			return null;
+
+		if (!JCSystem.getAID().RIDEquals(clientAID))
+			return null;
+
+		return service;
+	}
+
+	public void deselect(boolean appInstStillActive) {
+		closeSession();
 	}
 
 	public void process(APDU apdu) {
 		if (selectingApplet()) {
-			// Reset PW1 modes
-			pw1_modes[PW1_MODE_NO81] = false;
-			pw1_modes[PW1_MODE_NO82] = false;
+			openSession();
+			count(USAGE_SELECT);
+			sendFCI(apdu);
 
 			return;
 		}
 
+		switchSession();
+
 		byte[] buf = apdu.getBuffer();
 		byte cla= buf[OFFSET_CLA];
 		byte ins = buf[OFFSET_INS];
@@ -207,14 +712,20 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
  
 		// Secure messaging
 		//TODO Force SM if contactless is used		
-		sm_success = false;
+		//#if sm
+		sm_success[0] = false;
 		if ((byte) (cla & (byte) 0x0C) == (byte) 0x0C) {
+			if (sm == null)
+				ISOException.throwIt(SW_SECURE_MESSAGING_NOT_SUPPORTED);
+
 			// Force initialization of SSC before using SM to prevent replays
 			if(FORCE_SM_GET_CHALLENGE && !sm.isSetSSC() && (ins != (byte) 0x84)) ISOException.throwIt(SW_CONDITIONS_NOT_SATISFIED);
 				
 			lc = sm.unwrapCommandAPDU();
-			sm_success = true;
+			sm_success[0] = true;
+			count(USAGE_SM);
         }
+		//#endif sm
 		
 		short status = SW_NO_ERROR;
 		short le = 0;
@@ -225,29 +736,39 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 	
 			// Reset buffer for GET RESPONSE
 			if (ins != (byte) 0xC0) {
-				out_sent = 0;
-				out_left = 0;
+				session[SESSION_OUT_SENT] = 0;
+				session[SESSION_OUT_LEFT] = 0;
 			}
+			//#if hash
+
+			// Any other command ends hashing
+			if (ins != (byte) 0x2A || p1p2 != PSO_HASH_SIGN)
+				session[SESSION_DIGEST] = 0;
+			//#endif hash
 	
 			// Other instructions
 			switch (ins) {
 			// GET RESPONSE
 			case (byte) 0xC0:
 				// Will be handled in finally clause
+				count(USAGE_GET_RESPONSE);
 				break;
 			
 			// VERIFY
 			case (byte) 0x20:
+				count(USAGE_VERIFY);
 				verify(apdu, p2);
 				break;
 	
 			// CHANGE REFERENCE DATA
 			case (byte) 0x24:
+				count(USAGE_CHANGE_REFERENCE_DATA);
 				changeReferenceData(apdu, p2);
 				break;
 	
 			// RESET RETRY COUNTER
 			case (byte) 0x2C:
+				count(USAGE_RESET_RETRY_COUNTER);
 				// Reset only available for PW1
 				if (p2 != (byte) 0x81)
 					ISOException.throwIt(SW_INCORRECT_P1P2);
@@ -259,54 +780,100 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 			case (byte) 0x2A:
 				// COMPUTE DIGITAL SIGNATURE
 				if (p1p2 == (short) 0x9E9A) {
+					count(USAGE_PSO_CDS);
 					le = computeDigitalSignature(apdu);
 				}
+				//#if hash
+				// COMPUTE DIGITAL SIGNATURE over data hashed on the card
+				else if (p1p2 == PSO_HASH_SIGN) {
+					count(USAGE_PSO_HASH);
+					le = hashAndSign(apdu, lc);
+				}
+				//#endif hash
+				//#if decipher
 				// DECIPHER
 				else if (p1p2 == (short) 0x8086) {
+					count(USAGE_PSO_DEC);
 					le = decipher(apdu);
-				} else {
+				}
+				//#endif decipher
+				//#if aes
+				// ENCIPHER
+				else if (p1p2 == (short) 0x8680) {
+					count(USAGE_PSO_ENC);
+					le = encipher();
+				}
+				//#endif aes
+				else {
 					ISOException.throwIt(SW_WRONG_P1P2);
 				}
 	
 				break;
 	
+			//#if auth
 			// INTERNAL AUTHENTICATE
 			case (byte) 0x88:
+				count(USAGE_INTERNAL_AUTHENTICATE);
 				le = internalAuthenticate(apdu);
 				break;
 	
+			//#endif auth
 			// GENERATE ASYMMETRIC KEY PAIR
 			case (byte) 0x47:
+				count(USAGE_GENERATE);
 				le = genAsymKey(apdu, p1);
 				break;
 	
 			// GET CHALLENGE
 			case (byte) 0x84:
+				count(USAGE_GET_CHALLENGE);
 				le = getChallenge(apdu, lc);
 				break;
 	
 			// GET DATA
 			case (byte) 0xCA:
+				count(USAGE_GET_DATA);
 				le = getData(p1p2);
 				break;
 	
 			// PUT DATA
 			case (byte) 0xDA:
+				count(USAGE_PUT_DATA);
 				putData(p1p2);
 				break;
 	
+			//#if import
 			// DB - PUT DATA (Odd)
 			case (byte) 0xDB:
 				// Odd PUT DATA only supported for importing keys
 				// 4D - Extended Header list
 				if (p1p2 == (short) 0x3FFF) {
+					count(USAGE_IMPORT_KEY);
 					importKey(apdu);
 				} else {
 					ISOException.throwIt(SW_RECORD_NOT_FOUND);
 				}
 				break;
 	
+			//#endif import
+			//#if benchmark
+			// SELF BENCHMARK (vendor specific)
+			case (byte) 0xEE:
+				count(USAGE_SELF_BENCHMARK);
+				le = selfBenchmark(p1, p2);
+				break;
+
+			//#endif benchmark
+			//#if reserve
+			// GENERATE RESERVE KEYS (vendor specific)
+			case (byte) 0xEC:
+				count(USAGE_GENERATE_RESERVE);
+				le = generateReserveKeys(p1p2);
+				break;
+
+			//#endif reserve
 			default:
+				count(USAGE_OTHER);
 				// good practice: If you don't know the INStruction, say so:
 				ISOException.throwIt(SW_INS_NOT_SUPPORTED);
 			}
@@ -316,6 +883,9 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 		}
 		finally {
 			if(status != (short)0x9000) {
+				// Count errors per SW1, all error statuses are 6X
+				count((byte) (USAGE_ERRORS + ((status >> 8) & 0x0F)));
+
 				// Send the exception that was thrown 
 				sendException(apdu, status);
 			}
@@ -331,6 +901,272 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 		}
 	}
 
+	/**
+	 * Start a new session on the channel the applet is being selected on. The
+	 * buffer for the channel is allocated the first time the applet is
+	 * selected on it.
+	 */
+	private void openSession() {
+		byte channel = JCSystem.getAssignedChannel();
+		if (channel >= MAX_CHANNELS)
+			ISOException.throwIt(SW_LOGICAL_CHANNEL_NOT_SUPPORTED);
+
+		switchSession();
+		Util.arrayFillNonAtomic(buffer, _0, (short) buffer.length, (byte) 0);
+		resetSession();
+		//#if sm
+		if (sm != null)
+			sm.resetSSC();
+		//#endif sm
+
+		flushUsage();
+	}
+
+	/**
+	 * Count a command in the usage counters of the card session. Before a
+	 * session counter wraps, the session counters are added to the persistent
+	 * counters, so sessions of more than 65535 commands are counted. The
+	 * counters are added in place in a transaction, as tmp may hold data of
+	 * the command. Within a transaction of the command the counter saturates
+	 * instead.
+	 * 
+	 * @param index
+	 *            Index of the counter
+	 */
+	private void count(byte index) {
+		if (usage_session[index] == (short) 0xFFFF) {
+			if (JCSystem.getTransactionDepth() != 0)
+				return;
+
+			JCSystem.beginTransaction();
+			addUsage(usage, _0);
+			JCSystem.commitTransaction();
+
+			for (short i = 0; i < USAGE_SIZE; i++)
+				usage_session[i] = 0;
+		}
+		usage_session[index]++;
+	}
+
+	/**
+	 * Add the usage counters of the card session to the persistent counters.
+	 * This is done on SELECT and deselection, so the persistent memory is
+	 * only written once per selection and not for every command. Counts of a
+	 * session that ends with a card reset are lost. The new values are
+	 * computed in tmp and written with a single copy.
+	 */
+	private void flushUsage() {
+		boolean counted = false;
+		short i;
+		for (i = 0; i < USAGE_SIZE; i++) {
+			if (usage_session[i] != 0) {
+				counted = true;
+				break;
+			}
+		}
+		if (!counted)
+			return;
+
+		short len = (short) usage.length;
+		Util.arrayCopyNonAtomic(usage, _0, tmp, _0, len);
+		addUsage(tmp, _0);
+		Util.arrayCopy(tmp, _0, usage, _0, len);
+
+		for (i = 0; i < USAGE_SIZE; i++)
+			usage_session[i] = 0;
+	}
+
+	/**
+	 * Add the usage counters of the card session to a copy of the persistent
+	 * counters. Session counters are unsigned and the sums saturate.
+	 * 
+	 * @param data
+	 *            Byte array containing the counters
+	 * @param offset
+	 *            Offset of the first counter
+	 */
+	private void addUsage(byte[] data, short offset) {
+		for (short i = 0; i < USAGE_SIZE; i++) {
+			short count = usage_session[i];
+			if (count != 0) {
+				// Add the low byte, then the high byte and the carry
+				short j = (short) (offset + USAGE_LENGTH - 1);
+				short sum = (short) ((data[j] & 0xFF) + (count & 0xFF));
+				data[j] = (byte) sum;
+				short carry = (short) (((sum >> 8) & 0xFF) + ((count >> 8) & 0xFF));
+
+				for (j--; j >= offset && carry != 0; j--) {
+					sum = (short) ((data[j] & 0xFF) + carry);
+					data[j] = (byte) sum;
+					carry = (short) ((sum >> 8) & 0xFF);
+				}
+
+				if (carry != 0)
+					Util.arrayFillNonAtomic(data, offset, USAGE_LENGTH,
+							(byte) 0xFF);
+			}
+			offset += USAGE_LENGTH;
+		}
+	}
+
+	/**
+	 * End the session on the channel the applet is being deselected on.
+	 */
+	private void closeSession() {
+		byte channel = JCSystem.getAssignedChannel();
+		if (channel >= MAX_CHANNELS)
+			return;
+
+		if (session[SESSION_CHANNEL] == (short) (channel + 1)) {
+			resetSession();
+		} else {
+			for (short i = 0; i < SESSION_SIZE; i++)
+				sessions[(short) (channel * SESSION_SIZE + i)] = 0;
+		}
+		//#if sm
+		if (sm != null)
+			sm.resetSSC();
+		//#endif sm
+
+		flushUsage();
+	}
+
+	/**
+	 * Load the session state of the channel the current command was received
+	 * on. The state of the previously used channel is saved, so sessions on
+	 * different channels can be interleaved. As long as only a single channel
+	 * is used this does not do anything.
+	 */
+	private void switchSession() {
+		byte channel = JCSystem.getAssignedChannel();
+		if (channel >= MAX_CHANNELS)
+			ISOException.throwIt(SW_LOGICAL_CHANNEL_NOT_SUPPORTED);
+
+		// The arrays are replaced when another instance reserves a larger
+		// length, so get them from the service. Fields are only written when
+		// they changed, to avoid persistent writes for every command.
+		byte[] shared = service.getBuffer(channel);
+		if (buffer != shared)
+			buffer = shared;
+		shared = service.getScratch();
+		if (tmp != shared)
+			tmp = shared;
+
+		short current = session[SESSION_CHANNEL];
+		if (current == (short) (channel + 1))
+			return;
+
+		// Save state of the current session
+		short i;
+		if (current != 0) {
+			short offset = (short) ((current - 1) * SESSION_SIZE);
+			for (i = 0; i < SESSION_SIZE; i++)
+				sessions[(short) (offset + i)] = session[i];
+		}
+
+		// Load state of the requested session
+		short offset = (short) (channel * SESSION_SIZE);
+		for (i = 0; i < SESSION_SIZE; i++)
+			session[i] = sessions[(short) (offset + i)];
+		session[SESSION_CHANNEL] = (short) (channel + 1);
+	}
+
+	/**
+	 * Reset the state of the session on the current channel.
+	 */
+	private void resetSession() {
+		for (short i = 0; i < SESSION_SIZE; i++)
+			session[i] = 0;
+	}
+
+	/**
+	 * Send the File Control Information in response to SELECT. The static
+	 * part (AID and extended capabilities) is built once and cached, only the
+	 * PW status bytes, the change counter and the key presence are filled in
+	 * for every SELECT.
+	 * 
+	 * @param apdu
+	 */
+	private void sendFCI(APDU apdu) {
+		if (fci_length == 0)
+			buildFCI();
+
+		byte[] buf = apdu.getBuffer();
+		Util.arrayCopyNonAtomic(fci, _0, buf, _0, fci_length);
+
+		short offset = (short) (fci_length - FCI_DYNAMIC_LENGTH);
+
+		// C4 - PW Status Bytes
+		offset = getPWStatus(buf, TLV.getValueOffset(buf, offset));
+
+		// E1 - Change counter
+		offset = Util.arrayCopyNonAtomic(change_counter, _0, buf,
+				TLV.getValueOffset(buf, offset),
+				(short) change_counter.length);
+
+		// E2 - Key presence
+		offset = TLV.getValueOffset(buf, offset);
+		byte keys = 0;
+		if (sig_key.getPrivate().isInitialized())
+			keys |= (byte) 0x01;
+		if (dec_key.getPrivate().isInitialized())
+			keys |= (byte) 0x02;
+		if (auth_key.getPrivate().isInitialized())
+			keys |= (byte) 0x04;
+		//#if aes
+		if (aes_key != null && aes_key.isInitialized())
+			keys |= (byte) 0x08;
+		//#endif aes
+		buf[offset++] = keys;
+
+		apdu.setOutgoingAndSend(_0, offset);
+	}
+
+	/**
+	 * Build the cached FCI template. The dynamic data objects are placed at
+	 * the end of the template with their values left empty.
+	 */
+	private void buildFCI() {
+		// 6F - FCI template
+		short offset = TLV.begin(tmp, _0, (short) 0x006F, (short) 0x7F);
+
+		// 84 - AID
+		short start = offset;
+		offset = TLV.begin(tmp, start, (short) 0x0084, (short) 16);
+		offset += JCSystem.getAID().getBytes(tmp, offset);
+		offset = TLV.end(tmp, start, offset);
+
+		// A5 - Proprietary information
+		short proprietary = offset;
+		offset = TLV.begin(tmp, proprietary, (short) 0x00A5, (short) 0x7F);
+
+		// C0 - Extended capabilities
+		offset = TLV.write(tmp, offset, (short) 0x00C0, extended_cap, _0,
+				(short) extended_cap.length);
+
+		// C4 - PW Status Bytes
+		offset = TLV.writeHeader(tmp, offset, (short) 0x00C4, (short) 7);
+		offset += 7;
+
+		// E1 - Change counter (vendor specific)
+		offset = TLV.writeHeader(tmp, offset, (short) 0x00E1,
+				(short) change_counter.length);
+		offset += change_counter.length;
+
+		// E2 - Key presence: sig (01), dec (02), auth (04) and AES (08)
+		// (vendor specific)
+		offset = TLV.writeHeader(tmp, offset, (short) 0x00E2, (short) 1);
+		offset++;
+
+		offset = TLV.end(tmp, proprietary, offset);
+		offset = TLV.end(tmp, _0, offset);
+
+		JCSystem.beginTransaction();
+		Util.arrayCopy(tmp, _0, fci, _0, offset);
+		fci_length = offset;
+		JCSystem.commitTransaction();
+	}
+
 	/**
 	 * Provide support for command chaining by storing the received data in
 	 * buffer
@@ -342,64 +1178,77 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 		short p1p2 = Util.makeShort(buf[OFFSET_P1],
 				buf[OFFSET_P2]);
 		short len = (short) (buf[OFFSET_LC] & 0xFF);
+		boolean chain = session[SESSION_CHAIN] != 0;
+		//#if hash
+
+		// Data hashed on the card is processed by every command
+		if (buf[OFFSET_INS] == (byte) 0x2A && p1p2 == PSO_HASH_SIGN) {
+			resetChaining();
+			return;
+		}
+		//#endif hash
 
 		// Reset chaining if it was not yet initiated
 		if (!chain)
 			resetChaining();
 
+		short in_received = session[SESSION_IN_RECEIVED];
+
 		if ((byte) (buf[OFFSET_CLA] & (byte) 0x10) == (byte) 0x10) {
 			// If chaining was already initiated, INS and P1P2 should match
 			if (chain
-					&& (buf[OFFSET_INS] != chain_ins && p1p2 != chain_p1p2)) {
+					&& (buf[OFFSET_INS] != session[SESSION_CHAIN_INS] && p1p2 != session[SESSION_CHAIN_P1P2])) {
 				resetChaining();
 				ISOException.throwIt(SW_CONDITIONS_NOT_SATISFIED);
 			}
 
 			// Check whether data to be received is larger than size of the
 			// buffer
-			if ((short) (in_received + len) > BUFFER_MAX_LENGTH) {
+			if ((short) (in_received + len) > buffer_length) {
 				resetChaining();
 				ISOException.throwIt(SW_WRONG_LENGTH);
 			}
 
 			// Store received data in buffer
-			in_received = Util.arrayCopyNonAtomic(buf, OFFSET_CDATA,
-					buffer, in_received, len);
+			session[SESSION_IN_RECEIVED] = Util.arrayCopyNonAtomic(buf,
+					OFFSET_CDATA, buffer, in_received, len);
 
-			chain = true;
-			chain_ins = buf[OFFSET_INS];
-			chain_p1p2 = p1p2;
+			session[SESSION_CHAIN] = 1;
+			session[SESSION_CHAIN_INS] = buf[OFFSET_INS];
+			session[SESSION_CHAIN_P1P2] = p1p2;
+			count(USAGE_CHAINED);
 
 			ISOException.throwIt(SW_NO_ERROR);
 		}
 
-		if (chain && buf[OFFSET_INS] == chain_ins && p1p2 == chain_p1p2) {
-			chain = false;
+		if (chain && buf[OFFSET_INS] == session[SESSION_CHAIN_INS]
+				&& p1p2 == session[SESSION_CHAIN_P1P2]) {
+			session[SESSION_CHAIN] = 0;
 
 			// Check whether data to be received is larger than size of the
 			// buffer
-			if ((short) (in_received + len) > BUFFER_MAX_LENGTH) {
+			if ((short) (in_received + len) > buffer_length) {
 				resetChaining();
 				ISOException.throwIt(SW_WRONG_LENGTH);
 			}
 
 			// Add received data to the buffer
-			in_received = Util.arrayCopyNonAtomic(buf, OFFSET_CDATA,
-					buffer, in_received, len);
+			session[SESSION_IN_RECEIVED] = Util.arrayCopyNonAtomic(buf,
+					OFFSET_CDATA, buffer, in_received, len);
 		} else if (chain) {
 			// Chained command expected
 			resetChaining();
 			ISOException.throwIt(SW_UNKNOWN);
 		} else {
 			// No chaining was used, so copy data to buffer
-			in_received = Util.arrayCopyNonAtomic(buf, OFFSET_CDATA,
-					buffer, _0, len);
+			session[SESSION_IN_RECEIVED] = Util.arrayCopyNonAtomic(buf,
+					OFFSET_CDATA, buffer, _0, len);
 		}
 	}
 
 	private void resetChaining() {
-		chain = false;
-		in_received = 0;
+		session[SESSION_CHAIN] = 0;
+		session[SESSION_IN_RECEIVED] = 0;
 	}
 
 	/**
@@ -413,6 +1262,8 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 	 *            Password and mode to be verified
 	 */
 	private void verify(APDU apdu, byte mode) {
+		short in_received = session[SESSION_IN_RECEIVED];
+
 		if (mode == (byte) 0x81 || mode == (byte) 0x82) {
 			// Check length of input
 			if (in_received < PW1_MIN_LENGTH || in_received > PW1_MAX_LENGTH)
@@ -453,6 +1304,8 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 	 *            Password to be changed
 	 */
 	private void changeReferenceData(APDU apdu, byte mode) {
+		short in_received = session[SESSION_IN_RECEIVED];
+
 		if (mode == (byte) 0x81) {
 			// Check length of the new password
 			short new_length = (short) (in_received - pw1_length);
@@ -483,7 +1336,11 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 			pw3.update(buffer, pw3_length, (byte) new_length);
 			pw3_length = (byte) new_length;
 			JCSystem.commitTransaction();
+		} else {
+			ISOException.throwIt(SW_INCORRECT_P1P2);
 		}
+
+		increaseChangeCounter();
 	}
 
 	/**
@@ -496,6 +1353,8 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 	 *            Mode used to reset PW1
 	 */
 	private void resetRetryCounter(APDU apdu, byte mode) {
+		short in_received = session[SESSION_IN_RECEIVED];
+
 		if (mode == (byte) 0x00) {
 			// Authentication using RC
 			if (rc_length == 0)
@@ -544,6 +1403,8 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 	 * @return Length of data written in buffer
 	 */
 	private short computeDigitalSignature(APDU apdu) {
+		short in_received = session[SESSION_IN_RECEIVED];
+
 		if (!(pw1.isValidated() && pw1_modes[PW1_MODE_NO81]))
 			ISOException.throwIt(SW_SECURITY_STATUS_NOT_SATISFIED);
 
@@ -562,7 +1423,105 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 
 		return cipher.doFinal(tmp, _0, length, buffer, _0);
 	}
+	//#if hash
+
+	/**
+	 * Provide PSO: COMPUTE DIGITAL SIGNATURE over data hashed on the card
+	 * (INS 2A, P1P2 9E80, vendor specific). The data of the first command
+	 * starts with the OpenPGP hash algorithm ID: 08 (SHA-256) or 0A
+	 * (SHA-512). The data of every command in the chain is hashed as it is
+	 * received, so the length of the data is not limited by the buffer. The
+	 * last command of the chain returns the signature over the DigestInfo.
+	 * 
+	 * @param apdu
+	 * @param lc
+	 *            Length of the data in the APDU buffer
+	 * @return Length of the signature, 0 for commands in the chain
+	 */
+	private short hashAndSign(APDU apdu, short lc) {
+		byte[] buf = apdu.getBuffer();
+		short offset = OFFSET_CDATA;
+		byte algorithm = (byte) session[SESSION_DIGEST];
+		session[SESSION_DIGEST] = 0;
+
+		if (!(pw1.isValidated() && pw1_modes[PW1_MODE_NO81]))
+			ISOException.throwIt(SW_SECURITY_STATUS_NOT_SATISFIED);
+
+		if (!sig_key.getPrivate().isInitialized())
+			ISOException.throwIt(SW_CONDITIONS_NOT_SATISFIED);
+
+		MessageDigest digest;
+		if (algorithm == 0) {
+			// First command, start hashing
+			if (lc < 1)
+				ISOException.throwIt(SW_WRONG_LENGTH);
+
+			algorithm = buf[offset++];
+			lc--;
+			digest = getDigest(algorithm);
+			digest.reset();
+			service.claimDigest(buffer);
+		} else {
+			// The digest is shared, so check it was not used since the
+			// previous command
+			digest = getDigest(algorithm);
+			if (service.claimDigest(buffer))
+				ISOException.throwIt(SW_CONDITIONS_NOT_SATISFIED);
+		}
+
+		if ((byte) (buf[OFFSET_CLA] & (byte) 0x10) == (byte) 0x10) {
+			digest.update(buf, offset, lc);
+			session[SESSION_DIGEST] = algorithm;
+			count(USAGE_CHAINED);
+			return 0;
+		}
+
+		// Last command, build the DigestInfo in tmp and sign it
+		byte[] prefix = DIGEST_INFO_SHA256;
+		if (algorithm == HASH_SHA512)
+			prefix = DIGEST_INFO_SHA512;
+		short length = Util.arrayCopyNonAtomic(prefix, _0, tmp, _0,
+				(short) prefix.length);
+		length += digest.doFinal(buf, offset, lc, tmp, length);
+
+		if (pw1_status == (byte) 0x00)
+			pw1_modes[PW1_MODE_NO81] = false;
+
+		count(USAGE_PSO_CDS);
+		cipher.init(sig_key.getPrivate(), Cipher.MODE_ENCRYPT);
+		increaseDSCounter();
+
+		return cipher.doFinal(tmp, _0, length, buffer, _0);
+	}
+
+	/**
+	 * Get the message digest for an OpenPGP hash algorithm ID.
+	 * 
+	 * @param algorithm
+	 *            HASH_SHA256 or HASH_SHA512
+	 * @return Message digest
+	 */
+	private MessageDigest getDigest(byte algorithm) {
+		byte type;
+		if (algorithm == HASH_SHA256)
+			type = CryptoService.ALG_SHA_256;
+		else if (algorithm == HASH_SHA512)
+			type = CryptoService.ALG_SHA_512;
+		else {
+			ISOException.throwIt(SW_WRONG_DATA);
+			return null;
+		}
+
+		try {
+			return service.getDigest(type);
+		} catch (CryptoException e) {
+			ISOException.throwIt(SW_FUNC_NOT_SUPPORTED);
+			return null;
+		}
+	}
+	//#endif hash
 
+	//#if decipher
 	/**
 	 * Provide the PSO: DECIPHER command (INS 2A, P1P2 8086)
 	 * 
@@ -574,21 +1533,132 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 	 * @return Length of data written in buffer
 	 */
 	private short decipher(APDU apdu) {
+		short in_received = session[SESSION_IN_RECEIVED];
+
 		// DECIPHER
 		if (!(pw1.isValidated() && pw1_modes[PW1_MODE_NO82]))
 			ISOException.throwIt(SW_SECURITY_STATUS_NOT_SATISFIED);
-		if (!dec_key.getPrivate().isInitialized())
+		//#if aes
+
+		// Padding indicator 02 selects the AES key
+		if (in_received > 0 && buffer[0] == PADDING_AES)
+			return cryptAES((short) 1, (short) (in_received - 1),
+					Cipher.MODE_DECRYPT, _0);
+		//#endif aes
+
+		// Select key using the fingerprint if it is given in a key reference
+		// (83), otherwise use the current key
+		PGPKey key = dec_key;
+		short offset = 0;
+		if (buffer[0] == (byte) 0x83) {
+			if (in_received < (short) (PGPKey.FP_SIZE + 3)
+					|| buffer[1] != PGPKey.FP_SIZE)
+				ISOException.throwIt(SW_WRONG_DATA);
+
+			key = findDecryptionKey(buffer, (short) 2);
+			offset = (short) (PGPKey.FP_SIZE + 2);
+		}
+
+		if (!key.getPrivate().isInitialized())
 			ISOException.throwIt(SW_CONDITIONS_NOT_SATISFIED);
 
 		// Copy data to be decrypted to tmp, omit padding indicator
-		short length = Util.arrayCopyNonAtomic(buffer, (short) 1, tmp, _0,
-				(short) (in_received - 1));
+		offset++;
+		short length = Util.arrayCopyNonAtomic(buffer, offset, tmp, _0,
+				(short) (in_received - offset));
 
-		cipher.init(dec_key.getPrivate(), Cipher.MODE_DECRYPT);
+		cipher.init(key.getPrivate(), Cipher.MODE_DECRYPT);
 
 		return cipher.doFinal(tmp, _0, length, buffer, _0);
 	}
+	//#endif decipher
+	//#if aes
 
+	/**
+	 * Provide the PSO: ENCIPHER command (INS 2A, P1P2 8680) using the AES key.
+	 * The response is the padding indicator 02 followed by the cryptogram.
+	 * 
+	 * @return Length of the response
+	 */
+	private short encipher() {
+		if (!(pw1.isValidated() && pw1_modes[PW1_MODE_NO82]))
+			ISOException.throwIt(SW_SECURITY_STATUS_NOT_SATISFIED);
+
+		// The cryptogram follows the padding indicator in the buffer
+		short length = session[SESSION_IN_RECEIVED];
+		if (length > (short) (buffer_length - 1))
+			ISOException.throwIt(SW_WRONG_LENGTH);
+
+		// The data is copied before the padding indicator overwrites it
+		length = cryptAES(_0, length, Cipher.MODE_ENCRYPT, (short) 1);
+		buffer[0] = PADDING_AES;
+		return (short) (length + 1);
+	}
+
+	/**
+	 * Encrypt or decrypt data in the buffer with the AES key in CBC mode with
+	 * a zero IV. The data has to be a multiple of the block size.
+	 * 
+	 * @param offset
+	 *            Offset of the data in the buffer
+	 * @param length
+	 *            Length of the data
+	 * @param mode
+	 *            Cipher.MODE_ENCRYPT or Cipher.MODE_DECRYPT
+	 * @param out
+	 *            Offset of the result in the buffer
+	 * @return Length of the result
+	 */
+	private short cryptAES(short offset, short length, byte mode, short out) {
+		if (aes_key == null || !aes_key.isInitialized())
+			ISOException.throwIt(SW_CONDITIONS_NOT_SATISFIED);
+
+		if (length == 0 || (short) (length % AES_BLOCK_SIZE) != 0)
+			ISOException.throwIt(SW_WRONG_LENGTH);
+
+		// Copy data to tmp, so the result can be written to the buffer
+		Util.arrayCopyNonAtomic(buffer, offset, tmp, _0, length);
+
+		Cipher aes = service.getAESCipher();
+		aes.init(aes_key, mode);
+
+		return aes.doFinal(tmp, _0, length, buffer, out);
+	}
+
+	/**
+	 * Set the AES key (D5) to the data in the buffer. The key is allocated
+	 * again when its length changes.
+	 * 
+	 * @param length
+	 *            Length of the key: 16 or 32 bytes, or 0 to remove the key
+	 */
+	private void setAESKey(short length) {
+		if (length == 0) {
+			if (aes_key != null)
+				aes_key.clearKey();
+			return;
+		}
+
+		if (length != KeyBuilder.LENGTH_AES_128 / 8
+				&& length != KeyBuilder.LENGTH_AES_256 / 8)
+			ISOException.throwIt(SW_WRONG_LENGTH);
+
+		short size = (short) (length * 8);
+		if (aes_key == null || aes_key.getSize() != size) {
+			if (aes_key != null) {
+				aes_key.clearKey();
+				if (JCSystem.isObjectDeletionSupported())
+					JCSystem.requestObjectDeletion();
+			}
+			aes_key = (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES, size,
+					false);
+		}
+
+		aes_key.setKey(buffer, _0);
+	}
+	//#endif aes
+
+	//#if auth
 	/**
 	 * Provide the INTERNAL AUTHENTICATE command (INS 88)
 	 * 
@@ -599,6 +1669,8 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 	 * @return Length of data written in buffer
 	 */
 	private short internalAuthenticate(APDU apdu) {
+		short in_received = session[SESSION_IN_RECEIVED];
+
 		if (!(pw1.isValidated() && pw1_modes[PW1_MODE_NO82]))
 			ISOException.throwIt(SW_SECURITY_STATUS_NOT_SATISFIED);
 		Util.arrayCopyNonAtomic(buffer, _0, tmp, _0, in_received);
@@ -609,6 +1681,7 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 		cipher.init(auth_key.getPrivate(), Cipher.MODE_ENCRYPT);
 		return cipher.doFinal(tmp, _0, in_received, buffer, _0);
 	}
+	//#endif auth
 
 	/**
 	 * Provide the GENERATE ASYMMETRIC KEY PAIR command (INS 47)
@@ -635,7 +1708,19 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 
 			// TODO Usage of transaction resultsin SW 6F00 on new cards
 			JCSystem.beginTransaction();
-			key.genKeyPair();
+			//#if decipher
+			if (key == dec_key) {
+				retireDecryptionKey();
+				key = dec_key;
+			}
+			//#endif decipher
+			key = generateKey(key);
+			if (buffer[0] == (byte) 0xB6)
+				sig_key = key;
+			else if (buffer[0] == (byte) 0xB8)
+				dec_key = key;
+			else
+				auth_key = key;
 			
 			if (buffer[0] == (byte) 0xB6) {
 				// Reset signature counter
@@ -644,12 +1729,95 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 				}
 			}
 			JCSystem.commitTransaction();
+
+			increaseChangeCounter();
 		}
 
 		// Output requested key
 		return sendPublicKey(key);
 	}
 
+	/**
+	 * Generate a new key pair to replace the given key. A pre-generated key
+	 * pair is used if available, the given key then takes its place in the
+	 * reserve as an empty slot.
+	 * 
+	 * @param key
+	 *            Key to be replaced
+	 * @return The new key
+	 */
+	private PGPKey generateKey(PGPKey key) {
+		//#if reserve
+		if (reserve_keys != null) {
+			for (short i = 0; i < reserve_keys.length; i++) {
+				PGPKey spare = reserve_keys[i];
+				if (spare.getPrivate().isInitialized()) {
+					key.clear();
+					reserve_keys[i] = key;
+					return spare;
+				}
+			}
+		}
+
+		//#endif reserve
+		key.genKeyPair();
+		return key;
+	}
+	//#if reserve
+
+	/**
+	 * Provide the GENERATE RESERVE KEYS command (INS EC, vendor specific).
+	 * Key pairs are generated for empty slots of the reserve, so GENERATE
+	 * ASYMMETRIC KEY PAIR does not have to wait for the generation.
+	 * 
+	 * @param p1p2
+	 *            Maximum number of key pairs to generate, 0 for all empty
+	 *            slots
+	 * @return Length of the reserve status (E5) in the buffer
+	 */
+	private short generateReserveKeys(short p1p2) {
+		if (!pw3.isValidated())
+			ISOException.throwIt(SW_SECURITY_STATUS_NOT_SATISFIED);
+
+		if (reserve_keys == null)
+			ISOException.throwIt(SW_CONDITIONS_NOT_SATISFIED);
+
+		short count = p1p2;
+		if (count <= 0)
+			count = (short) reserve_keys.length;
+
+		for (short i = 0; i < reserve_keys.length && count > 0; i++) {
+			if (!reserve_keys[i].getPrivate().isInitialized()) {
+				reserve_keys[i].genKeyPair();
+				count--;
+			}
+		}
+
+		return getReserveStatus();
+	}
+
+	/**
+	 * Write the reserve status (E5) to the buffer: the number of
+	 * pre-generated key pairs followed by the number of slots.
+	 * 
+	 * @return Length of the reserve status
+	 */
+	private short getReserveStatus() {
+		buffer[0] = 0;
+		buffer[1] = 0;
+		if (reserve_keys == null)
+			return 2;
+
+		for (short i = 0; i < reserve_keys.length; i++) {
+			if (reserve_keys[i].getPrivate().isInitialized())
+				buffer[0]++;
+		}
+		buffer[1] = (byte) reserve_keys.length;
+
+		return 2;
+	}
+	//#endif reserve
+
 	/**
 	 * Provide the GET CHALLENGE command (INS 84)
 	 * 
@@ -668,9 +1836,11 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 		
 		// Set the SSC used in Secure Messaging if the size of the requested 
 		// challenge is equal to the size of the SSC
-		if(len == sm.getSSCSize()) {
+		//#if sm
+		if(sm != null && len == sm.getSSCSize()) {
 			sm.setSSC(buffer, _0);
 		}
+		//#endif sm
 		
 		return len;
 	}
@@ -706,99 +1876,69 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 
 		// 65 - Cardholder Related Data
 		case (short) 0x0065:
-			buffer[offset++] = 0x65;
-			buffer[offset++] = 0x00;
+			offset = TLV.begin(buffer, _0, tag,
+					(short) (name.length + lang.length + 12));
 
 			// 5B - Name
-			buffer[offset++] = 0x5B;
-			buffer[offset++] = (byte) name_length;
-			offset = Util.arrayCopyNonAtomic(name, _0, buffer, offset,
+			offset = TLV.write(buffer, offset, (short) 0x005B, name, _0,
 					name_length);
 
 			// 5F2D - Language
-			buffer[offset++] = 0x5F;
-			buffer[offset++] = 0x2D;
-			buffer[offset++] = (byte) lang_length;
-			offset = Util.arrayCopyNonAtomic(lang, _0, buffer, offset,
+			offset = TLV.write(buffer, offset, (short) 0x5F2D, lang, _0,
 					lang_length);
 
 			// 5F35 - Sex
-			buffer[offset++] = 0x5F;
-			buffer[offset++] = 0x35;
-			buffer[offset++] = 0x01;
+			offset = TLV.writeHeader(buffer, offset, (short) 0x5F35, (short) 1);
 			buffer[offset++] = sex;
 
-			// Set length for combined data
-			buffer[1] = (byte) (offset - 2);
-
-			return offset;
+			return TLV.end(buffer, _0, offset);
 
 		// 6E - Application Related Data
 		case (short) 0x006E:
-			buffer[offset++] = 0x6E;
-			// Total length assumed to be >= 128 and < 256
-			buffer[offset++] = (byte) 0x81;
-			buffer[offset++] = 0;
+			// Total length is < 256
+			offset = TLV.begin(buffer, _0, tag, (short) 0xFF);
 
 			// 4F - AID
-			buffer[offset++] = 0x4F;
-			byte len = JCSystem.getAID().getBytes(buffer, (short)(offset + 1));
-			buffer[offset++] = len;
-			offset += len;
+			short start = offset;
+			offset = TLV.begin(buffer, start, (short) 0x004F, (short) 16);
+			offset += JCSystem.getAID().getBytes(buffer, offset);
+			offset = TLV.end(buffer, start, offset);
 
 			// 5F52 - Historical bytes
-			buffer[offset++] = 0x5F;
-			buffer[offset++] = 0x52;
-			buffer[offset++] = (byte) HISTORICAL.length;
-			offset = Util.arrayCopyNonAtomic(HISTORICAL, _0, buffer, offset,
+			offset = TLV.write(buffer, offset, (short) 0x5F52, HISTORICAL, _0,
 					(short) HISTORICAL.length);
 
 			// 73 - Discretionary data objects
-			buffer[offset++] = 0x73;
-			buffer[offset++] = 0x00;
+			offset = TLV.writeHeader(buffer, offset, (short) 0x0073, _0);
 
 			// C0 - Extended capabilities
-			buffer[offset++] = (byte) 0xC0;
-			buffer[offset++] = (byte) EXTENDED_CAP.length;
-			offset = Util.arrayCopyNonAtomic(EXTENDED_CAP, _0, buffer, offset,
-					(short) EXTENDED_CAP.length);
+			offset = TLV.write(buffer, offset, (short) 0x00C0, extended_cap,
+					_0, (short) extended_cap.length);
 
 			// C1 - Algorithm attributes signature
-			buffer[offset++] = (byte) 0xC1;
-			buffer[offset++] = (byte) 0x06;
+			offset = TLV.writeHeader(buffer, offset, (short) 0x00C1, (short) 6);
 			offset = sig_key.getAttributes(buffer, offset);
 
 			// C2 - Algorithm attributes decryption
-			buffer[offset++] = (byte) 0xC2;
-			buffer[offset++] = (byte) 0x06;
+			offset = TLV.writeHeader(buffer, offset, (short) 0x00C2, (short) 6);
 			offset = dec_key.getAttributes(buffer, offset);
 
 			// C3 - Algorithm attributes authentication
-			buffer[offset++] = (byte) 0xC3;
-			buffer[offset++] = (byte) 0x06;
+			offset = TLV.writeHeader(buffer, offset, (short) 0x00C3, (short) 6);
 			offset = auth_key.getAttributes(buffer, offset);
 
 			// C4 - PW1 Status bytes
-			buffer[offset++] = (byte) 0xC4;
-			buffer[offset++] = 0x07;
-			buffer[offset++] = pw1_status;
-			buffer[offset++] = PW1_MAX_LENGTH;
-			buffer[offset++] = RC_MAX_LENGTH;
-			buffer[offset++] = PW3_MAX_LENGTH;
-			buffer[offset++] = pw1.getTriesRemaining();
-			buffer[offset++] = rc.getTriesRemaining();
-			buffer[offset++] = pw3.getTriesRemaining();
+			offset = TLV.writeHeader(buffer, offset, (short) 0x00C4, (short) 7);
+			offset = getPWStatus(buffer, offset);
 
 			// C5 - Fingerprints sign, dec and auth keys
-			buffer[offset++] = (byte) 0xC5;
-			buffer[offset++] = (short) 60;
+			offset = TLV.writeHeader(buffer, offset, (short) 0x00C5, (short) 60);
 			offset = sig_key.getFingerprint(buffer, offset);
 			offset = dec_key.getFingerprint(buffer, offset);
 			offset = auth_key.getFingerprint(buffer, offset);
 
 			// C6 - Fingerprints CA 1, 2 and 3
-			buffer[offset++] = (byte) 0xC6;
-			buffer[offset++] = (short) 60;
+			offset = TLV.writeHeader(buffer, offset, (short) 0x00C6, (short) 60);
 			offset = Util.arrayCopyNonAtomic(ca1_fp, _0, buffer, offset,
 					(short) 20);
 			offset = Util.arrayCopyNonAtomic(ca2_fp, _0, buffer, offset,
@@ -807,64 +1947,69 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 					(short) 20);
 
 			// CD - Generation times of public key pair
-			buffer[offset++] = (byte) 0xCD;
-			buffer[offset++] = (short) 12;
+			offset = TLV.writeHeader(buffer, offset, (short) 0x00CD, (short) 12);
 			offset = sig_key.getTime(buffer, offset);
 			offset = dec_key.getTime(buffer, offset);
 			offset = auth_key.getTime(buffer, offset);
 
-			// Set length of combined data
-			buffer[2] = (byte) (offset - 3);
-
-			return offset;
+			return TLV.end(buffer, _0, offset);
 
 		// 7A - Security support template
 		case (short) 0x007A:
-			buffer[offset++] = 0x7A;
-			buffer[offset++] = (byte) 0x05;
+			offset = TLV.begin(buffer, _0, tag, (short) 5);
 
 			// 93 - Digital signature counter
-			buffer[offset++] = (byte) 0x93;
-			buffer[offset++] = 0x03;
-			offset = Util.arrayCopyNonAtomic(ds_counter, _0, buffer, offset,
+			offset = TLV.write(buffer, offset, (short) 0x0093, ds_counter, _0,
 					(short) 3);
 
+			return TLV.end(buffer, _0, offset);
+
+		// E1 - Change counter (vendor specific)
+		case (short) 0x00E1:
+			return Util.arrayCopyNonAtomic(change_counter, _0, buffer, _0,
+					(short) change_counter.length);
+
+		//#if decipher
+		// E3 - Fingerprints of retired decryption keys (vendor specific)
+		case (short) 0x00E3:
+			if (retired_keys == null)
+				return 0;
+
+			// Most recently retired key first
+			short slot = retired_next;
+			for (short i = 0; i < retired_keys.length; i++) {
+				if (--slot < 0)
+					slot = (short) (retired_keys.length - 1);
+				offset = retired_keys[slot].getFingerprint(buffer, offset);
+			}
+
+			return offset;
+		//#endif decipher
+
+		// E4 - Usage counters (vendor specific)
+		case (short) 0x00E4:
+			offset = Util.arrayCopyNonAtomic(usage, _0, buffer, _0,
+					(short) usage.length);
+			addUsage(buffer, _0);
 			return offset;
 
+		//#if reserve
+		// E5 - Reserve of pre-generated key pairs (vendor specific)
+		case (short) 0x00E5:
+			return getReserveStatus();
+
+		//#endif reserve
+		//#if cert
 		// 7F21 - Cardholder Certificate
 		case (short) 0x7F21:
 			// Use buffer since certificate may be longer than
 			// RESPONSE_MAX_LENGTH
-			buffer[offset++] = 0x7F;
-			buffer[offset++] = 0x21;
-
-			if (cert_length < 128) {
-				buffer[offset++] = (byte) cert_length;
-			} else if (cert_length < 256) {
-				buffer[offset++] = (byte) 0x81;
-				buffer[offset++] = (byte) cert_length;
-			} else {
-				buffer[offset++] = (byte) 0x82;
-				Util.setShort(buffer, offset, cert_length);
-				offset += 2;
-			}
-
-			offset = Util.arrayCopyNonAtomic(cert, _0, buffer, offset,
-					cert_length);
-
-			return offset;
+			return TLV.write(buffer, _0, tag, cert, _0, cert_length);
 
+		//#endif cert
 		// C4 - PW Status Bytes
 		case (short) 0x00C4:
-			buffer[offset++] = pw1_status;
-			buffer[offset++] = PW1_MAX_LENGTH;
-			buffer[offset++] = RC_MAX_LENGTH;
-			buffer[offset++] = PW3_MAX_LENGTH;
-			buffer[offset++] = pw1.getTriesRemaining();
-			buffer[offset++] = rc.getTriesRemaining();
-			buffer[offset++] = pw3.getTriesRemaining();
-
-			return offset;
+			return getPWStatus(buffer, _0);
 
 		default:
 			ISOException.throwIt(SW_RECORD_NOT_FOUND);
@@ -873,6 +2018,26 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 		return offset;
 	}
 
+	/**
+	 * Write the PW Status Bytes (C4) to the given array.
+	 * 
+	 * @param data
+	 *            Byte array
+	 * @param offset
+	 *            Offset within byte array indicating first byte
+	 * @return Offset after the last byte written
+	 */
+	private short getPWStatus(byte[] data, short offset) {
+		data[offset++] = pw1_status;
+		data[offset++] = PW1_MAX_LENGTH;
+		data[offset++] = RC_MAX_LENGTH;
+		data[offset++] = PW3_MAX_LENGTH;
+		data[offset++] = pw1.getTriesRemaining();
+		data[offset++] = rc.getTriesRemaining();
+		data[offset++] = pw3.getTriesRemaining();
+		return offset;
+	}
+
 	/**
 	 * Provide the PUT DATA command (INS DA)
 	 * 
@@ -888,6 +2053,8 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 		if (!pw3.isValidated())
 			ISOException.throwIt(SW_SECURITY_STATUS_NOT_SATISFIED);
 
+		short in_received = session[SESSION_IN_RECEIVED];
+
 		switch (tag) {
 		// 5B - Name
 		case (short) 0x005B:
@@ -935,6 +2102,7 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 			url_length = Util.arrayCopy(buffer, _0, url, _0, in_received);
 			break;
 
+		//#if cert
 		// 7F21 - Cardholder certificate
 		case (short) 0x7F21:
 			if (in_received > cert.length)
@@ -943,6 +2111,7 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 			cert_length = Util.arrayCopy(buffer, _0, cert, _0, in_received);
 			break;
 
+		//#endif cert
 		// C4 - PW Status Bytes
 		case (short) 0x00C4:
 			if (in_received != 1)
@@ -1042,41 +2211,67 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 			}
 			break;
 
+		//#if aes
+		// D5 - AES key, empty data removes the key
+		case (short) 0x00D5:
+			setAESKey(in_received);
+			break;
+
+		//#endif aes
+		//#if sm
 		// D1 - SM-Key-ENC
 		case (short) 0x00D1:
+			checkSecureMessaging();
 			sm.setSessionKeyEncryption(buffer, _0);
 			break;
 			
 		// D2 - SM-Key-MAC
 		case (short) 0x00D2:
+			checkSecureMessaging();
 			sm.setSessionKeyMAC(buffer, _0);
 			break;
 			
+		//#endif sm
+		// E4 - Usage counters, reset with empty data (vendor specific)
+		case (short) 0x00E4:
+			if (in_received != 0)
+				ISOException.throwIt(SW_WRONG_LENGTH);
+
+			Util.arrayFillNonAtomic(tmp, _0, (short) usage.length, (byte) 0);
+			Util.arrayCopy(tmp, _0, usage, _0, (short) usage.length);
+			for (short i = 0; i < USAGE_SIZE; i++)
+				usage_session[i] = 0;
+			break;
+
+		//#if sm
 		// F4 - SM-Key-Container
 		case (short) 0x00F4:
+			checkSecureMessaging();
 			short offset = 0;
-			short key_len = 0; 
-			// Set encryption key
-			if(buffer[offset++] == (byte)0xD1) {
-				key_len = (short)(buffer[offset++] & 0x7F);
-				sm.setSessionKeyEncryption(buffer, offset);
-				offset += key_len;
-			}
 
-			// Set MAC key			
-			if(buffer[offset++] == (byte)0xD2) {
-				key_len = (short)(buffer[offset++] & 0x7F);
-				sm.setSessionKeyMAC(buffer, offset);
-				offset += key_len;
+			// D1 - Encryption key
+			if (TLV.getTag(buffer, offset) == (short) 0x00D1) {
+				sm.setSessionKeyEncryption(buffer,
+						TLV.getValueOffset(buffer, offset));
+				offset = TLV.next(buffer, offset);
 			}
+
+			// D2 - MAC key
+			if (offset < in_received
+					&& TLV.getTag(buffer, offset) == (short) 0x00D2)
+				sm.setSessionKeyMAC(buffer, TLV.getValueOffset(buffer, offset));
 			break;
 			
+		//#endif sm
 		default:
 			ISOException.throwIt(SW_RECORD_NOT_FOUND);
 			break;
 		}
+
+		increaseChangeCounter();
 	}
 
+	//#if import
 	/**
 	 * EXPERIMENTAL: Provide functionality for importing keys.
 	 * 
@@ -1087,81 +2282,218 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 		if (!pw3.isValidated())
 			ISOException.throwIt(SW_SECURITY_STATUS_NOT_SATISFIED);		
 		
-		short offset = 0;
+		// 4D - Extended header list
+		short offset = TLV.expect(buffer, _0, (short) 0x004D);
 
-		// Check for tag 4D
-		if (buffer[offset++] != 0x4D)
-			ISOException.throwIt(SW_DATA_INVALID);
+		// Get key for Control Reference Template
+		PGPKey key = getKey(buffer[offset]);
+		offset = TLV.next(buffer, offset);
 
-		// Length of 4D
-		offset += getLengthBytes(getLength(buffer, offset));
+		// 7F48 - Cardholder private key template, containing only the tags
+		// and lengths of the key elements
+		short offset_data = TLV.next(buffer, offset);
+		offset = TLV.expect(buffer, offset, (short) 0x7F48);
 
-		// Get key for Control Reference Template
-		PGPKey key = getKey(buffer[offset++]);
+		short len_e = TLV.getLength(buffer, offset);
+		offset = TLV.expect(buffer, offset, (short) 0x0091);
 
-		// Skip empty length of CRT
-		offset++;
+		short len_p = TLV.getLength(buffer, offset);
+		offset = TLV.expect(buffer, offset, (short) 0x0092);
 
-		// Check for tag 7F48
-		if (!(buffer[offset++] == 0x7F && buffer[offset++] == 0x48))
-			ISOException.throwIt(SW_DATA_INVALID);
-		short len_template = getLength(buffer, offset);
-		offset += getLengthBytes(len_template);
+		short len_q = TLV.getLength(buffer, offset);
+		offset = TLV.expect(buffer, offset, (short) 0x0093);
 
-		short offset_data = (short) (offset + len_template);
+		short len_pq = TLV.getLength(buffer, offset);
+		offset = TLV.expect(buffer, offset, (short) 0x0094);
 
-		if (buffer[offset++] != (byte) 0x91)
-			ISOException.throwIt(SW_DATA_INVALID);
-		short len_e = getLength(buffer, offset);
-		offset += getLengthBytes(len_e);
+		short len_dp1 = TLV.getLength(buffer, offset);
+		offset = TLV.expect(buffer, offset, (short) 0x0095);
 
-		if (buffer[offset++] != (byte) 0x92)
-			ISOException.throwIt(SW_DATA_INVALID);
-		short len_p = getLength(buffer, offset);
-		offset += getLengthBytes(len_p);
+		short len_dq1 = TLV.getLength(buffer, offset);
+		TLV.expect(buffer, offset, (short) 0x0096);
 
-		if (buffer[offset++] != (byte) 0x93)
-			ISOException.throwIt(SW_DATA_INVALID);
-		short len_q = getLength(buffer, offset);
-		offset += getLengthBytes(len_q);
+		// 5F48 - Concatenation of the key elements
+		offset_data = TLV.expect(buffer, offset_data, (short) 0x5F48);
 
-		if (buffer[offset++] != (byte) 0x94)
-			ISOException.throwIt(SW_DATA_INVALID);
-		short len_pq = getLength(buffer, offset);
-		offset += getLengthBytes(len_pq);
+		// TODO Check value of e
+		offset_data += len_e;
 
-		if (buffer[offset++] != (byte) 0x95)
-			ISOException.throwIt(SW_DATA_INVALID);
-		short len_dp1 = getLength(buffer, offset);
-		offset += getLengthBytes(len_dp1);
+		short end = (short) (offset_data + len_p + len_q + len_pq + len_dp1 + len_dq1);
+		if (end > session[SESSION_IN_RECEIVED])
+			ISOException.throwIt(SW_WRONG_DATA);
+
+		// Keep the current decryption key available for old messages. The
+		// new key is set in a spare key object and the current key is only
+		// retired once that succeeded, so a failed import leaves the retired
+		// keys unchanged. Importing the current key again does not retire it.
+		PGPKey target = key;
+		//#if decipher
+		boolean retire = key == dec_key && isRetiring()
+				&& !matchP(key, offset_data, len_p);
+		if (retire) {
+			target = retired_spare;
+			target.clear();
+		}
+		//#endif decipher
 
-		if (buffer[offset++] != (byte) 0x96)
-			ISOException.throwIt(SW_DATA_INVALID);
-		short len_dq1 = getLength(buffer, offset);
-		offset += getLengthBytes(len_dq1);
+		try {
+			target.setP(buffer, offset_data, len_p);
+			offset_data += len_p;
 
-		if (!(buffer[offset_data++] == 0x5F && buffer[offset_data++] == 0x48))
-			ISOException.throwIt(SW_DATA_INVALID);
-		offset_data += getLengthBytes(getLength(buffer, offset_data));
+			target.setQ(buffer, offset_data, len_q);
+			offset_data += len_q;
 
-		// TODO Check value of e
-		offset_data += len_e;
+			target.setPQ(buffer, offset_data, len_pq);
+			offset_data += len_pq;
+
+			target.setDP1(buffer, offset_data, len_dp1);
+			offset_data += len_dp1;
+
+			target.setDQ1(buffer, offset_data, len_dq1);
+		} catch (CryptoException e) {
+			target.clear();
+			ISOException.throwIt(SW_WRONG_DATA);
+		}
+
+		//#if decipher
+		if (retire) {
+			JCSystem.beginTransaction();
+			retired_spare = replaceDecryptionKey(retired_spare);
+			JCSystem.commitTransaction();
+
+			// The oldest retired key is no longer used
+			retired_spare.clear();
+		}
+		//#endif decipher
+
+		increaseChangeCounter();
+	}
+
+	/**
+	 * Compare the prime P of a key with the data in the buffer.
+	 * 
+	 * @return True if the key is set and has the same P
+	 */
+	private boolean matchP(PGPKey key, short offset, short length) {
+		if (!key.getPrivate().isInitialized())
+			return false;
+
+		return key.getPrivate().getP(tmp, _0) == length
+				&& Util.arrayCompare(tmp, _0, buffer, offset, length) == 0;
+	}
+	//#endif import
+
+	//#if benchmark
+	/**
+	 * Provide the vendor specific SELF BENCHMARK command (INS EE)
+	 * 
+	 * Run a primitive a number of times, so its cost can be measured without
+	 * the communication overhead. Only scratch data is used: keys, counters
+	 * and the SM session are not used or changed.
+	 * 
+	 * P1 selects the primitive and P2 its parameter:
+	 * - 01: RSA signature with a temporary key of the length of the card keys
+	 *   (P2 00). The key is generated the first time, which takes long.
+	 * - 02: SM wrapping of a response of P2 bytes
+	 * - 03: Generation of P2 random bytes
+	 * - 04: Non-atomic write of P2 bytes to persistent memory
+	 * - 05: Atomic write of P2 bytes to persistent memory
+	 * 
+	 * The command data is the number of iterations (2 bytes), the response is
+	 * the number of iterations run followed by a checksum of the results (2
+	 * bytes each).
+	 * 
+	 * Before using this method PW3 has to be verified.
+	 * 
+	 * @param p1
+	 *            Primitive
+	 * @param p2
+	 *            Parameter of the primitive
+	 * @return Length of data written in buffer
+	 */
+	private short selfBenchmark(byte p1, byte p2) {
+		if (!pw3.isValidated())
+			ISOException.throwIt(SW_SECURITY_STATUS_NOT_SATISFIED);
+
+		if (session[SESSION_IN_RECEIVED] != 2)
+			ISOException.throwIt(SW_WRONG_LENGTH);
+
+		short iterations = Util.getShort(buffer, _0);
+		if (iterations < 0)
+			ISOException.throwIt(SW_WRONG_DATA);
+
+		short length = (short) (p2 & 0xFF);
+		short checksum = 0;
+		short i;
+
+		switch (p1) {
+		case BENCHMARK_RSA:
+			if (p2 != 0)
+				ISOException.throwIt(SW_WRONG_P1P2);
+
+			if (benchmark_key == null) {
+				benchmark_key = new KeyPair(KeyPair.ALG_RSA_CRT, sig_key
+						.getPublic().getSize());
+				benchmark_key.genKeyPair();
+			}
+
+			Util.arrayFillNonAtomic(tmp, _0, BENCHMARK_RSA_LENGTH, (byte) 0x5A);
+			cipher.init(benchmark_key.getPrivate(), Cipher.MODE_ENCRYPT);
+			for (i = 0; i < iterations; i++) {
+				cipher.doFinal(tmp, _0, BENCHMARK_RSA_LENGTH, buffer, _0);
+				checksum ^= Util.getShort(buffer, _0);
+			}
+			break;
+
+		//#if sm
+		case BENCHMARK_SM_WRAP:
+			checkSecureMessaging();
+			if (length > RESPONSE_SM_MAX_LENGTH)
+				ISOException.throwIt(SW_WRONG_P1P2);
 
-		key.setP(buffer, offset_data, len_p);
-		offset_data += len_p;
+			Util.arrayFillNonAtomic(buffer, _0, length, (byte) 0x5A);
+			checksum = sm.benchmarkWrap(buffer, _0, length, iterations);
+			break;
 
-		key.setQ(buffer, offset_data, len_q);
-		offset_data += len_q;
+		//#endif sm
+		case BENCHMARK_RANDOM:
+			if (length == 0)
+				ISOException.throwIt(SW_WRONG_P1P2);
 
-		key.setPQ(buffer, offset_data, len_pq);
-		offset_data += len_pq;
+			for (i = 0; i < iterations; i++) {
+				random.generateData(buffer, _0, length);
+				checksum ^= Util.makeShort(buffer[0], buffer[(short) (length - 1)]);
+			}
+			break;
 
-		key.setDP1(buffer, offset_data, len_dp1);
-		offset_data += len_dp1;
+		case BENCHMARK_WRITE:
+		case BENCHMARK_WRITE_ATOMIC:
+			if (length == 0 || length > BENCHMARK_SCRATCH_LENGTH)
+				ISOException.throwIt(SW_WRONG_P1P2);
+
+			// Write different data in every iteration
+			Util.arrayFillNonAtomic(buffer, _0, length, (byte) 0x5A);
+			for (i = 0; i < iterations; i++) {
+				buffer[0] = (byte) i;
+				if (p1 == BENCHMARK_WRITE)
+					Util.arrayCopyNonAtomic(buffer, _0, benchmark_scratch, _0,
+							length);
+				else
+					Util.arrayCopy(buffer, _0, benchmark_scratch, _0, length);
+				checksum ^= Util.makeShort(benchmark_scratch[0],
+						benchmark_scratch[(short) (length - 1)]);
+			}
+			break;
 
-		key.setDQ1(buffer, offset_data, len_dq1);
-		offset_data += len_dq1;
+		default:
+			ISOException.throwIt(SW_WRONG_P1P2);
+		}
+
+		Util.setShort(buffer, _0, iterations);
+		Util.setShort(buffer, (short) 2, checksum);
+		return 4;
 	}
+	//#endif benchmark
 
 	/**
 	 * Output the public key of the given key pair.
@@ -1173,47 +2505,23 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 	private short sendPublicKey(PGPKey key) {
 		RSAPublicKey pubkey = key.getPublic();
 
-		// Build message in tmp
-		short offset = 0;
+		// 7F49 - Public key template
+		short offset = TLV.begin(buffer, _0, (short) 0x7F49,
+				(short) (key.getModulusLength() + key.getExponentLength() + 6));
 
 		// 81 - Modulus
-		tmp[offset++] = (byte) 0x81;
-
-		// Length of modulus is always greater than 128 bytes
-		if (key.getModulusLength() < 256) {
-			tmp[offset++] = (byte) 0x81;
-			tmp[offset++] = (byte) key.getModulusLength();
-		} else {
-			tmp[offset++] = (byte) 0x82;
-			offset = Util.setShort(tmp, offset, key.getModulusLength());
-		}
-		pubkey.getModulus(tmp, offset);
+		offset = TLV.writeHeader(buffer, offset, (short) 0x0081,
+				key.getModulusLength());
+		pubkey.getModulus(buffer, offset);
 		offset += key.getModulusLength();
 
 		// 82 - Exponent
-		tmp[offset++] = (byte) 0x82;
-		tmp[offset++] = (byte) key.getExponentLength();
-		pubkey.getExponent(tmp, offset);
+		offset = TLV.writeHeader(buffer, offset, (short) 0x0082,
+				key.getExponentLength());
+		pubkey.getExponent(buffer, offset);
 		offset += key.getExponentLength();
 
-		short len = offset;
-
-		offset = 0;
-
-		buffer[offset++] = 0x7F;
-		buffer[offset++] = 0x49;
-
-		if (len < 256) {
-			buffer[offset++] = (byte) 0x81;
-			buffer[offset++] = (byte) len;
-		} else {
-			buffer[offset++] = (byte) 0x82;
-			offset = Util.setShort(buffer, offset, len);
-		}
-
-		offset = Util.arrayCopyNonAtomic(tmp, _0, buffer, offset, len);
-
-		return offset;
+		return TLV.end(buffer, _0, offset);
 	}
 
 	/**
@@ -1225,8 +2533,8 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 	 *            The byte length of the data to send
 	 */
 	private void sendBuffer(APDU apdu, short len) {
-		out_sent = 0;
-		out_left = len;
+		session[SESSION_OUT_SENT] = 0;
+		session[SESSION_OUT_LEFT] = len;
 		sendNext(apdu);
 	}
 
@@ -1237,8 +2545,8 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 	 * @param status Status to send
 	 */
 	private void sendException(APDU apdu, short status) {
-		out_sent = 0;
-		out_left = 0;
+		session[SESSION_OUT_SENT] = 0;
+		session[SESSION_OUT_LEFT] = 0;
 		sendNext(apdu, status);		
 	}
 	
@@ -1254,52 +2562,65 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 	/**
 	 * Send next block of data in buffer. Used for sending data in <buffer>
 	 * 
+	 * The size of the block is limited by the Le requested by the host. If
+	 * more than one block is needed and the transport is block oriented (T=1
+	 * or contactless), the block is shortened to fill complete transport
+	 * blocks as long as this does not require an extra GET RESPONSE.
+	 * 
 	 * @param apdu
 	 * @param status Status to send
 	 */
 	private void sendNext(APDU apdu, short status) {
 		byte[] buf = APDU.getCurrentAPDUBuffer();
-		apdu.setOutgoing();
+		short le = apdu.setOutgoing();
 		
 		// Determine maximum size of the messages
-		short max_length;
-		if(sm_success) {
+		short max_length = RESPONSE_MAX_LENGTH;
+		if (le > 0 && le < max_length)
+			max_length = le;
+		if (max_length > (short) buf.length)
+			max_length = (short) buf.length;
+		//#if sm
+		// Le applies to the wrapped response
+		if(sm_success[0])
 			max_length = RESPONSE_SM_MAX_LENGTH;
-		}
-		else {
-			max_length = RESPONSE_MAX_LENGTH;
-		}
+		//#endif sm
 		
-		Util.arrayCopyNonAtomic(buffer, out_sent, buf, _0, max_length);
-
+		short out_left = session[SESSION_OUT_LEFT];
+		short out_sent = session[SESSION_OUT_SENT];
 		short len = 0;
 		
 		if (out_left > max_length) {
-			len = max_length;
+			len = getBlockLength(out_left, max_length);
 			
 			// Compute byte left and sent
-			out_left -= max_length;
-			out_sent += max_length;
+			out_left -= len;
+			session[SESSION_OUT_LEFT] = out_left;
+			session[SESSION_OUT_SENT] = (short) (out_sent + len);
 			
-			// Determine new status word
-			if (out_left > max_length) {
-				status = (short) (SW_BYTES_REMAINING_00 | max_length);
+			// Determine new status word, 6100 indicates 256 or more bytes
+			if (out_left > RESPONSE_MAX_LENGTH) {
+				status = SW_BYTES_REMAINING_00;
 			} else {
-				status = (short) (SW_BYTES_REMAINING_00 | out_left);
+				status = (short) (SW_BYTES_REMAINING_00 | (out_left & 0xFF));
 			}
 		}
 		else {
 			len = out_left;
 			
 			// Reset buffer
-			out_sent = 0;
-			out_left = 0;			
+			session[SESSION_OUT_SENT] = 0;
+			session[SESSION_OUT_LEFT] = 0;
 		}
 		
+		Util.arrayCopyNonAtomic(buffer, out_sent, buf, _0, len);
+		
+		//#if sm
 		// If SM is used, wrap response
-		if(sm_success) {
+		if(sm_success[0]) {
 			len = sm.wrapResponseAPDU(buf, _0, len, status);
 		}
+		//#endif sm
 				
 		// Send data in buffer
 		apdu.setOutgoingLength(len);
@@ -1311,44 +2632,38 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 	}
 
 	/**
-	 * Get length of TLV element.
+	 * Determine the length of the next block of a response that does not fit
+	 * in a single message. For T=0 this is always the maximum length. For
+	 * block oriented transports the block is shortened so the block and the
+	 * status word end on a transport block boundary, unless that would
+	 * increase the number of messages needed for the remaining data.
 	 * 
-	 * @param data
-	 *            Byte array
-	 * @param offset
-	 *            Offset within byte array containing first byte
-	 * @return Length of value
+	 * @param left
+	 *            Number of bytes left to send
+	 * @param max_length
+	 *            Maximum length of a single message
+	 * @return Length of the next block
 	 */
-	private short getLength(byte[] data, short offset) {
-		short len = 0;
-
-		if ((data[offset] & (byte) 0x80) == (byte) 0x00) {
-			len = data[offset];
-		} else if ((data[offset] & (byte) 0x7F) == (byte) 0x01) {
-			len = (short)(0xFF & data[(short) (offset + 1)]);
-		} else if ((data[offset] & (byte) 0x7F) == (byte) 0x02) {
-			len = Util.makeShort(data[(short) (offset + 1)], data[(short) (offset + 2)]);
-		} else {
-			ISOException.throwIt(SW_UNKNOWN);
-		}
-
-		return len;
-	}
-
-	/**
-	 * Get number of bytes needed to represent length for TLV element.
-	 * 
-	 * @param length
-	 *            Length of value
-	 * @return Number of bytes needed to represent length
-	 */
-	private short getLengthBytes(short length) {
-		if (length <= 127)
-			return 1;
-		else if (length <= 255)
-			return 2;
-		else
-			return 3;
+	private short getBlockLength(short left, short max_length) {
+		if ((byte) (APDU.getProtocol() & APDU.PROTOCOL_TYPE_MASK) == APDU.PROTOCOL_T0
+				&& (byte) (APDU.getProtocol() & APDU.PROTOCOL_MEDIA_MASK) == APDU.PROTOCOL_MEDIA_DEFAULT)
+			return max_length;
+
+		short block = APDU.getOutBlockSize();
+		if (block <= 2 || block > max_length)
+			return max_length;
+
+		// Largest length for which data and status word fill whole blocks
+		short aligned = (short) ((short) ((short) (max_length + 2) / block) * block - 2);
+		if (aligned <= 0)
+			return max_length;
+
+		// Only use the aligned length if it does not need more messages
+		short messages = (short) ((short) (left + max_length - 1) / max_length);
+		if ((short) ((short) (left + aligned - 1) / aligned) > messages)
+			return max_length;
+
+		return aligned;
 	}
 
 	/**
@@ -1374,6 +2689,147 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 		return key;
 	}
 
+	//#if decipher
+	/**
+	 * @return True if the current decryption key is kept when it is replaced
+	 */
+	private boolean isRetiring() {
+		return retired_keys != null && dec_key.getPrivate().isInitialized();
+	}
+
+	/**
+	 * Move the current decryption key to the retired keys, replacing the
+	 * oldest retired key. The key object of the oldest retired key is cleared
+	 * and becomes the new decryption key, so no key material is copied.
+	 * 
+	 * Should be called within a transaction.
+	 */
+	private void retireDecryptionKey() {
+		if (!isRetiring())
+			return;
+
+		PGPKey key = retired_keys[retired_next];
+		key.clear();
+		replaceDecryptionKey(key);
+	}
+
+	/**
+	 * Move the current decryption key to the slot of the oldest retired key
+	 * and make the given key object the decryption key.
+	 * 
+	 * Should be called within a transaction.
+	 * 
+	 * @param key
+	 *            New decryption key
+	 * @return Key object of the oldest retired key, which is no longer used
+	 */
+	private PGPKey replaceDecryptionKey(PGPKey key) {
+		PGPKey oldest = retired_keys[retired_next];
+		retired_keys[retired_next] = dec_key;
+		dec_key = key;
+
+		retired_next++;
+		if (retired_next >= retired_keys.length)
+			retired_next = 0;
+
+		buildRetiredIndex();
+		return oldest;
+	}
+	//#endif decipher
+
+	//#if decipher
+	/**
+	 * Rebuild the fingerprint index of the retired keys. The index is sorted
+	 * in tmp using insertion sort and then written with a single copy.
+	 */
+	private void buildRetiredIndex() {
+		short length = 0;
+
+		for (short slot = 0; slot < retired_keys.length; slot++) {
+			PGPKey key = retired_keys[slot];
+			if (!key.hasFingerprint())
+				continue;
+
+			key.getFingerprint(tmp, length);
+			short prefix = Util.getShort(tmp, length);
+
+			// Shift entries with a larger prefix to make room
+			short i = length;
+			while (i > 0
+					&& compareUnsigned(Util.getShort(tmp, (short) (i - 3)), prefix) > 0) {
+				Util.arrayCopyNonAtomic(tmp, (short) (i - 3), tmp, i, (short) 3);
+				i -= 3;
+			}
+			Util.setShort(tmp, i, prefix);
+			tmp[(short) (i + 2)] = (byte) slot;
+			length += 3;
+		}
+
+		Util.arrayCopy(tmp, _0, retired_index, _0, length);
+		retired_index_length = length;
+	}
+	//#endif decipher
+
+	//#if decipher
+	/**
+	 * Find the decryption key with the given fingerprint. The current key is
+	 * checked first, the retired keys are found using a binary search on the
+	 * fingerprint index.
+	 * 
+	 * @param data
+	 *            Byte array
+	 * @param offset
+	 *            Offset within byte array containing the fingerprint
+	 * @return Decryption key with the given fingerprint
+	 */
+	private PGPKey findDecryptionKey(byte[] data, short offset) {
+		if (dec_key.matchFingerprint(data, offset))
+			return dec_key;
+
+		if (retired_keys != null) {
+			short prefix = Util.getShort(data, offset);
+
+			// Find first entry with the prefix
+			short low = 0;
+			short high = (short) (retired_index_length / 3);
+			while (low < high) {
+				short mid = (short) ((short) (low + high) >> 1);
+				if (compareUnsigned(Util.getShort(retired_index, (short) (mid * 3)), prefix) < 0)
+					low = (short) (mid + 1);
+				else
+					high = mid;
+			}
+
+			// Check all entries with the prefix
+			for (short i = (short) (low * 3); i < retired_index_length; i += 3) {
+				if (Util.getShort(retired_index, i) != prefix)
+					break;
+
+				PGPKey key = retired_keys[retired_index[(short) (i + 2)]];
+				if (key.matchFingerprint(data, offset))
+					return key;
+			}
+		}
+
+		ISOException.throwIt(SW_RECORD_NOT_FOUND);
+		return null;
+	}
+	//#endif decipher
+
+	//#if decipher
+	/**
+	 * Compare two shorts as unsigned values.
+	 * 
+	 * @return Negative, zero or positive if a is smaller than, equal to or
+	 *         larger than b
+	 */
+	private static short compareUnsigned(short a, short b) {
+		if (a == b)
+			return 0;
+		return (short) ((short) (a ^ (short) 0x8000) < (short) (b ^ (short) 0x8000) ? -1 : 1);
+	}
+	//#endif decipher
+
 	/**
 	 * Increase the digital signature counter by one. In case of overflow
 	 * SW_WARNING_STATE_UNCHANGED will be thrown and nothing will
@@ -1394,4 +2850,21 @@ public class OpenPGPApplet extends Applet implements ISO7816 {
 			}
 		}
 	}
+
+	/**
+	 * Increase the change counter by one. The new value is computed in tmp
+	 * first, so the persistent counter is updated with a single write. The
+	 * counter does not wrap around, but stays at its maximum value.
+	 */
+	private void increaseChangeCounter() {
+		short len = (short) change_counter.length;
+		Util.arrayCopyNonAtomic(change_counter, _0, tmp, _0, len);
+
+		for (short i = (short) (len - 1); i >= 0; i--) {
+			if (++tmp[i] != 0) {
+				Util.arrayCopy(tmp, _0, change_counter, _0, len);
+				return;
+			}
+		}
+	}
 }
@@ -35,6 +35,7 @@ import javacard.security.KeyBuilder;
 import javacard.security.Signature;
 import javacardx.crypto.Cipher;
 
+//#if sm
 /**
  * OV secure messaging functionality.
  * 
@@ -55,8 +56,9 @@ public class OpenPGPSecureMessaging {
     private static final byte[] EMPTY_KEY = {0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00};
 
     /**
-     * The needed cryptographic functionality.
+     * The needed cryptographic functionality, shared with other instances.
      */
+    private CryptoService service;
     private Signature signer;
     private Signature verifier;
     private Cipher cipher;
@@ -69,12 +71,12 @@ public class OpenPGPSecureMessaging {
     private DESKey keyENC;
     
     /**
-     * The send sequence counter.
+     * The send sequence counters, one for each logical channel.
      */
     private byte[] ssc;
     
     /**
-     * Storage for temporary data.
+     * Storage for temporary data, shared with other instances.
      */
     private byte[] tmp;
     
@@ -82,21 +84,12 @@ public class OpenPGPSecureMessaging {
     
     /**
      * Construct a new secure messaging wrapper.
+     * 
+     * @param channels number of logical channels to keep an SSC for.
      */
-    public OpenPGPSecureMessaging() {
-        ssc = JCSystem.makeTransientByteArray(SSC_SIZE, 
-                JCSystem.CLEAR_ON_DESELECT);
-        tmp = JCSystem.makeTransientByteArray(TMP_SIZE, 
+    public OpenPGPSecureMessaging(byte channels) {
+        ssc = JCSystem.makeTransientByteArray((short) (SSC_SIZE * channels), 
                 JCSystem.CLEAR_ON_DESELECT);
-        signer = Signature.getInstance(
-                Signature.ALG_DES_MAC8_ISO9797_1_M2_ALG3, false);
-        verifier = Signature.getInstance(
-                Signature.ALG_DES_MAC8_ISO9797_1_M2_ALG3, false);
-        cipher = Cipher.getInstance(
-                Cipher.ALG_DES_CBC_ISO9797_M2, false);
-        decipher = Cipher.getInstance(
-                Cipher.ALG_DES_CBC_ISO9797_M2, false);
-        
         keyMAC = (DESKey) KeyBuilder.buildKey(
                 KeyBuilder.TYPE_DES_TRANSIENT_DESELECT, 
                 KeyBuilder.LENGTH_DES3_2KEY, false);
@@ -104,8 +97,40 @@ public class OpenPGPSecureMessaging {
                 KeyBuilder.TYPE_DES_TRANSIENT_DESELECT, 
                 KeyBuilder.LENGTH_DES3_2KEY, false);
         
-        ssc_set = JCSystem.makeTransientBooleanArray((short)1, JCSystem.CLEAR_ON_DESELECT);
-        ssc_set[0] = false;
+        ssc_set = JCSystem.makeTransientBooleanArray(channels, JCSystem.CLEAR_ON_DESELECT);
+    }
+
+    /**
+     * Use the engines and temporary storage of a crypto service. This has to
+     * be done before any other method is called.
+     * 
+     * @param service crypto service providing the engines.
+     */
+    public void setService(CryptoService service) {
+        this.service = service;
+        tmp = service.getSMScratch();
+        signer = service.getMACSigner();
+        verifier = service.getMACVerifier();
+        cipher = service.getSMCipher();
+        decipher = service.getSMDecipher();
+    }
+
+    /**
+     * Initialise the shared engines with the session keys of this instance,
+     * if another instance used them since the last command.
+     */
+    private void claimEngines() {
+        if (!service.claimSM(this))
+            return;
+
+        if (keyMAC.isInitialized()) {
+            signer.init(keyMAC, Signature.MODE_SIGN);
+            verifier.init(keyMAC, Signature.MODE_VERIFY);
+        }
+        if (keyENC.isInitialized()) {
+            cipher.init(keyENC, Cipher.MODE_ENCRYPT);
+            decipher.init(keyENC, Cipher.MODE_DECRYPT);
+        }
     }
 
     /**
@@ -117,9 +142,11 @@ public class OpenPGPSecureMessaging {
      * @param offset location of the session keys in the buffer.
      */
     public void setSessionKeys(byte[] buffer, short offset) {
+        claimEngines();
+
     	// Check for empty keys
-    	if(Util.arrayCompare(buffer, (short)0, EMPTY_KEY, (short)0, KEY_SIZE) == 0 ||
-    			Util.arrayCompare(buffer, KEY_SIZE, EMPTY_KEY, (short)0, KEY_SIZE) == 0) {
+    	if(Util.arrayCompare(buffer, offset, EMPTY_KEY, (short)0, KEY_SIZE) == 0 ||
+    			Util.arrayCompare(buffer, (short) (offset + KEY_SIZE), EMPTY_KEY, (short)0, KEY_SIZE) == 0) {
     		keyMAC.clearKey();
     		keyENC.clearKey();
     	}
@@ -143,8 +170,10 @@ public class OpenPGPSecureMessaging {
      * @param offset location of the session key in the buffer.
      */
     public void setSessionKeyMAC(byte[] buffer, short offset) {
+        claimEngines();
+
     	// Check for empty keys
-    	if(Util.arrayCompare(buffer, (short)0, EMPTY_KEY, (short)0, KEY_SIZE) == 0) {
+    	if(Util.arrayCompare(buffer, offset, EMPTY_KEY, (short)0, KEY_SIZE) == 0) {
     		keyMAC.clearKey();
     		keyENC.clearKey();
     	}
@@ -164,13 +193,15 @@ public class OpenPGPSecureMessaging {
      * @param offset location of the session key in the buffer.
      */
     public void setSessionKeyEncryption(byte[] buffer, short offset) {
+        claimEngines();
+
     	// Check for empty keys
-    	if(Util.arrayCompare(buffer, (short)0, EMPTY_KEY, (short)0, KEY_SIZE) == 0) {
+    	if(Util.arrayCompare(buffer, offset, EMPTY_KEY, (short)0, KEY_SIZE) == 0) {
     		keyMAC.clearKey();
     		keyENC.clearKey();
     	}
     	else {     	
-    		keyENC.setKey(buffer, (short) (offset + KEY_SIZE));
+    		keyENC.setKey(buffer, offset);
         
     		cipher.init(keyENC, Cipher.MODE_ENCRYPT);
     		decipher.init(keyENC, Cipher.MODE_DECRYPT);
@@ -194,6 +225,8 @@ public class OpenPGPSecureMessaging {
      * @return the length value encoded by DO97, 0 if this object is missing.
      */
     public short unwrapCommandAPDU() {
+        claimEngines();
+
         byte[] buf = APDU.getCurrentAPDUBuffer();
         short apdu_p = (short) (ISO7816.OFFSET_CDATA & 0xff);
         short start_p = apdu_p;
@@ -249,7 +282,7 @@ public class OpenPGPSecureMessaging {
         }
 
         // verify mac
-        verifier.update(ssc, (short)0, (short)ssc.length);
+        verifier.update(ssc, getSSCOffset(), SSC_SIZE);
         verifier.update(buf, (short)0, hdrLen);
         verifier.update(PAD_DATA, (short)0, hdrPadLen);
         if (!verifier.verify(buf, start_p, (short) (apdu_p - 1 - start_p), buf, 
@@ -282,6 +315,8 @@ public class OpenPGPSecureMessaging {
      */
     public short wrapResponseAPDU(byte[] buffer, short offset, short length, 
             short status) {
+        claimEngines();
+
         byte[] apdu = APDU.getCurrentAPDUBuffer();
         short apdu_p = 0;
         // smallest multiple of 8 strictly larger than plaintextLen (length + padding)
@@ -335,7 +370,7 @@ public class OpenPGPSecureMessaging {
         apdu_p += 2;
 
         // calculate and write mac
-        signer.update(ssc, (short) 0, (short) ssc.length);
+        signer.update(ssc, getSSCOffset(), SSC_SIZE);
         signer.sign(apdu, (short) 0, apdu_p, apdu, (short) (apdu_p + 2));
 
         // write do8e
@@ -346,15 +381,47 @@ public class OpenPGPSecureMessaging {
         return apdu_p;
     }
 
+    /**
+     * Wrap response data a number of times, to measure the cost of secure
+     * messaging on the card. The SSC of the current logical channel is
+     * restored afterwards, so a running session is not affected. The wrapped
+     * data is left in the APDU buffer.
+     * 
+     * @param buffer byte array containing the data which needs to be wrapped.
+     * @param offset location of the data in the buffer.
+     * @param length of the data in the buffer, at most 240 bytes.
+     * @param iterations number of times the data is wrapped.
+     * @return checksum of the MACs of all iterations.
+     */
+    public short benchmarkWrap(byte[] buffer, short offset, short length,
+            short iterations) {
+        if (!keyMAC.isInitialized() || !keyENC.isInitialized())
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        if (length > (short) (TMP_SIZE - SSC_SIZE - 8))
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+
+        // Save the SSC at the end of tmp, which is not used by wrapping
+        short backup = (short) (TMP_SIZE - SSC_SIZE);
+        Util.arrayCopyNonAtomic(ssc, getSSCOffset(), tmp, backup, SSC_SIZE);
+
+        byte[] apdu = APDU.getCurrentAPDUBuffer();
+        short checksum = 0;
+        for (short i = 0; i < iterations; i++) {
+            short len = wrapResponseAPDU(buffer, offset, length, ISO7816.SW_NO_ERROR);
+            checksum ^= Util.getShort(apdu, (short) (len - MAC_SIZE));
+        }
+
+        Util.arrayCopyNonAtomic(tmp, backup, ssc, getSSCOffset(), SSC_SIZE);
+        return checksum;
+    }
+
     /**
      * Increment the send sequence counter.
      */
     private void incrementSSC() {
-        if (ssc == null || ssc.length <= 0) {
-            return;
-        }
+        short offset = getSSCOffset();
 
-        for (short s = (short) (ssc.length - 1); s >= 0; s--) {
+        for (short s = (short) (offset + SSC_SIZE - 1); s >= offset; s--) {
             if ((short) ((ssc[s] & 0xff) + 1) > 0xff) {
                 ssc[s] = 0;
             } else {
@@ -395,8 +462,23 @@ public class OpenPGPSecureMessaging {
      * @param offset location of the data in the buffer
      */
     public void setSSC(byte[] buffer, short offset) {
-    	Util.arrayCopy(buffer, offset, ssc, (short)0, SSC_SIZE);
-    	ssc_set[0] = true;
+    	Util.arrayCopyNonAtomic(buffer, offset, ssc, getSSCOffset(), SSC_SIZE);
+    	ssc_set[JCSystem.getAssignedChannel()] = true;
+    }
+    
+    /**
+     * Clear the SSC of the current logical channel
+     */
+    public void resetSSC() {
+    	Util.arrayFillNonAtomic(ssc, getSSCOffset(), SSC_SIZE, (byte) 0);
+    	ssc_set[JCSystem.getAssignedChannel()] = false;
+    }
+    
+    /**
+     * @return offset of the SSC for the current logical channel
+     */
+    private short getSSCOffset() {
+    	return (short) (JCSystem.getAssignedChannel() * SSC_SIZE);
     }
     
     /**
@@ -410,6 +492,7 @@ public class OpenPGPSecureMessaging {
      * @return boolean indicating whether SSC has been set
      */    
     public boolean isSetSSC() {
-    	return ssc_set[0];
+    	return ssc_set[JCSystem.getAssignedChannel()];
     }    
 }
+//#endif sm
@@ -39,12 +39,22 @@ public class PGPKey implements ISO7816 {
 	private byte[] attributes = { 0x01, 0x00, 0x00, 0x00, 0x00, 0x02 };
 
 	public PGPKey() {
-		key = new KeyPair(KeyPair.ALG_RSA_CRT, KEY_SIZE);
+		this(KEY_SIZE);
+	}
+
+	/**
+	 * Create an RSA key pair with the given modulus size.
+	 * 
+	 * @param size
+	 *            Length of the modulus in bits
+	 */
+	public PGPKey(short size) {
+		key = new KeyPair(KeyPair.ALG_RSA_CRT, size);
 
 		fp = new byte[FP_SIZE];
 		Util.arrayFillNonAtomic(fp, (short) 0, (short) fp.length, (byte) 0);
 
-		Util.setShort(attributes, (short) 1, KEY_SIZE);
+		Util.setShort(attributes, (short) 1, size);
 		Util.setShort(attributes, (short) 3, EXPONENT_SIZE);
 	}
 
@@ -87,6 +97,41 @@ public class PGPKey implements ISO7816 {
 		Util.arrayCopy(data, offset, time, (short) 0, (short) 4);
 	}
 
+	/**
+	 * Compare the fingerprint for the public key with the given fingerprint.
+	 * 
+	 * @param data
+	 *            Byte array
+	 * @param offset
+	 *            Offset within byte array containing first byte
+	 * @return True if the fingerprints are equal
+	 */
+	public boolean matchFingerprint(byte[] data, short offset) {
+		return Util.arrayCompare(data, offset, fp, (short) 0,
+				(short) fp.length) == 0;
+	}
+
+	/**
+	 * @return True if a fingerprint has been set for the public key
+	 */
+	public boolean hasFingerprint() {
+		for (short i = 0; i < fp.length; i++) {
+			if (fp[i] != 0)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Clear the key pair, fingerprint and generation time.
+	 */
+	public void clear() {
+		key.getPrivate().clearKey();
+		key.getPublic().clearKey();
+		Util.arrayFillNonAtomic(fp, (short) 0, (short) fp.length, (byte) 0);
+		Util.arrayFillNonAtomic(time, (short) 0, (short) time.length, (byte) 0);
+	}
+
 	/**
 	 * Get the fingerprint for the public key.
 	 * 
@@ -154,7 +199,7 @@ public class PGPKey implements ISO7816 {
 	 * @return Length in bytes of the modulus
 	 */
 	public short getModulusLength() {
-		return KEY_SIZE_BYTES;
+		return (short) (Util.getShort(attributes, (short) 1) / 8);
 	}
 
 	/**
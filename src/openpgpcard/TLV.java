@@ -0,0 +1,333 @@
+/**
+ * Java Card implementation of the OpenPGP card
+ * Copyright (C) 2011  Joeri de Ruiter
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package openpgpcard;
+
+import javacard.framework.*;
+
+/**
+ * Reading and writing of BER-TLV encoded data objects directly in a byte
+ * array. Tags are one or two bytes, lengths are encoded in one to three bytes
+ * (up to 82 xx xx).
+ * 
+ * Constructed data objects are written in a single pass: begin() writes the
+ * tag and reserves the length bytes, after the value has been written in
+ * place end() patches the length. If fewer length bytes are needed than
+ * reserved, the value is moved to keep the encoding minimal.
+ */
+public final class TLV implements ISO7816 {
+	private TLV() {
+	}
+
+	/**
+	 * Get the tag of a data object.
+	 * 
+	 * @param data
+	 *            Byte array
+	 * @param offset
+	 *            Offset of the data object
+	 * @return Tag, for example 0x005B or 0x5F2D
+	 */
+	public static short getTag(byte[] data, short offset) {
+		if (getTagSize(data, offset) == 1)
+			return (short) (data[offset] & 0xFF);
+
+		return Util.getShort(data, offset);
+	}
+
+	/**
+	 * Get the number of bytes of the tag of a data object.
+	 * 
+	 * @param data
+	 *            Byte array
+	 * @param offset
+	 *            Offset of the data object
+	 * @return Number of bytes of the tag
+	 */
+	public static short getTagSize(byte[] data, short offset) {
+		if ((data[offset] & 0x1F) == 0x1F)
+			return 2;
+
+		return 1;
+	}
+
+	/**
+	 * Get the length of the value of a data object.
+	 * 
+	 * @param data
+	 *            Byte array
+	 * @param offset
+	 *            Offset of the data object
+	 * @return Length of the value
+	 */
+	public static short getLength(byte[] data, short offset) {
+		offset += getTagSize(data, offset);
+
+		switch (data[offset]) {
+		case (byte) 0x81:
+			return (short) (data[(short) (offset + 1)] & 0xFF);
+
+		case (byte) 0x82:
+			short length = Util.getShort(data, (short) (offset + 1));
+			if (length < 0)
+				ISOException.throwIt(SW_DATA_INVALID);
+			return length;
+
+		default:
+			if (data[offset] < 0)
+				ISOException.throwIt(SW_DATA_INVALID);
+			return data[offset];
+		}
+	}
+
+	/**
+	 * Get the offset of the value of a data object.
+	 * 
+	 * @param data
+	 *            Byte array
+	 * @param offset
+	 *            Offset of the data object
+	 * @return Offset of the first byte of the value
+	 */
+	public static short getValueOffset(byte[] data, short offset) {
+		offset += getTagSize(data, offset);
+
+		if (data[offset] == (byte) 0x81)
+			return (short) (offset + 2);
+		if (data[offset] == (byte) 0x82)
+			return (short) (offset + 3);
+
+		return (short) (offset + 1);
+	}
+
+	/**
+	 * Get the offset of the data object following the given one.
+	 * 
+	 * @param data
+	 *            Byte array
+	 * @param offset
+	 *            Offset of the data object
+	 * @return Offset after the last byte of the value
+	 */
+	public static short next(byte[] data, short offset) {
+		return (short) (getValueOffset(data, offset) + getLength(data, offset));
+	}
+
+	/**
+	 * Check the tag of a data object.
+	 * 
+	 * @param data
+	 *            Byte array
+	 * @param offset
+	 *            Offset of the data object
+	 * @param tag
+	 *            Expected tag
+	 * @return Offset of the first byte of the value
+	 */
+	public static short expect(byte[] data, short offset, short tag) {
+		if (getTag(data, offset) != tag)
+			ISOException.throwIt(SW_DATA_INVALID);
+
+		return getValueOffset(data, offset);
+	}
+
+	/**
+	 * Find a data object in a sequence of data objects. Only the given level
+	 * is searched, constructed data objects are not entered.
+	 * 
+	 * @param data
+	 *            Byte array
+	 * @param offset
+	 *            Offset of the first data object
+	 * @param end
+	 *            Offset after the last data object
+	 * @param tag
+	 *            Tag to search for
+	 * @return Offset of the data object, or -1 if it is not present
+	 */
+	public static short find(byte[] data, short offset, short end, short tag) {
+		while (offset < end) {
+			if (getTag(data, offset) == tag)
+				return offset;
+			offset = next(data, offset);
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Get the number of bytes needed to encode a length.
+	 * 
+	 * @param length
+	 *            Length of the value
+	 * @return Number of bytes needed to encode the length
+	 */
+	public static short getLengthSize(short length) {
+		if (length < 0x80)
+			return 1;
+		if (length <= 0xFF)
+			return 2;
+
+		return 3;
+	}
+
+	/**
+	 * Write a tag.
+	 * 
+	 * @param data
+	 *            Byte array
+	 * @param offset
+	 *            Offset within byte array indicating first byte
+	 * @param tag
+	 *            Tag, for example 0x005B or 0x5F2D
+	 * @return Offset after the last byte written
+	 */
+	public static short writeTag(byte[] data, short offset, short tag) {
+		if ((tag & (short) 0xFF00) != 0)
+			data[offset++] = (byte) (tag >> 8);
+		data[offset++] = (byte) tag;
+
+		return offset;
+	}
+
+	/**
+	 * Write a length in its shortest encoding.
+	 * 
+	 * @param data
+	 *            Byte array
+	 * @param offset
+	 *            Offset within byte array indicating first byte
+	 * @param length
+	 *            Length of the value
+	 * @return Offset after the last byte written
+	 */
+	public static short writeLength(byte[] data, short offset, short length) {
+		if (length < 0x80) {
+			data[offset++] = (byte) length;
+		} else if (length <= 0xFF) {
+			data[offset++] = (byte) 0x81;
+			data[offset++] = (byte) length;
+		} else {
+			data[offset++] = (byte) 0x82;
+			offset = Util.setShort(data, offset, length);
+		}
+
+		return offset;
+	}
+
+	/**
+	 * Write the tag and length of a data object.
+	 * 
+	 * @param data
+	 *            Byte array
+	 * @param offset
+	 *            Offset within byte array indicating first byte
+	 * @param tag
+	 *            Tag of the data object
+	 * @param length
+	 *            Length of the value
+	 * @return Offset of the first byte of the value
+	 */
+	public static short writeHeader(byte[] data, short offset, short tag,
+			short length) {
+		return writeLength(data, writeTag(data, offset, tag), length);
+	}
+
+	/**
+	 * Write a data object with the value taken from another array.
+	 * 
+	 * @param data
+	 *            Byte array
+	 * @param offset
+	 *            Offset within byte array indicating first byte
+	 * @param tag
+	 *            Tag of the data object
+	 * @param value
+	 *            Byte array containing the value
+	 * @param valueOffset
+	 *            Offset of the value
+	 * @param length
+	 *            Length of the value
+	 * @return Offset after the last byte written
+	 */
+	public static short write(byte[] data, short offset, short tag,
+			byte[] value, short valueOffset, short length) {
+		offset = writeHeader(data, offset, tag, length);
+		return Util.arrayCopyNonAtomic(value, valueOffset, data, offset, length);
+	}
+
+	/**
+	 * Start a data object of which the length is not known yet. Enough length
+	 * bytes are reserved for a value of maxLength bytes.
+	 * 
+	 * @param data
+	 *            Byte array
+	 * @param offset
+	 *            Offset within byte array indicating first byte
+	 * @param tag
+	 *            Tag of the data object
+	 * @param maxLength
+	 *            Maximum length of the value
+	 * @return Offset of the first byte of the value
+	 */
+	public static short begin(byte[] data, short offset, short tag,
+			short maxLength) {
+		offset = writeTag(data, offset, tag);
+
+		if (maxLength < 0x80) {
+			data[offset++] = 0x00;
+		} else if (maxLength <= 0xFF) {
+			data[offset++] = (byte) 0x81;
+			data[offset++] = 0x00;
+		} else {
+			data[offset++] = (byte) 0x82;
+			offset = Util.setShort(data, offset, (short) 0);
+		}
+
+		return offset;
+	}
+
+	/**
+	 * Finish a data object started with begin() by setting its length.
+	 * 
+	 * @param data
+	 *            Byte array
+	 * @param offset
+	 *            Offset of the data object, as passed to begin()
+	 * @param end
+	 *            Offset after the last byte of the value
+	 * @return Offset after the last byte of the data object
+	 */
+	public static short end(byte[] data, short offset, short end) {
+		short value = getValueOffset(data, offset);
+		short length = (short) (end - value);
+		offset += getTagSize(data, offset);
+
+		short reserved = (short) (value - offset);
+		short needed = getLengthSize(length);
+		if (needed > reserved)
+			ISOException.throwIt(SW_UNKNOWN);
+
+		if (needed < reserved)
+			Util.arrayCopyNonAtomic(data, value, data,
+					(short) (offset + needed), length);
+
+		offset = writeLength(data, offset, length);
+		return (short) (offset + length);
+	}
+}